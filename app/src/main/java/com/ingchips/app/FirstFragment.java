@@ -10,6 +10,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
@@ -22,6 +23,7 @@ import com.ingchips.app.databinding.FragmentFirstBinding;
 import com.ingchips.fota.*;
 
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 
 public class FirstFragment extends Fragment {
 
@@ -31,6 +33,7 @@ public class FirstFragment extends Fragment {
         public LinearLayout Container = null;
         TextView label = null;
         Button btn = null;
+        CheckBox pick = null;
 
         public void Update(ScanResult result) throws SecurityException
         {
@@ -60,6 +63,15 @@ public class FirstFragment extends Fragment {
             Container.addView(t);
 
             if (hasBtn) {
+                params = new LinearLayout.LayoutParams(
+                        LinearLayout.LayoutParams.WRAP_CONTENT, LinearLayout.LayoutParams.WRAP_CONTENT);
+                params.gravity = Gravity.CENTER_VERTICAL;
+
+                pick = new CheckBox(ctx);
+                pick.setText("Fleet");
+                pick.setLayoutParams(params);
+                Container.addView(pick);
+
                 btn = new Button(ctx);
 
                 params = new LinearLayout.LayoutParams(
@@ -101,6 +113,14 @@ public class FirstFragment extends Fragment {
                     owner.connectDev(dev);
                 });
 
+            if (pick != null)
+                pick.setOnCheckedChangeListener((view, checked) -> {
+                    if (checked)
+                        fleet.put(dev.getAddress(), dev);
+                    else
+                        fleet.remove(dev.getAddress());
+                });
+
             Update(result);
         }
     }
@@ -118,16 +138,23 @@ public class FirstFragment extends Fragment {
             Bundle savedInstanceState
     ) {
         instance = this;
+        // picks are on the list, which starts empty
+        fleet.clear();
         binding = FragmentFirstBinding.inflate(inflater, container, false);
         return binding.getRoot();
     }
 
     void initBLEAdapter() {
         BLEUtil.init(this.getContext());
+        // session keys are ready by the time a device is picked
+        SessionKeyPool.SHARED.warmUp();
     }
 
     public static BluetoothDevice devToConnect = null;
 
+    // devices picked for fleet mode, updated along with `devToConnect` (@see FleetUpdater)
+    public static final LinkedHashMap<String, BluetoothDevice> fleet = new LinkedHashMap<>();
+
     void connectDev(BluetoothDevice dev) throws SecurityException {
         fab.setVisibility(View.INVISIBLE);
         BLEUtil.stopScan();
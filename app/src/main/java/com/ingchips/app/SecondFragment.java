@@ -1,13 +1,17 @@
 package com.ingchips.app;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -34,15 +38,17 @@ import com.ingchips.fota.*;
 
 import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
@@ -58,6 +64,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
     FragmentActivity activity;
 
     Updater updater = null;
+    FleetUpdater fleet = null;
 
     OtaLocalFragment otaLocal = null;
     OtaOnlineFragment otaOnline = null;
@@ -67,6 +74,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
     private TabLayoutMediator mediator;
     private UpdatePackage pack = null;
     private PlanBuilder.Plan plan = null;
+    private PackageStream packageStream = null;
 
     public class ViewPagerAdapter
             extends FragmentStateAdapter {
@@ -123,6 +131,12 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         binding.btnUpdate.setVisibility(View.INVISIBLE);
         pack = null;
         plan = null;
+        packageStream = null;
+    }
+
+    private void showLatestVersion(ProductVersion version) {
+        binding.verLatestApp.setText(version.getApp().toString());
+        binding.verLatestPlatform.setText(version.getPlatform().toString());
     }
 
     private void ParsePacket() {
@@ -132,10 +146,13 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         }
 
         binding.textUpdateInfo.setText(pack.readme);
-        binding.verLatestApp.setText(pack.version.getApp().toString());
-        binding.verLatestPlatform.setText(pack.version.getPlatform().toString());
+        showLatestVersion(pack.version);
 
         plan = PlanBuilder.fromPackage(pack, updater.getDevVer());
+        ShowPlan();
+    }
+
+    private void ShowPlan() {
         if (plan == null) {
             showMsg("failed to parse update package");
             return;
@@ -151,6 +168,8 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
             showMsg("failed to make flash procedure");
             plan = null;
         } else {
+            int devices = fleetDevices().size();
+            binding.btnUpdate.setText(devices > 1 ? "Update " + devices : "Update");
             binding.btnUpdate.setVisibility(View.VISIBLE);
             if (plan.platform)
                 binding.verLatestPlatform.setBackgroundColor(getResources().getColor(R.color.teal_200));
@@ -160,31 +179,38 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
     }
 
     interface FileDownloaded {
-        public void OnComplete(byte [] content);
+        public void OnComplete(PackageCache.Entry content);
     }
 
-    private static byte [] dumpInputStream(InputStream stream) {
-        ArrayList<Byte> lst = new ArrayList<>();
-        byte[] buffer = new byte[1024];
-        try {
-            DataInputStream dis = new DataInputStream(stream);
-            int length;
-            while ((length = dis.read(buffer)) > 0)
-                for (int i = 0; i < length; i++) lst.add(buffer[i]);
-        } catch (Exception e) {}
+    // shared by all devices, so that a package is downloaded once
+    static private PackageCache packageCache;
 
-        return ArrayList2ByteArray(lst);
+    private PackageCache getPackageCache() {
+        synchronized (SecondFragment.class) {
+            if (packageCache == null)
+                packageCache = new PackageCache(new File(getContext().getCacheDir(), "fota-packages"));
+            return packageCache;
+        }
+    }
+
+    private static ByteSink dumpInputStream(InputStream stream, long length) throws IOException {
+        try {
+            return ByteSink.readFully(stream, length);
+        } finally {
+            stream.close();
+        }
     }
 
-    private void Download(String uri,
+    private void Download(String uri, String sha256,
+                          PackageCache.StreamReader reader,
                           FileDownloaded onDownloaded) {
+        PackageCache cache = getPackageCache();
         new Thread(new Runnable() {
             @Override
             public void run() {
-                byte []r = null;
+                PackageCache.Entry r = null;
                 try {
-                    URL u = new URL(uri);
-                    r = dumpInputStream(u.openStream());
+                    r = cache.fetch(uri, sha256, reader);
                 } catch (Exception e) {
                     activity.runOnUiThread(new Runnable() {
                         @Override
@@ -193,7 +219,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
                         }
                     });
                 }
-                final byte []t = r;
+                final PackageCache.Entry t = r;
                 activity.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -204,13 +230,14 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         }).start();
     }
 
-    private void ParseLastestJson(String server, byte []b) {
+    private void ParseLastestJson(String server, PackageCache.Entry content) {
+        if (content == null) return;
         try {
-            JSONObject obj = new JSONObject(new String(b));
-            Download(server + "/" + obj.getString("package"),
-                    content ->
-                            loadOtaPackStream(new ByteArrayInputStream(content))
-            );
+            ByteSink b = content.read();
+            JSONObject obj = new JSONObject(new String(b.array(), 0, b.size()));
+            // optional digest of the package, which is then served from the cache without asking the server
+            String sha256 = obj.has("sha256") ? obj.getString("sha256") : null;
+            downloadPackage(server + "/" + obj.getString("package"), sha256);
         } catch (Exception e) {
             showMsg("Exception: " + e.getMessage());
         }
@@ -220,15 +247,81 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         if (server.charAt(server.length() - 1) == '/')
             server = server.substring(0, server.length() - 1);
         String finalServer = server;
-        Download(server + "/latest.json",
+        Download(server + "/latest.json", null, null,
                 content -> ParseLastestJson(finalServer, content));
     }
 
-    private void loadOtaPackStream(InputStream stream) {
+    // a package is parsed while it is downloaded, and the plan is shown as soon as its items are complete
+    private void downloadPackage(String uri, String sha256) {
+        PreParsePackage();
+        PackageStream stream = new PackageStream(new PackageStream.Listener() {
+            @Override
+            public void onManifest(ProductVersion version) {
+                activity.runOnUiThread(() -> onPackageProgress("manifest"));
+            }
+
+            @Override
+            public void onItem(UpdateItem item) {
+                activity.runOnUiThread(() -> onPackageProgress(item.getName()));
+            }
+        });
+        packageStream = stream;
+        Download(uri, sha256,
+                in -> stream.parse(in),
+                entry -> {
+                    if (stream != packageStream) return;
+                    UpdatePackage cached = entry != null ? UpdatePackage.LoadFromFile(entry.file) : null;
+                    if ((cached != null) && (plan != null)) {
+                        // the plan is made during the download already: make it again from
+                        // the file, so that items parsed into heap are dropped
+                        pack = cached;
+                        packageStream = null;
+                        binding.textUpdateInfo.setText(pack.readme);
+                        plan = PlanBuilder.fromPackage(pack, updater.getDevVer());
+                        ShowPlan();
+                        return;
+                    }
+                    loadOtaPackFile(entry);
+                });
+    }
+
+    private void onPackageProgress(String itemName) {
+        PackageStream stream = packageStream;
+        if ((binding == null) || (stream == null) || (plan != null)) return;
+        ProductVersion version = stream.getVersion();
+        if (version == null) return;
+        showLatestVersion(version);
+        showMsg("downloading... " + itemName);
+        PlanBuilder.Plan p = stream.planFor(updater.getDevVer());
+        // "up to date" is left to the end of the package
+        if ((p == null) || (p.items.size() < 1)) return;
+        plan = p;
+        ShowPlan();
+    }
+
+    private void loadOtaPackFile(PackageCache.Entry content) {
+        PreParsePackage();
+
+        if (content != null) {
+            if (content.stale)
+                Toast.makeText(getContext(), "Server not reachable, using cached package", Toast.LENGTH_LONG)
+                        .show();
+            try {
+                // mapped from the cached file rather than read into heap
+                pack = UpdatePackage.LoadFromFile(content.file);
+            } catch (Exception e) {
+                showMsg("EXCEPTION: " + e.getMessage());
+            }
+        }
+
+        ParsePacket();
+    }
+
+    private void loadOtaPackBuffer(ByteSink content) {
         PreParsePackage();
 
         try {
-            pack = UpdatePackage.LoadFromStream(stream);
+            pack = UpdatePackage.LoadFromBuffer(content.toByteBuffer());
         } catch (Exception e)  {
             showMsg("EXCEPTION: " + e.getMessage());
         }
@@ -236,23 +329,30 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         ParsePacket();
     }
 
-    private static byte[] ArrayList2ByteArray(ArrayList<Byte> lst) {
-        byte[] t = new byte[lst.size()];
-        for (int i = 0; i < lst.size(); i++) t[i] = lst.get(i).byteValue();
-        return t;
-    }
-
-    private byte[] loadLocalFile(Uri uri) {
+    private ByteSink loadLocalFile(Uri uri) {
         ContentResolver resolver = getContext().getContentResolver();
 
         try {
-            return dumpInputStream(resolver.openInputStream(uri));
+            AssetFileDescriptor fd = resolver.openAssetFileDescriptor(uri, "r");
+            // length is AssetFileDescriptor.UNKNOWN_LENGTH (-1) if unknown
+            return dumpInputStream(fd.createInputStream(), fd.getLength());
         } catch (Exception e)  {
             showMsg("EXCEPTION: " + e.getMessage());
         }
         return null;
     }
 
+    private UpdatePackage loadLocalPackage(Uri uri) {
+        ContentResolver resolver = getContext().getContentResolver();
+
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r");
+             FileInputStream stream = new FileInputStream(pfd.getFileDescriptor())) {
+            return UpdatePackage.LoadFromChannel(stream.getChannel());
+        } catch (Exception e)  {
+            return null;
+        }
+    }
+
     public static String extractFileName(String name) {
         String[] parts = name.split("/");
         return parts[parts.length - 1];
@@ -273,7 +373,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
             return;
         }
 
-        byte []bin = loadLocalFile(uri);
+        ByteSink bin = loadLocalFile(uri);
         if (bin == null) return;
 
         PreParsePackage();
@@ -282,7 +382,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
 
         try {
             pack = UpdatePackage.MakeAppOnPackage(appLoadAddr,
-                    bin,
+                    bin.toByteArray(),
                     fn,
                     String.format("On-the-fly update App:\n\n@0x%08x (%s)", appLoadAddr, fn));
         } catch (Exception e)  {
@@ -299,8 +399,16 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
             return;
         }
 
+        PreParsePackage();
+        pack = loadLocalPackage(uri);
+        if (pack != null) {
+            ParsePacket();
+            return;
+        }
+
+        // not backed by a regular file: load it through a stream
         try {
-            loadOtaPackStream(new ByteArrayInputStream(loadLocalFile(uri)));
+            loadOtaPackBuffer(loadLocalFile(uri));
         } catch (Exception e)  {
             showMsg("EXCEPTION: " + e.getMessage());
         }
@@ -400,6 +508,14 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
         BLEUtil.stopScan();
 
         binding.btnUpdate.setOnClickListener( __ -> {
+            List<BluetoothDevice> devices = fleetDevices();
+            if (devices.size() > 1) {
+                if (startFleet(devices))
+                    __.setEnabled(false);
+                return;
+            }
+            SecondFragment.this.updater.setJournal(newJournal());
+            SecondFragment.this.updater.setMetricsDir(getMetricsDir());
             SecondFragment.this.updater.doUpdate(plan);
             __.setEnabled(false);
         });
@@ -422,17 +538,7 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
             @Override
             public void run() {
                 SecondFragment.this.updater = new Updater(FirstFragment.devToConnect,
-                        (v, s) -> {
-                            if (v >= 0)
-                                binding.progressBar.setProgress(v);
-                            if (s != null)
-                                showMsg(s);
-                        },
-                        __ -> {
-                            showDevVersion();
-                            binding.otaDataSource.setVisibility(View.VISIBLE);
-                            binding.otaTabs.setVisibility(View.VISIBLE);
-                        },
+                        SecondFragment.this::onProgress,
                         isSecure -> {
                             if (isSecure) {
                                 binding.textLog2.setText("SECURE");
@@ -448,15 +554,115 @@ public class SecondFragment extends Fragment implements OtaLocalFragment.LocalFi
                                     .navigate(R.id.action_SecondFragment_to_FirstFragment);
                         }
                 );
+                // `READY` may have been delivered before `updater` is set
+                getActivity().runOnUiThread(() -> {
+                    if (updater.isReady())
+                        onReady();
+                });
             }
         }).start();
     }
 
+    // pages confirmed by the device survive disconnections, so the update can be resumed
+    private PageJournal newJournal() {
+        return new PageJournal(new PageJournal.FileStore(new File(getContext().getFilesDir(), "fota-journal")));
+    }
+
+    private File getMetricsDir() {
+        return new File(getContext().getFilesDir(), "fota-metrics");
+    }
+
+    // the connected device, and those picked for fleet mode
+    private static List<BluetoothDevice> fleetDevices() {
+        LinkedHashMap<String, BluetoothDevice> r = new LinkedHashMap<>();
+        r.put(FirstFragment.devToConnect.getAddress(), FirstFragment.devToConnect);
+        r.putAll(FirstFragment.fleet);
+        return new ArrayList<>(r.values());
+    }
+
+    private final LinkedHashMap<String, String> fleetLines = new LinkedHashMap<>();
+
+    private boolean startFleet(List<BluetoothDevice> devices) {
+        if (pack == null) {
+            showMsg("wait until the package is downloaded");
+            return false;
+        }
+
+        // devices connect and disconnect all the time
+        BLEUtil.setOnDisconnected(null);
+        // the connected device is updated by the fleet too
+        updater.abort();
+
+        fleetLines.clear();
+        for (BluetoothDevice d : devices)
+            fleetLines.put(d.getAddress(), d.getAddress() + ": queued");
+        fleet = new FleetUpdater(pack, (int)binding.chipFamilySpinner.getSelectedItemId(), getFlashTopAddress(),
+                FleetUpdater.DEFAULT_MAX_CONNECTIONS,
+                new FleetOrchestrator.Listener() {
+                    @Override
+                    public void onDevice(@NonNull FleetOrchestrator.DeviceProgress p) {
+                        onFleetDevice(p);
+                    }
+
+                    @Override
+                    public void onSummary(@NonNull FleetOrchestrator.Summary summary) {
+                        onFleetSummary(summary);
+                    }
+                },
+                f -> getActivity().runOnUiThread(f));
+        fleet.setJournal(newJournal());
+        fleet.setMetricsDir(getMetricsDir());
+        fleet.start(devices);
+        return true;
+    }
+
+    private void onFleetDevice(FleetOrchestrator.DeviceProgress p) {
+        if (binding == null)
+            return;
+        String s = p.getDevice() + ": " + p.getState().name().toLowerCase(Locale.ROOT);
+        if (p.getTotal() > 0)
+            s += String.format(Locale.ROOT, " %d%%", (int)(p.getCurrent() * 100L / p.getTotal()));
+        if (p.getMessage() != null)
+            s += " " + p.getMessage();
+        fleetLines.put(p.getDevice(), s);
+        binding.textUpdateInfo.setText(TextUtils.join("\n", fleetLines.values()));
+    }
+
+    private void onFleetSummary(FleetOrchestrator.Summary s) {
+        if (binding == null)
+            return;
+        int finished = s.getDone() + s.getSkipped() + s.getFailed();
+        binding.progressBar.setProgress(s.getDevices() > 0 ? finished * 100 / s.getDevices() : 0);
+        showMsg(String.format(Locale.ROOT, "%d/%d done, %d skipped, %d failed\n%.1f devices/hour",
+                s.getDone(), s.getDevices(), s.getSkipped(), s.getFailed(), s.getDevicesPerHour()));
+    }
+
+    private void onProgress(UpdateProgress p) {
+        if (binding == null)
+            return;
+        binding.progressBar.setProgress(p.getPercent());
+        String rate = p.rateText();
+        if (p.getMessage() != null)
+            showMsg(rate.isEmpty() ? p.getMessage() : p.getMessage() + "\n" + rate);
+        if ((p.getPhase() == UpdateProgress.Phase.READY) && (updater != null))
+            onReady();
+    }
+
+    private void onReady() {
+        if ((binding == null) || (binding.otaTabs.getVisibility() == View.VISIBLE))
+            return;
+        showDevVersion();
+        binding.otaDataSource.setVisibility(View.VISIBLE);
+        binding.otaTabs.setVisibility(View.VISIBLE);
+    }
+
     @Override
     public void onDestroyView() {
         BLEUtil.setOnDisconnected(null);
         super.onDestroyView();
         updater.abort();
+        if (fleet != null)
+            fleet.abort();
         binding = null;
     }
 }
\ No newline at end of file
@@ -17,8 +17,12 @@ import android.widget.Toast
 import androidx.annotation.RequiresApi
 import androidx.core.app.ActivityCompat
 import androidx.core.content.ContextCompat
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.withTimeoutOrNull
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * a wrapper of Android BLE APIs featuring synchronized operations
@@ -31,44 +35,64 @@ import java.util.*
  * 1. Profile discover (@see discover)
  * 1. GATT operations (@see readCharacteristics, @see writeCharacteristics, etc)
  *
+ * Events are routed per connection and per characteristic (@see GattConnection), so
+ * several connections can be used at the same time. Operations are queued by priority
+ * and given up after `OP_TIMEOUT` (@see GattScheduler).
  */
 class BLEUtil private constructor(private val context: Context) {
 
-    data class ConnectionStateChangeEvent (var gatt: BluetoothGatt, var status: Int, var newState: Int)
-    data class ServiceDiscoveredEvent (var gatt: BluetoothGatt, var status: Int)
-    data class CharacteristicEvent (var gatt: BluetoothGatt, var characteristic: BluetoothGattCharacteristic, var status: Int)
-
-    data class MtuChangeEvent (var gatt: BluetoothGatt, var mtu: Int, var status: Int)
-
     interface DevDisconnected {
         fun disconnected(gatt: BluetoothGatt)
     }
 
-    var chConnStateEvents = Channel<ConnectionStateChangeEvent>(10)
-    var chServiceDiscoveredEvents = Channel<ServiceDiscoveredEvent>(10)
-    var chCharacteristicReadEvents = Channel<CharacteristicEvent>(10)
-    var chCharacteristicWriteEvents = Channel<CharacteristicEvent>(10)
-    var chMtuChangeEvents = Channel<MtuChangeEvent> (10)
+    private val connections = ConcurrentHashMap<BluetoothGatt, GattConnection>()
 
+    private fun connectionOf(gatt: BluetoothGatt): GattConnection {
+        return connections.getOrPut(gatt) { GattConnection(gatt) }
+    }
+
+    /**
+     * Routes events to the `GattConnection` of each `BluetoothGatt`
+     *
+     * On Android 13+, the value-carrying callbacks are used; otherwise values are copied
+     * from the characteristic before the next event may overwrite them.
+     */
     inner class SimpleGattCallback : BluetoothGattCallback() {
-        override fun onPhyUpdate(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {}
-        override fun onPhyRead(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {}
+        override fun onPhyUpdate(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {
+            connectionOf(gatt).phy.trySend(GattConnection.PhyEvent(txPhy, rxPhy, status))
+        }
+        override fun onPhyRead(gatt: BluetoothGatt, txPhy: Int, rxPhy: Int, status: Int) {
+            connectionOf(gatt).phy.trySend(GattConnection.PhyEvent(txPhy, rxPhy, status))
+        }
         override fun onConnectionStateChange(gatt: BluetoothGatt, status: Int, newState: Int) {
-            chConnStateEvents.trySend(ConnectionStateChangeEvent(gatt, status, newState))
+            val conn = connectionOf(gatt)
+            conn.connected = newState == BluetoothProfile.STATE_CONNECTED
+            conn.connectionState.trySend(GattConnection.ConnectionStateEvent(status, newState))
             if ((onDisconnected != null) && (newState == BluetoothProfile.STATE_DISCONNECTED))
                 onDisconnected!!.disconnected(gatt)
         }
 
         override fun onServicesDiscovered(gatt: BluetoothGatt, status: Int) {
-            chServiceDiscoveredEvents.trySend(ServiceDiscoveredEvent(gatt, status))
+            connectionOf(gatt).servicesDiscovered.trySend(status)
         }
 
+        @Deprecated("Deprecated in Java")
         override fun onCharacteristicRead(
             gatt: BluetoothGatt,
             characteristic: BluetoothGattCharacteristic,
             status: Int
         ) {
-            chCharacteristicReadEvents.trySend(CharacteristicEvent(gatt, characteristic, status))
+            connectionOf(gatt).of(characteristic).reads.trySend(
+                GattConnection.ValueEvent(characteristic.value?.clone(), status))
+        }
+
+        override fun onCharacteristicRead(
+            gatt: BluetoothGatt,
+            characteristic: BluetoothGattCharacteristic,
+            value: ByteArray,
+            status: Int
+        ) {
+            connectionOf(gatt).of(characteristic).reads.trySend(GattConnection.ValueEvent(value, status))
         }
 
         override fun onCharacteristicWrite(
@@ -77,13 +101,24 @@ class BLEUtil private constructor(private val context: Context) {
             status: Int
         ) {
             Log.d("BLE", String.format("write done: %s: %d", characteristic.uuid, status))
-            chCharacteristicWriteEvents.trySend(CharacteristicEvent(gatt, characteristic, status))
+            connectionOf(gatt).of(characteristic).writes.trySend(status)
         }
 
+        @Deprecated("Deprecated in Java")
         override fun onCharacteristicChanged(
             gatt: BluetoothGatt,
             characteristic: BluetoothGattCharacteristic
         ) {
+            // the value is overwritten by the next notification, so keep a copy
+            connectionOf(gatt).of(characteristic).notifications.trySend(characteristic.value.clone())
+        }
+
+        override fun onCharacteristicChanged(
+            gatt: BluetoothGatt,
+            characteristic: BluetoothGattCharacteristic,
+            value: ByteArray
+        ) {
+            connectionOf(gatt).of(characteristic).notifications.trySend(value)
         }
 
         override fun onDescriptorRead(
@@ -98,12 +133,13 @@ class BLEUtil private constructor(private val context: Context) {
             descriptor: BluetoothGattDescriptor,
             status: Int
         ) {
+            connectionOf(gatt).descriptorWrites.trySend(status)
         }
 
         override fun onReliableWriteCompleted(gatt: BluetoothGatt, status: Int) {}
         override fun onReadRemoteRssi(gatt: BluetoothGatt, rssi: Int, status: Int) {}
         override fun onMtuChanged(gatt: BluetoothGatt, mtu: Int, status: Int) {
-            chMtuChangeEvents.trySend(MtuChangeEvent(gatt, mtu, status))
+            connectionOf(gatt).mtuChanged.trySend(GattConnection.MtuEvent(mtu, status))
         }
         override fun onServiceChanged(gatt: BluetoothGatt) {}
     }
@@ -192,6 +228,13 @@ class BLEUtil private constructor(private val context: Context) {
         private var instance: BLEUtil? = null
 
         private const val DEFAULT_MTU = 23
+        private const val WRITE_BUSY_RETRY = 50
+        private const val WRITE_BUSY_WAIT = 2L
+        private const val CONNECT_TIMEOUT = 15000L
+        private const val PHY_TIMEOUT = 1000L
+        const val OP_TIMEOUT = 5000L
+        private val CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb")
+
 
         @JvmStatic
         var onDisconnected: DevDisconnected? = null
@@ -258,9 +301,45 @@ class BLEUtil private constructor(private val context: Context) {
         val isScanning: Boolean
             get() = if (instance != null) instance!!.scanCallback != null else false
 
-        suspend fun reset() {
-            while (!instance!!.chConnStateEvents.isEmpty)
-                instance!!.chConnStateEvents.receive()
+        /**
+         * Forget connections which are closed, together with their pending events
+         */
+        fun reset() {
+            if (!isReady) return
+            val it = instance!!.connections.values.iterator()
+            while (it.hasNext()) {
+                val conn = it.next()
+                if (!conn.connected) {
+                    conn.purgeAll()
+                    it.remove()
+                }
+            }
+        }
+
+        private fun connectionOf(gatt: BluetoothGatt): GattConnection {
+            return instance!!.connectionOf(gatt)
+        }
+
+        private suspend fun <T> schedule(
+            gatt: BluetoothGatt,
+            priority: Int,
+            what: String,
+            op: suspend (GattConnection) -> T
+        ): T? {
+            val conn = connectionOf(gatt)
+            val r = conn.scheduler.execute(priority, OP_TIMEOUT) { op(conn) }
+            if (r == null) Log.w("BLE", "$what: no response in $OP_TIMEOUT ms")
+            return r
+        }
+
+        /**
+         * Statistics of operations on a connection
+         * @param priority      priority of the operations (@see GattScheduler.PRIORITY_CONTROL)
+         * @return              null if the connection is released
+         */
+        fun statsOf(gatt: BluetoothGatt, priority: Int): GattScheduler.Stats? {
+            if (!isReady) return null
+            return instance!!.connections[gatt]?.scheduler?.stats(priority)
         }
 
         suspend fun connect(device: BluetoothDevice): BluetoothGatt? {
@@ -268,9 +347,25 @@ class BLEUtil private constructor(private val context: Context) {
             if (!instance!!.checkPermission()) return null
 
             val gatt = device.connectGatt(
-                instance!!.context, false, instance!!.gattCallback)
-
-            val r = instance!!.chConnStateEvents.receive()
+                instance!!.context, false, instance!!.gattCallback) ?: return null
+
+            val r = try {
+                withTimeoutOrNull(CONNECT_TIMEOUT) {
+                    connectionOf(gatt).connectionState.receive()
+                }
+            } catch (e: CancellationException) {
+                release(gatt)
+                gatt.disconnect()
+                gatt.close()
+                throw e
+            }
+            if (r == null) {
+                Log.w("BLE", "connect: no response in $CONNECT_TIMEOUT ms")
+                release(gatt)
+                gatt.disconnect()
+                gatt.close()
+                return null
+            }
             //return if (r.newState == BluetoothProfile.STATE_CONNECTED) r.gatt else null
             return gatt;
         }
@@ -279,10 +374,12 @@ class BLEUtil private constructor(private val context: Context) {
             if (!isReady) return true
             if (!instance!!.checkPermission()) return true
 
-            device.connectGatt(
-                instance!!.context, false, instance!!.gattCallback)
+            val gatt = device.connectGatt(
+                instance!!.context, false, instance!!.gattCallback) ?: return true
 
-            val r = instance!!.chConnStateEvents.receive()
+            val r = withTimeoutOrNull(CONNECT_TIMEOUT) {
+                connectionOf(gatt).connectionState.receive()
+            } ?: return false
             return r.newState == BluetoothProfile.STATE_DISCONNECTED
         }
 
@@ -290,20 +387,71 @@ class BLEUtil private constructor(private val context: Context) {
             if (!isReady) return true
             if (!instance!!.checkPermission()) return true
 
-            gatt.discoverServices()
+            return schedule(gatt, GattScheduler.PRIORITY_CONTROL, "discover") { conn ->
+                GattConnection.purge(conn.servicesDiscovered)
+                if (!gatt.discoverServices()) return@schedule false
 
-            val r = instance!!.chServiceDiscoveredEvents.receive()
-            return r.status == 0
+                conn.servicesDiscovered.receive() == 0
+            } ?: false
         }
 
         suspend fun requestMtu(gatt: BluetoothGatt, mtu: Int): Int {
             if (!isReady) return DEFAULT_MTU
             if (!instance!!.checkPermission()) return DEFAULT_MTU
 
-            gatt.requestMtu(mtu)
+            return schedule(gatt, GattScheduler.PRIORITY_CONTROL, "requestMtu") { conn ->
+                GattConnection.purge(conn.mtuChanged)
+                if (!gatt.requestMtu(mtu)) return@schedule DEFAULT_MTU
 
-            val r = instance!!.chMtuChangeEvents.receive()
-            return if (r.status == 0) r.mtu else DEFAULT_MTU
+                val r = conn.mtuChanged.receive()
+                if (r.status == 0) r.mtu else DEFAULT_MTU
+            } ?: DEFAULT_MTU
+        }
+
+        /**
+         * Request a connection priority, e.g. `BluetoothGatt.CONNECTION_PRIORITY_HIGH`
+         *
+         * There is no callback: the new interval takes effect some time later.
+         */
+        suspend fun requestConnectionPriority(gatt: BluetoothGatt, priority: Int): Boolean {
+            if (!isReady) return false
+            if (!instance!!.checkPermission()) return false
+
+            return schedule(gatt, GattScheduler.PRIORITY_CONTROL, "requestConnectionPriority") {
+                gatt.requestConnectionPriority(priority)
+            } ?: false
+        }
+
+        /**
+         * Whether the phone supports LE 2M PHY
+         */
+        fun isLe2MPhySupported(): Boolean {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false
+            return bluetoothAdapter?.isLe2MPhySupported ?: false
+        }
+
+        /**
+         * Prefer a PHY in both directions, and get the PHY in use
+         *
+         * The PHY stays unchanged if the device doesn't support the preferred one.
+         *
+         * @param phyMask       e.g. `BluetoothDevice.PHY_LE_2M_MASK`
+         * @return              PHY in use, or null on failure
+         */
+        @RequiresApi(Build.VERSION_CODES.O)
+        suspend fun setPreferredPhy(gatt: BluetoothGatt, phyMask: Int): GattConnection.PhyEvent? {
+            if (!isReady) return null
+            if (!instance!!.checkPermission()) return null
+
+            return schedule(gatt, GattScheduler.PRIORITY_CONTROL, "setPreferredPhy") { conn ->
+                GattConnection.purge(conn.phy)
+                gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED)
+                // some stacks don't report an update if nothing changes
+                withTimeoutOrNull(PHY_TIMEOUT) { conn.phy.receive() } ?: run {
+                    gatt.readPhy()
+                    conn.phy.receive()
+                }
+            }?.takeIf { it.status == BluetoothGatt.GATT_SUCCESS }
         }
 
         fun getCharacteristics(
@@ -320,35 +468,151 @@ class BLEUtil private constructor(private val context: Context) {
             return r
         }
 
+        /**
+         * Read a characteristic
+         * @param priority      priority of the operation (@see GattScheduler.PRIORITY_CONTROL)
+         * @return              the value, or null on failure or timeout
+         */
         suspend fun readCharacteristics(
             gatt: BluetoothGatt,
-            c: BluetoothGattCharacteristic?
+            c: BluetoothGattCharacteristic,
+            priority: Int = GattScheduler.PRIORITY_CONTROL
+        ): ByteArray? {
+            if (!isReady) return null
+            if (!instance!!.checkPermission()) return null
+
+            val r = schedule(gatt, priority, "read ${c.uuid}") { conn ->
+                val events = conn.of(c)
+                GattConnection.purge(events.reads)
+                if (!gatt.readCharacteristic(c)) return@schedule GattConnection.ValueEvent(null, -1)
+
+                events.reads.receive()
+            }
+            return if (r?.status == 0) r.value else null
+        }
+
+        private fun issueWrite(
+            gatt: BluetoothGatt,
+            c: BluetoothGattCharacteristic,
+            d: ByteArray,
+            writeType: Int
+        ): Boolean {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+                return gatt.writeCharacteristic(c, d, writeType) == BluetoothStatusCodes.SUCCESS
+            @Suppress("DEPRECATION")
+            c.value = d
+            c.writeType = writeType
+            @Suppress("DEPRECATION")
+            return gatt.writeCharacteristic(c)
+        }
+
+        /**
+         * Write a characteristic and wait for the write callback
+         *
+         * For `WRITE_TYPE_NO_RESPONSE`, the callback only means that the stack has accepted
+         * the data, which is what pipelined writers use for flow control.
+         *
+         * @param priority      priority of the operation (@see GattScheduler.PRIORITY_CONTROL)
+         * @return              false on failure or timeout
+         */
+        suspend fun writeCharacteristics(
+            gatt: BluetoothGatt,
+            c: BluetoothGattCharacteristic,
+            d: ByteArray,
+            writeType: Int = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT,
+            priority: Int = GattScheduler.PRIORITY_CONTROL
         ): Boolean {
             if (!isReady) return false
             if (!instance!!.checkPermission()) return false
 
-            gatt.readCharacteristic(c)
-
-            val r = instance!!.chCharacteristicReadEvents.receive()
-            return r.status == 0
+            Log.d("BLE", String.format("write %s ", c.uuid))
+
+            return schedule(gatt, priority, "write ${c.uuid}") { conn ->
+                val events = conn.of(c)
+                GattConnection.purge(events.writes)
+                var retry = 0
+                // the stack rejects a write while it is busy, e.g. its buffers are full
+                while (!issueWrite(gatt, c, d, writeType)) {
+                    if (++retry > WRITE_BUSY_RETRY) return@schedule false
+                    delay(WRITE_BUSY_WAIT)
+                }
+
+                val status = events.writes.receive()
+                Log.d("BLE", String.format("write event %d ", status))
+                status == 0
+            } ?: false
         }
 
-        suspend fun writeCharacteristics(
+        /**
+         * Enable notification (or indication, if notification is not supported) of a characteristic
+         * @return              false if neither is supported, or the CCCD can't be written
+         */
+        suspend fun enableNotification(
             gatt: BluetoothGatt,
-            c: BluetoothGattCharacteristic?,
-            d: ByteArray
+            c: BluetoothGattCharacteristic
         ): Boolean {
             if (!isReady) return false
             if (!instance!!.checkPermission()) return false
 
-            Log.d("BLE", String.format("write %s ", c!!.uuid))
+            val value = when {
+                (c.properties and BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 ->
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                (c.properties and BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0 ->
+                    BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                else -> return false
+            }
+            val cccd = c.getDescriptor(CCCD) ?: return false
+            if (!gatt.setCharacteristicNotification(c, true)) return false
+
+            return schedule(gatt, GattScheduler.PRIORITY_CONTROL, "enableNotification") { conn ->
+                GattConnection.purge(conn.descriptorWrites)
+                val ok = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                    gatt.writeDescriptor(cccd, value) == BluetoothStatusCodes.SUCCESS
+                } else {
+                    @Suppress("DEPRECATION")
+                    cccd.value = value
+                    @Suppress("DEPRECATION")
+                    gatt.writeDescriptor(cccd)
+                }
+                if (!ok) return@schedule false
+
+                conn.descriptorWrites.receive() == 0
+            } ?: false
+        }
 
-            c.value = d
-            gatt.writeCharacteristic(c)
+        /**
+         * Wait for the next notified value of a characteristic
+         * @return              the value, or null on timeout
+         */
+        suspend fun awaitNotification(
+            gatt: BluetoothGatt,
+            c: BluetoothGattCharacteristic,
+            timeoutMillis: Long
+        ): ByteArray? {
+            if (!isReady) return null
+            val ch = connectionOf(gatt).of(c).notifications
+            return withTimeoutOrNull(timeoutMillis) {
+                ch.receive()
+            }
+        }
 
-            val r = instance!!.chCharacteristicWriteEvents.receive()
-            Log.d("BLE", String.format("chCharacteristicWriteEvents %d ", r.status))
-            return r.status == 0
+        /**
+         * Discard notified values of a characteristic not consumed yet
+         */
+        fun discardNotifications(gatt: BluetoothGatt, c: BluetoothGattCharacteristic) {
+            if (!isReady) return
+            GattConnection.purge(connectionOf(gatt).of(c).notifications)
+        }
+
+        /**
+         * Release resources of a closed connection
+         */
+        fun release(gatt: BluetoothGatt) {
+            if (!isReady) return
+            instance!!.connections.remove(gatt)?.let {
+                it.scheduler.cancelAll()
+                it.purgeAll()
+            }
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+package com.ingchips.fota
+
+import android.bluetooth.BluetoothDevice
+import kotlinx.coroutines.*
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Fleet mode on Android: update several devices with one package (@see FleetOrchestrator)
+ *
+ * The package is parsed once and shared by all devices, while each device gets its own
+ * connection, `FotaSession`, plan and metrics, as with `Updater`.
+ *
+ * Usage:
+ *
+ * 1. Create an instance with the package and flash layout;
+ * 1. Set `journal` and `metricsDir` if needed;
+ * 1. Call `start` with the devices, progress is reported on UI thread;
+ * 1. Call `abort` to give up (devices being updated are disconnected).
+ */
+class FleetUpdater
+/**
+ * Create an instance
+ * @param pack              the package
+ * @param chipSeries        chip series (@see PlanBuilder.makeFlashProcedure)
+ * @param flashTopAddress   flash top address (@see PlanBuilder.makeFlashProcedure)
+ * @param maxConnections    max number of devices updated at the same time
+ * @param listener          callback of progress, conflated per device
+ * @param runUiFunc         tool function for executing code on UI thread
+ */(
+    private val pack: UpdatePackage,
+    private val chipSeries: Int,
+    private val flashTopAddress: Long,
+    maxConnections: Int,
+    listener: FleetOrchestrator.Listener,
+    runUiFunc: Updater.GeneralFuncRunner
+) {
+    companion object {
+        const val DEFAULT_MAX_CONNECTIONS = 4
+
+        // min time between two progress updates of the UI
+        private const val UI_INTERVAL: Long = 250
+    }
+
+    /**
+     * Journal for resuming interrupted updates, shared by all devices; null to always start over
+     */
+    var journal: PageJournal? = null
+
+    /**
+     * Directory where a report of each device is written (@see Updater.metricsDir), null for none
+     */
+    var metricsDir: File? = null
+
+    /**
+     * A device being updated
+     */
+    private class Run {
+        val timings = StepTimings()
+        val metrics = SessionMetrics()
+        var driver: Updater.BLEDriver? = null
+        var session: FotaSession? = null
+        var startNanos = 0L
+    }
+
+    private val devices = HashMap<String, BluetoothDevice>()
+    private val runs = ConcurrentHashMap<String, Run>()
+    private val scope = CoroutineScope(Dispatchers.IO)
+    private var job: Job? = null
+
+    private val orchestrator = FleetOrchestrator(maxConnections, ::connect, ::planFor, listener,
+        UI_INTERVAL, { runUiFunc.run(it) }, ::onFinished)
+
+    private suspend fun connect(address: String, sessionListener: FotaSession.Listener): FotaSession? {
+        val run = Run()
+        runs[address] = run
+        val driver = Updater.openDriver(devices[address]!!, run.timings) { sessionListener.onMessage(it) } ?: return null
+        // closed by `abort` from now on
+        run.driver = driver
+        try {
+            Updater.labelLink(run.metrics, driver)
+            val session = FotaSession(driver, sessionListener,
+                if (driver.hasPubKey) SessionKeyPool.SHARED.takeFor(address) else null)
+            session.timings = run.timings
+            session.metrics = run.metrics
+            if (!session.prepare()) {
+                driver.close()
+                return null
+            }
+            for (s in run.timings.steps)
+                run.metrics.observe("setup_" + s.name.replace(' ', '_'), (s.millis * 1e6).toLong())
+            run.metrics.label("device_version", "${session.devVer?.platform} ${session.devVer?.app}")
+            run.session = session
+            return session
+        } catch (e: Throwable) {
+            // cancelled or failed while preparing: the session is not there to be closed
+            driver.close()
+            throw e
+        }
+    }
+
+    private fun planFor(address: String, devVer: ProductVersion): PlanBuilder.Plan? {
+        val plan = PlanBuilder.fromPackage(pack, devVer)
+        if (plan.items.isEmpty()) return null
+        if (!PlanBuilder.makeFlashProcedure(plan, chipSeries, flashTopAddress)) return null
+
+        val run = runs[address]!!
+        val session = run.session!!
+        if (journal != null) {
+            session.journal = journal
+            session.journalKey = PageJournal.keyOf(address, plan)
+        }
+        run.metrics.label("pacing", session.pacing.javaClass.simpleName)
+        run.metrics.label("write_without_response", run.driver?.isDataPipelined.toString())
+        run.metrics.label("interval", run.driver?.link?.intervalText ?: "")
+        run.startNanos = System.nanoTime()
+        return plan
+    }
+
+    private suspend fun onFinished(address: String, state: FleetOrchestrator.State) {
+        if (state == FleetOrchestrator.State.DONE)
+            SessionKeyPool.SHARED.complete(address)
+        val run = runs.remove(address) ?: return
+        val dir = metricsDir ?: return
+        val result = when (state) {
+            FleetOrchestrator.State.DONE -> "ok"
+            FleetOrchestrator.State.SKIPPED -> "up to date"
+            else -> "failed"
+        }
+        if (state == FleetOrchestrator.State.DONE)
+            run.metrics.observe("update", System.nanoTime() - run.startNanos)
+        Updater.exportMetrics(dir, address, run.metrics, result)
+    }
+
+    /**
+     * Current summary, e.g. devices per hour
+     */
+    val summary: FleetOrchestrator.Summary
+        get() = orchestrator.summary
+
+    /**
+     * Start updating devices in background
+     * @param devices       devices to be updated
+     */
+    fun start(devices: List<BluetoothDevice>) {
+        for (d in devices) this.devices[d.address] = d
+        job = scope.launch {
+            orchestrator.run(devices.map { it.address })
+        }
+    }
+
+    /**
+     * Give up, disconnecting devices being connected or updated
+     */
+    fun abort() {
+        job?.cancel()
+        job = null
+        // do not wait for the cancellation to reach each device
+        for (run in runs.values)
+            run.driver?.close()
+        runs.clear()
+    }
+}
@@ -0,0 +1,75 @@
+package com.ingchips.fota
+
+import android.bluetooth.BluetoothGatt
+import android.bluetooth.BluetoothGattCharacteristic
+import kotlinx.coroutines.channels.Channel
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * GATT events of a single connection, routed by `BLEUtil.SimpleGattCallback`
+ *
+ * Each kind of event, and each characteristic, has its own channel, so a callback can only
+ * be consumed by a waiter of the same connection and characteristic. Values are carried
+ * by events instead of being read from the shared `characteristic.value`.
+ */
+class GattConnection(val gatt: BluetoothGatt) {
+
+    data class ConnectionStateEvent(val status: Int, val newState: Int)
+    data class MtuEvent(val mtu: Int, val status: Int)
+    data class PhyEvent(val txPhy: Int, val rxPhy: Int, val status: Int)
+    data class ValueEvent(val value: ByteArray?, val status: Int)
+
+    class CharacteristicEvents {
+        val reads = Channel<ValueEvent>(EVENT_CAPACITY)
+        val writes = Channel<Int>(EVENT_CAPACITY)
+        val notifications = Channel<ByteArray>(EVENT_CAPACITY)
+    }
+
+    val connectionState = Channel<ConnectionStateEvent>(EVENT_CAPACITY)
+    val servicesDiscovered = Channel<Int>(EVENT_CAPACITY)
+    val mtuChanged = Channel<MtuEvent>(EVENT_CAPACITY)
+    val phy = Channel<PhyEvent>(EVENT_CAPACITY)      // PHY updated or read
+    val descriptorWrites = Channel<Int>(EVENT_CAPACITY)
+
+    // keyed by identity: the stack reports the very objects of the discovered services
+    private val characteristics = ConcurrentHashMap<BluetoothGattCharacteristic, CharacteristicEvents>()
+
+    /**
+     * Only one operation may be outstanding on a connection
+     */
+    val scheduler = GattScheduler()
+
+    @Volatile
+    var connected = false
+
+    fun of(c: BluetoothGattCharacteristic): CharacteristicEvents {
+        return characteristics.getOrPut(c) { CharacteristicEvents() }
+    }
+
+    /**
+     * Discard all events not consumed yet
+     */
+    fun purgeAll() {
+        purge(connectionState)
+        purge(servicesDiscovered)
+        purge(mtuChanged)
+        purge(phy)
+        purge(descriptorWrites)
+        for (e in characteristics.values) {
+            purge(e.reads)
+            purge(e.writes)
+            purge(e.notifications)
+        }
+    }
+
+    companion object {
+        private const val EVENT_CAPACITY = 10
+
+        /**
+         * Discard stale events, e.g. of an operation given up earlier
+         */
+        fun <T> purge(ch: Channel<T>) {
+            while (ch.tryReceive().isSuccess) {}
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.PriorityQueue
+
+/**
+ * Scheduler of GATT operations on a connection
+ *
+ * Operations run one at a time, as Android allows only one outstanding operation per
+ * connection. Waiting operations are served by priority (@see PRIORITY_CONTROL), then
+ * in order of arrival. Each operation has a deadline covering both waiting and service,
+ * after which it is given up (and its late callback purged by the next one).
+ *
+ * Note: `BLEDriver` flushes pipelined data before each of its control operations, as the
+ * device must see the data first, so priorities do not reorder the operations of a session.
+ * They matter for operations issued aside from it, e.g. `requestConnectionPriority` or
+ * `setPreferredPhy` while data is being written.
+ */
+class GattScheduler {
+    companion object {
+        const val PRIORITY_CONTROL = 0
+        const val PRIORITY_DATA = 1
+        private const val PRIORITIES = 2
+    }
+
+    /**
+     * Statistics of operations of a priority
+     */
+    data class Stats(
+        val ops: Long,
+        val timeouts: Long,
+        val avgWaitMicros: Long,        // average time in queue
+        val maxWaitMicros: Long,
+        val avgServiceMicros: Long,     // average time from start to completion
+        val maxServiceMicros: Long
+    )
+
+    // waiters given up by `cancelAll`; not a `CancellationException`, so that the caller
+    // is not cancelled
+    private class ClosedException : IllegalStateException("connection closed")
+
+    private class Waiter(val priority: Int, val seq: Long) {
+        val grant = CompletableDeferred<Unit>()
+        var granted = false         // set under `lock` by `release`
+    }
+
+    private class Counter {
+        var ops = 0L
+        var timeouts = 0L
+        var waitNanos = 0L
+        var maxWaitNanos = 0L
+        var serviceNanos = 0L
+        var maxServiceNanos = 0L
+
+        fun snapshot(): Stats {
+            val n = if (ops > 0) ops else 1
+            return Stats(ops, timeouts, waitNanos / n / 1000, maxWaitNanos / 1000,
+                serviceNanos / n / 1000, maxServiceNanos / 1000)
+        }
+    }
+
+    private val lock = Any()
+    private val queue = PriorityQueue<Waiter>(11, compareBy<Waiter>({ it.priority }, { it.seq }))
+    private var busy = false
+    private var seq = 0L
+    private val counters = Array(PRIORITIES) { Counter() }
+
+    private suspend fun acquire(priority: Int) {
+        val w = synchronized(lock) {
+            if (!busy) {
+                busy = true
+                return
+            }
+            Waiter(priority, seq++).also { queue.add(it) }
+        }
+        try {
+            w.grant.await()
+        } catch (e: CancellationException) {
+            synchronized(lock) {
+                // granted meanwhile: pass it on
+                if (w.granted) release() else queue.remove(w)
+            }
+            throw e
+        }
+    }
+
+    private fun release() {
+        synchronized(lock) {
+            val next = queue.poll()
+            if (next == null)
+                busy = false
+            else {
+                next.granted = true
+                next.grant.complete(Unit)
+            }
+        }
+    }
+
+    /**
+     * Run an operation
+     * @param priority          priority of the operation
+     * @param timeoutMillis     deadline of the operation, including time in queue
+     * @param op                the operation: issue it and await its callback
+     * @return                  result of the operation, or null if the deadline is missed
+     *                          or the operation is given up by `cancelAll`
+     */
+    suspend fun <T> execute(priority: Int, timeoutMillis: Long, op: suspend () -> T): T? {
+        val enqueued = System.nanoTime()
+        var started = 0L
+        var closed = false
+        val r = try {
+            withTimeoutOrNull(timeoutMillis) {
+                acquire(priority)
+                started = System.nanoTime()
+                try {
+                    op()
+                } finally {
+                    release()
+                }
+            }
+        } catch (e: ClosedException) {
+            // removed from the queue by `cancelAll`, so never granted
+            closed = true
+            null
+        }
+        val now = System.nanoTime()
+        synchronized(lock) {
+            val c = counters[priority]
+            c.ops++
+            if (started > 0) {
+                c.waitNanos += started - enqueued
+                c.maxWaitNanos = maxOf(c.maxWaitNanos, started - enqueued)
+                c.serviceNanos += now - started
+                c.maxServiceNanos = maxOf(c.maxServiceNanos, now - started)
+            } else {
+                c.waitNanos += now - enqueued
+                c.maxWaitNanos = maxOf(c.maxWaitNanos, now - enqueued)
+            }
+            if ((r == null) && !closed) c.timeouts++
+        }
+        return r
+    }
+
+    /**
+     * Give up all waiting operations, e.g. when the connection is closed
+     */
+    fun cancelAll() {
+        synchronized(lock) {
+            while (true) {
+                val w = queue.poll() ?: break
+                w.grant.completeExceptionally(ClosedException())
+            }
+        }
+    }
+
+    /**
+     * @param priority          priority of the operations
+     * @return                  statistics of operations of the priority
+     */
+    fun stats(priority: Int): Stats {
+        synchronized(lock) {
+            return counters[priority].snapshot()
+        }
+    }
+}
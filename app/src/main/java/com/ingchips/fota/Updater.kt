@@ -3,14 +3,23 @@ package com.ingchips.fota
 import android.bluetooth.BluetoothDevice
 import android.bluetooth.BluetoothGatt
 import android.bluetooth.BluetoothGattCharacteristic
+import android.os.Build
 import android.util.Log
 import kotlinx.coroutines.*
-import java.lang.System.arraycopy
-import java.util.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ClosedSendChannelException
+import java.io.File
+import java.io.IOException
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * This class is the OTA executor, which takes in an `PlanBuilder.Plan` to `doUpdate`.
  *
+ * It connects the device over BLE and runs a `FotaSession` on a `BLEDriver`.
+ *
  * Usage:
  *
  * 1. Create an instance of this class in a new `Thread`;
@@ -20,97 +29,350 @@ class Updater
 /**
  * Create an instance
  * @param device            device to be connected and updated
- * @param showProgress      callback to show message and progress
- * @param onPrepared        callback when everything is ready
+ * @param onProgress        callback of progress (@see progress), including `READY` when
+ *                          everything is ready; it runs on the UI thread
  * @param runUiFunc         tool function for executing code on UI thread
  */(
     private var device: BluetoothDevice,
-    showProgress: ProgressMsg,
-    onPrepared: OnStepListener,
+    onProgress: UpdateProgress.Listener,
     updateTopPromptSecure: UpdateTopPromptSecure,
     runUiFunc: GeneralFuncRunner,
     navBackToFirstFragment: GeneralFunc
 ) {
-    private val SERVICE_NAME = "INGChips FOTA Service"
-    private val GUID_SERVICE = "3345c2f0-6f36-45c5-8541-92f56728d5f3"
-    private val GUID_CHAR_OTA_VER = "3345c2f1-6f36-45c5-8541-92f56728d5f3"
-    private val GUID_CHAR_OTA_CTRL = "3345c2f2-6f36-45c5-8541-92f56728d5f3"
-    private val GUID_CHAR_OTA_DATA = "3345c2f3-6f36-45c5-8541-92f56728d5f3"
-    private val GUID_CHAR_OTA_PUBKEY = "3345c2f4-6f36-45c5-8541-92f56728d5f3"
-
-    private val  OTA_CTRL_STATUS_DISABLED: Byte = 0
-    private val  OTA_CTRL_STATUS_OK: Byte = 1
-    private val  OTA_CTRL_STATUS_ERROR: Byte = 2
-    private val  OTA_CTRL_STATUS_WAIT_DATA: Byte = 3
-
-    private val  OTA_CTRL_START: Byte = (0xAA).toByte() // param: no
-    private val  OTA_CTRL_PAGE_BEGIN: Byte = (0xB0).toByte() // param: page address, following DATA contains the data
-    private val  OTA_CTRL_PAGE_END: Byte = (0xB1).toByte() // param: no
-    private val  OTA_CTRL_READ_PAGE: Byte = (0xC0).toByte() // param: page address
-    private val  OTA_CTRL_SWITCH_APP: Byte = (0xD0).toByte() // param: no
-    private val  OTA_CTRL_METADATA: Byte = (0xE0).toByte() // param: ota_meta_t
-    private val  OTA_CTRL_REBOOT: Byte = (0xFF).toByte() // param: no
-
-    private val  MAX_RETRY = 3
-    private val  WAIT_BETWEEN_MTU: Long = 10
-    private val  WAIT_BETWEEN_PAGE: Long = 80
-
-    class Version {
-        private val major: Int
-        private val minor: Int
-        private val patch: Int
-
-        constructor(major: Int, minor: Int, patch: Int) {
-            this.major = major
-            this.minor = minor
-            this.patch = patch
+    companion object {
+        private const val SERVICE_NAME = "INGChips FOTA Service"
+        private const val GUID_SERVICE = "3345c2f0-6f36-45c5-8541-92f56728d5f3"
+        private const val GUID_CHAR_OTA_VER = "3345c2f1-6f36-45c5-8541-92f56728d5f3"
+        private const val GUID_CHAR_OTA_CTRL = "3345c2f2-6f36-45c5-8541-92f56728d5f3"
+        private const val GUID_CHAR_OTA_DATA = "3345c2f3-6f36-45c5-8541-92f56728d5f3"
+        private const val GUID_CHAR_OTA_PUBKEY = "3345c2f4-6f36-45c5-8541-92f56728d5f3"
+
+        // min time between two progress updates of the UI
+        private const val UI_INTERVAL: Long = 100
+
+        /**
+         * Tune the link for transfer: high connection priority, and LE 2M PHY if both
+         * sides support it
+         * @param mtu           negotiated ATT MTU
+         */
+        private suspend fun tuneLink(gatt: BluetoothGatt, mtu: Int): LinkInfo {
+            val high = BLEUtil.requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH)
+            var phy: GattConnection.PhyEvent? = null
+            if (BLEUtil.isLe2MPhySupported() && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O))
+                phy = BLEUtil.setPreferredPhy(gatt, BluetoothDevice.PHY_LE_2M_MASK)
+            return LinkInfo(phy?.txPhy ?: BluetoothDevice.PHY_LE_1M, phy?.rxPhy ?: BluetoothDevice.PHY_LE_1M, mtu,
+                if (high) BluetoothGatt.CONNECTION_PRIORITY_HIGH else BluetoothGatt.CONNECTION_PRIORITY_BALANCED)
         }
 
-        private fun unsignedbyte(b: Byte): Int {
-            return if (b < 0) 256 + b else b.toInt()
+        /**
+         * Connect a device, tune the link (@see tuneLink) and discover INGChips FOTA Service
+         * @param device        the device
+         * @param timings       durations of connect, MTU, tune and discover are added to it
+         * @param showMsg       callback to show message
+         * @return              the transport, or null on failure
+         */
+        suspend fun openDriver(device: BluetoothDevice, timings: StepTimings = StepTimings(),
+                               showMsg: (String) -> Unit): BLEDriver? {
+            showMsg("connecting to " + device.address + " ...")
+            val gatt = timings.measure("connect") { BLEUtil.connect(device) }
+            if (gatt == null) {
+                showMsg("connection failed")
+                return null
+            }
+            val mtu: Int
+            val link: LinkInfo
+            try {
+                mtu = timings.measure("MTU") { BLEUtil.requestMtu(gatt,512) } - 3
+                link = timings.measure("tune") { tuneLink(gatt, mtu + 3) }
+                showMsg("link: $link")
+
+                timings.measure("discover") { BLEUtil.discover(gatt) }
+            } catch (e: CancellationException) {
+                // nobody else holds the connection yet
+                BLEUtil.release(gatt)
+                gatt.disconnect()
+                gatt.close()
+                throw e
+            }
+
+            val chars = BLEUtil.getCharacteristics(
+                gatt,
+                GUID_SERVICE, arrayOf(
+                    GUID_CHAR_OTA_VER,
+                    GUID_CHAR_OTA_CTRL,
+                    GUID_CHAR_OTA_DATA,
+                    GUID_CHAR_OTA_PUBKEY
+                )
+            )
+
+            if (!chars.containsKey(GUID_CHAR_OTA_VER)
+                || !chars.containsKey(GUID_CHAR_OTA_CTRL)
+                || !chars.containsKey(GUID_CHAR_OTA_DATA)
+            ) {
+                showMsg("$SERVICE_NAME is not available")
+                gatt.disconnect()
+                gatt.close()
+                return null
+            }
+
+            showMsg("$SERVICE_NAME discovered.")
+
+            return BLEDriver(gatt, chars[GUID_CHAR_OTA_CTRL]!!, chars[GUID_CHAR_OTA_DATA]!!,
+                chars[GUID_CHAR_OTA_VER]!!, chars[GUID_CHAR_OTA_PUBKEY], mtu, link)
         }
 
-        constructor(bytes: ByteArray, offset: Int) {
-            major = unsignedbyte(bytes[offset + 0]) + (unsignedbyte(bytes[offset + 1]) shl 8)
-            minor = unsignedbyte(bytes[offset + 2])
-            patch = unsignedbyte(bytes[offset + 3])
+        /**
+         * Label metrics with the phone and the link of a driver
+         */
+        fun labelLink(metrics: SessionMetrics, driver: BLEDriver) {
+            metrics.label("phone", "${Build.MANUFACTURER} ${Build.MODEL}")
+            metrics.label("android", Build.VERSION.RELEASE)
+            metrics.label("secure", driver.hasPubKey.toString())
+            metrics.label("mtu", driver.mtu.toString())
+            metrics.label("phy", driver.link.phyText)
         }
 
-        fun compare(b: Version): Int {
-            var r = major - b.major
-            if (r == 0) r = minor - b.minor
-            if (r == 0) r = patch - b.patch
-            return r
+        /**
+         * Write a report of a run as `<time>-<device>.json` (@see SessionMetrics.toJson)
+         * and `<time>-<device>.txt` (@see SessionMetrics.toOpenMetrics)
+         * @param dir           directory of reports
+         * @param address       address of the device
+         * @param result        result of the run, e.g. "ok"
+         */
+        suspend fun exportMetrics(dir: File, address: String, metrics: SessionMetrics, result: String) {
+            metrics.label("result", result)
+            val name = SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(Date()) + "-" +
+                    address.replace(":", "")
+            withContext(Dispatchers.IO) {
+                try {
+                    dir.mkdirs()
+                    File(dir, "$name.json").writeText(metrics.toJson())
+                    File(dir, "$name.txt").writeText(metrics.toOpenMetrics())
+                } catch (e: IOException) {
+                    Log.w("Updater", "failed to write metrics", e)
+                }
+            }
         }
+    }
+
+    /**
+     * Link parameters negotiated by `openDriver`
+     *
+     * Android reports neither the connection interval nor the data length, so the interval
+     * is the range documented for the priority, and Data Length Extension is assumed on
+     * 2M PHY, i.e. with Bluetooth 5 on both sides.
+     */
+    data class LinkInfo(val txPhy: Int, val rxPhy: Int, val mtu: Int, val priority: Int) {
+        val dataLength: Int
+            get() = if (txPhy == BluetoothDevice.PHY_LE_2M) 251 else 27
+
+        val intervalText: String
+            get() = when (priority) {
+                BluetoothGatt.CONNECTION_PRIORITY_HIGH -> "11.25-15 ms"
+                BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER -> "100-125 ms"
+                else -> "30-50 ms"
+            }
+
+        private fun phyName(phy: Int): String = when (phy) {
+            BluetoothDevice.PHY_LE_2M -> "2M"
+            BluetoothDevice.PHY_LE_CODED -> "Coded"
+            else -> "1M"
+        }
+
+        val phyText: String
+            get() = "${phyName(txPhy)}/${phyName(rxPhy)}"
 
         override fun toString(): String {
-            return if (major >= 0) String.format("%d.%d.%d", major, minor, patch) else "∞"
+            return "PHY $phyText, MTU $mtu, interval $intervalText"
         }
     }
 
-    class ProductVersion (var platform: Version, var app: Version)
-
+    /**
+     * `OtaTransport` on GATT
+     *
+     * When `writeWithoutResponse` is on and the data characteristic supports it, data is
+     * written with `WRITE_TYPE_NO_RESPONSE` by a background writer, with at most `window`
+     * chunks in flight; otherwise, each chunk is an acknowledged write.
+     */
     class BLEDriver (
-        private val gatt: BluetoothGatt, private val chCtrl: BluetoothGattCharacteristic,
-        private val chData: BluetoothGattCharacteristic
-    ) {
+        val gatt: BluetoothGatt, private val chCtrl: BluetoothGattCharacteristic,
+        private val chData: BluetoothGattCharacteristic,
+        private val chVer: BluetoothGattCharacteristic,
+        private val chPubKey: BluetoothGattCharacteristic?,
+        override val mtu: Int,
+        link: LinkInfo,
+        private val window: Int = DEFAULT_WINDOW
+    ) : OtaTransport {
+
+        companion object {
+            const val DEFAULT_WINDOW = 8
+        }
 
-        suspend fun WriteCtrl(bytes: ByteArray): Boolean {
+        private val canWriteWithoutResponse =
+            (chData.properties and BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0
+
+        var writeWithoutResponse = true
+
+        var link = link
+            private set
+
+        override val dataLength: Int
+            get() = link.dataLength
+
+        /**
+         * Switch between high connection priority, for transfer, and the default one
+         */
+        suspend fun setHighPriority(on: Boolean) {
+            val priority = if (on) BluetoothGatt.CONNECTION_PRIORITY_HIGH else BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+            if ((priority != link.priority) && BLEUtil.requestConnectionPriority(gatt, priority))
+                link = link.copy(priority = priority)
+        }
+
+        private val scope = CoroutineScope(Dispatchers.IO)
+        private var pipe: DataPipe? = null
+
+        /**
+         * Chunks written by a single writer coroutine, each waiting for the write callback
+         * before the next one is issued, so the channel bounds the chunks in flight.
+         *
+         * If the writer ends (e.g. cancelled by `close`, or a write throws), the pipe is
+         * failed for good, and nothing is left pending.
+         */
+        private inner class DataPipe {
+            private val queue = Channel<ByteArray>(window - 1)
+            private val pending = AtomicInteger(0)
+            private val idle = Channel<Unit>(Channel.CONFLATED)
+            @Volatile private var failed = false
+            @Volatile private var stopped = false
+
+            init {
+                scope.launch {
+                    try {
+                        for (d in queue) {
+                            try {
+                                if (!failed && !BLEUtil.writeCharacteristics(gatt, chData, d,
+                                        BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE,
+                                        GattScheduler.PRIORITY_DATA))
+                                    failed = true
+                            } finally {
+                                if (pending.decrementAndGet() == 0)
+                                    idle.trySend(Unit)
+                            }
+                        }
+                    } finally {
+                        stopped = true
+                        queue.close()
+                        pending.set(0)
+                        idle.trySend(Unit)
+                    }
+                }
+            }
+
+            suspend fun write(d: ByteArray): Boolean {
+                if (failed || stopped) return false
+                pending.incrementAndGet()
+                try {
+                    queue.send(d)
+                } catch (e: ClosedSendChannelException) {
+                    pending.decrementAndGet()
+                    return false
+                }
+                return true
+            }
+
+            suspend fun flush(): Boolean {
+                while (pending.get() > 0) {
+                    // each write completes, or is given up, within `OP_TIMEOUT`
+                    if (withTimeoutOrNull(BLEUtil.OP_TIMEOUT) { idle.receive() } == null) {
+                        failed = true
+                        return false
+                    }
+                }
+                val r = !failed && !stopped
+                failed = false
+                return r
+            }
+
+            fun close() {
+                queue.close()
+            }
+        }
+
+        override val hasPubKey: Boolean
+            get() = chPubKey != null
+
+        override val isDataPipelined: Boolean
+            get() = writeWithoutResponse && canWriteWithoutResponse
+
+        // GATT operations are not to be interleaved with pipelined data
+        private suspend fun flush(): Boolean {
+            return pipe?.flush() ?: true
+        }
+
+        override suspend fun WriteCtrl(bytes: ByteArray): Boolean {
+            if (!flush()) return false
+            BLEUtil.discardNotifications(gatt, chCtrl)
             return BLEUtil.writeCharacteristics(gatt, chCtrl, bytes)
         }
 
-        suspend fun ReadCtrl(): ByteArray? {
-            val r = BLEUtil.readCharacteristics(gatt, chCtrl)
-            return if (r) chCtrl.value!! else null
+        override suspend fun ReadCtrl(): ByteArray? {
+            if (!flush()) return null
+            return BLEUtil.readCharacteristics(gatt, chCtrl)
         }
 
-        suspend fun WriteData(bytes: ByteArray): Boolean {
-            return BLEUtil.writeCharacteristics(gatt, chData, bytes)
+        override suspend fun SubscribeCtrl(): Boolean {
+            if (!flush()) return false
+            return BLEUtil.enableNotification(gatt, chCtrl)
         }
-    }
 
-    interface ProgressMsg {
-        fun onProgressMsg(progress: Int, msg: String?)
+        override suspend fun AwaitCtrl(timeoutMillis: Long): ByteArray? {
+            return BLEUtil.awaitNotification(gatt, chCtrl, timeoutMillis)
+        }
+
+        override suspend fun WriteData(bytes: ByteArray): Boolean {
+            if (!isDataPipelined) {
+                if (!flush()) return false
+                return BLEUtil.writeCharacteristics(gatt, chData, bytes,
+                    priority = GattScheduler.PRIORITY_DATA)
+            }
+            if (pipe == null) pipe = DataPipe()
+            return pipe!!.write(bytes)
+        }
+
+        override suspend fun FlushData(): Boolean {
+            return flush()
+        }
+
+        override suspend fun ReadData(): ByteArray? {
+            if ((chData.properties and BluetoothGattCharacteristic.PROPERTY_READ) == 0) return null
+            if (!flush()) return null
+            return BLEUtil.readCharacteristics(gatt, chData)
+        }
+
+        override suspend fun ReadVersion(): ByteArray? {
+            if (!flush()) return null
+            return BLEUtil.readCharacteristics(gatt, chVer)
+        }
+
+        override suspend fun ReadPubKey(): ByteArray? {
+            if (!flush()) return null
+            if (chPubKey == null) return null
+            return BLEUtil.readCharacteristics(gatt, chPubKey)
+        }
+
+        override suspend fun WritePubKey(bytes: ByteArray): Boolean {
+            if (!flush()) return false
+            if (chPubKey == null) return false
+            return BLEUtil.writeCharacteristics(gatt, chPubKey, bytes)
+        }
+
+        override fun close() {
+            pipe?.close()
+            scope.cancel()
+            BLEUtil.release(gatt)
+            gatt.disconnect()
+            gatt.close()
+        }
     }
 
     interface GeneralFuncRunner {
@@ -125,32 +387,63 @@ class Updater
         fun func()
     }
 
-    private var keyUtils: KeyUtils =
-        KeyUtils()
-    private var showProgress: ProgressMsg? = showProgress
-    private var ready = false
+    /**
+     * Whether the version is confirmed, i.e. `progress` has been `READY`
+     */
+    var isReady = false
+        private set
     private var gatt: BluetoothGatt? = null
-    var devVer: ProductVersion? = null
-    private var onPrepared: OnStepListener? = onPrepared
+
+    /**
+     * Version of the device, known when ready
+     */
+    val devVer: ProductVersion?
+        get() = session?.devVer
     private var updateTopPromptSecure: UpdateTopPromptSecure? = updateTopPromptSecure
     private var runUi: GeneralFuncRunner? = runUiFunc
     private var navBack: GeneralFunc? = navBackToFirstFragment
+    private var session: FotaSession? = null
+
+    /**
+     * Current pacing of the data path, null if not connected
+     */
+    val pacingState: PacingPolicy.State?
+        get() = session?.pacing?.state
+
+    /**
+     * Statistics of GATT operations, null if not connected
+     * @param priority      priority of the operations (@see GattScheduler.PRIORITY_CONTROL)
+     */
+    fun gattStats(priority: Int): GattScheduler.Stats? {
+        val d = driver ?: return null
+        return BLEUtil.statsOf(d.gatt, priority)
+    }
     private var driver: BLEDriver? = null
-    private var mtu: Int = 0
-    private var totalBytes: Int = 0
-    private var currentBytes: Int = 0
-    private var isSecureOTA: Boolean = false
-    private fun setCurrentBytes(value: Int) {
-        currentBytes = value
-        updateProgress()
+
+    /**
+     * Write data without response when the device supports it (default: on)
+     */
+    var writeWithoutResponse: Boolean = true
+        set(value) {
+            field = value
+            driver?.writeWithoutResponse = value
+        }
+
+    /**
+     * Progress of the update, also the listener of the session
+     */
+    val progress = ProgressTracker()
+
+    private val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+
+    // UI gets conflated snapshots, so a fast transfer does not flood the main looper;
+    // stopped along with `scope` by `abort`
+    init {
+        progress.deliver(scope, UI_INTERVAL, { runUi?.run(it) }, onProgress)
     }
 
     private fun showMsg(s: String) {
-        if ((runUi != null) && (showProgress != null)) {
-            runUi!!.run(Runnable {
-                    showProgress!!.onProgressMsg(-1, s)
-            })
-        }
+        progress.onMessage(s)
     }
 
     private fun updateSecurePrompt(b: Boolean) {
@@ -161,15 +454,6 @@ class Updater
         }
     }
 
-    private fun updateProgress() {
-        if ((runUi != null) && (showProgress != null)) {
-            runUi!!.run(Runnable {
-                val prog = 100 * currentBytes  / totalBytes
-                showProgress!!.onProgressMsg(prog, null)
-            })
-        }
-    }
-
     private fun toFirstFragment() {
         if ((runUi != null) && (navBack != null)) {
             runUi!!.run(Runnable {
@@ -178,334 +462,140 @@ class Updater
         }
     }
 
-    interface OnStepListener {
-        fun onSetp(updater: Updater?)
-    }
+    /**
+     * Durations of the steps from connecting to version confirmed
+     */
+    val timings = StepTimings()
+
+    /**
+     * Counters and latencies of this session, including `timings`
+     */
+    val metrics = SessionMetrics()
+
+    /**
+     * Directory where a report of each run is written, null for none
+     *
+     * Each run writes `<time>-<device>.json` (@see SessionMetrics.toJson) and
+     * `<time>-<device>.txt` (@see SessionMetrics.toOpenMetrics).
+     */
+    var metricsDir: File? = null
 
+    // `prepare` runs here, so properties used by it are declared above
     init {
         prepare()
     }
 
     private fun callOnPrepared() {
         showMsg("version confirmed")
+        Log.i("Updater", "setup: $timings")
 
-        if ((runUi != null) && (onPrepared != null)) {
-            runUi!!.run(java.lang.Runnable {
-                onPrepared!!.onSetp(this)
-            })
-        }
+        for (s in timings.steps)
+            metrics.observe("setup_" + s.name.replace(' ', '_'), (s.millis * 1e6).toLong())
+        metrics.label("device_version", "${devVer?.platform} ${devVer?.app}")
     }
 
     private fun prepare() = runBlocking {
-        // let UI update
-        delay(50)
         BLEUtil.reset()
-        //delay(1000)
         prepare0()
     }
 
     /**
-     * Disconnect device
+     * Disconnect device, and stop the data writer and progress delivery
      */
     fun abort() {
-        if (gatt != null) {
-            gatt!!.disconnect()
-            gatt!!.close()
-            gatt = null
-        }
-    }
-
-    /**
-     * Exchange the session key
-     */
-    private suspend fun exchangeKey(chPubKey: BluetoothGattCharacteristic): Boolean {
-        if (!BLEUtil.readCharacteristics(gatt!!, chPubKey)) {
-            return false;
-        }
-        val pk = chPubKey!!.value
-        keyUtils.peer_pk = pk
-
-        val sig = keyUtils.signData(keyUtils.root_sk, keyUtils.session_pk)
-        if (!BLEUtil.writeCharacteristics(gatt!!, chPubKey, keyUtils.session_pk + sig))
-            return false
-        val r = ReadStatus() != OTA_CTRL_STATUS_ERROR
-        if (r)
-        {
-            keyUtils.shared_secret = KeyUtils.getSharedSecret(keyUtils.session_sk, keyUtils.peer_pk);
-            keyUtils.xor_key = KeyUtils.SHA256(keyUtils.shared_secret);
-            keyUtils.is_secure_fota = true;
-        }
-        return r;
+        scope.cancel()
+        val d = driver
+        driver = null
+        gatt = null
+        d?.close()
     }
 
     private suspend fun prepare0() {
-        showMsg("connecting to " + device.address + " ...")
-        gatt = BLEUtil.connect(device)
-        if (gatt == null) {
-            showMsg("connection failed")
+        val driver = openDriver(device, timings) { showMsg(it) }
+        if (driver == null) {
+            progress.setPhase(UpdateProgress.Phase.FAILED)
             return
         }
-        mtu = BLEUtil.requestMtu(gatt!!,512) - 3
-
-        BLEUtil.discover(gatt!!)
+        gatt = driver.gatt
+        // owned from now on, so that `abort` closes it
+        this.driver = driver
 
-        val chars = BLEUtil.getCharacteristics(
-            gatt!!,
-            GUID_SERVICE, arrayOf(
-                GUID_CHAR_OTA_VER,
-                GUID_CHAR_OTA_CTRL,
-                GUID_CHAR_OTA_DATA,
-                GUID_CHAR_OTA_PUBKEY
-            )
-        )
-
-        if (!chars.containsKey(GUID_CHAR_OTA_VER)
-            || !chars.containsKey(GUID_CHAR_OTA_CTRL)
-            || !chars.containsKey(GUID_CHAR_OTA_DATA)
-        ) {
-            showMsg("$SERVICE_NAME is not available")
-            return
-        }
-        if (chars.containsKey(GUID_CHAR_OTA_PUBKEY)) {
+        if (driver.hasPubKey) {
             updateSecurePrompt(true);
             showMsg("Secure FOTA")
-            isSecureOTA = true;
         } else {
             updateSecurePrompt(false);
             showMsg("Unsecure FOTA")
-            isSecureOTA = false;
         }
 
-        driver = BLEDriver(gatt!!, chars[GUID_CHAR_OTA_CTRL]!!, chars[GUID_CHAR_OTA_DATA]!!)
-
-        showMsg("$SERVICE_NAME discovered.")
-
-        if (isSecureOTA) {
-            showMsg("exchange session key ...")
-            if (!exchangeKey(chars[GUID_CHAR_OTA_PUBKEY]!!)) {
-                showMsg("failed to exchange session key")
-                return
-            }
-        }
+        driver.writeWithoutResponse = writeWithoutResponse
 
-        val ver = chars[GUID_CHAR_OTA_VER]
-        showMsg("query current version ...")
+        labelLink(metrics, driver)
 
-        if (!BLEUtil.readCharacteristics(gatt!!, ver)) {
-            showMsg("failed to query version")
+        // a key of the device is kept until its update is complete, so signatures are reused
+        session = FotaSession(driver, progress,
+            if (driver.hasPubKey) SessionKeyPool.SHARED.takeFor(device.address) else null)
+        session!!.timings = timings
+        session!!.metrics = metrics
+        if (!session!!.prepare())
             return
-        }
-
-        val b = ver!!.value
-
-        devVer = ProductVersion(Version(b, 0), Version(b, 4))
 
+        // idle until the plan comes
+        driver.setHighPriority(false)
         callOnPrepared()
 
-        ready = true
-    }
-
-    private suspend fun ReadStatus(): Byte {
-        val r = driver!!.ReadCtrl()
-        if ((r == null) || (r.isEmpty()))
-            return OTA_CTRL_STATUS_ERROR
-        return r[0]
-    }
-
-    private suspend fun CheckDevStatus(): Boolean {
-        return ReadStatus() == OTA_CTRL_STATUS_OK
-    }
-
-    private suspend fun BurnPage(page: ByteArray, address: Long): Boolean {
-        if (isSecureOTA) {
-            return BurnPageSecure(page, address)
-        } else {
-            return BurnPageUnsrcure(page, address)
-        }
-    }
-
-    private suspend fun BurnPageUnsrcure(page: ByteArray, address: Long): Boolean {
-        var cmd = byteArrayOf(OTA_CTRL_PAGE_BEGIN, 0, 0, 0, 0)
-        Utils.writeU32LE(cmd, 1, address)
-        driver!!.WriteCtrl(cmd)
-        if (!CheckDevStatus()) return false
-
-        for (i in page.indices step mtu) {
-            var block = mtu
-            if (i + mtu > page.size) block = page.size - i
-            Log.d("BLE", "-->");
-            if (!driver!!.WriteData(page.copyOfRange(i, i + block))) {
-                Log.e("BLE", "FALSE")
-                return false
-            }
-            Log.d("BLE", "done")
-            setCurrentBytes(currentBytes + block)
-            delay(WAIT_BETWEEN_MTU)
-        }
-
-        cmd = byteArrayOf(OTA_CTRL_PAGE_END, 0, 0, 0, 0)
-        Utils.writeU16LE(cmd, 1, page.size.toLong())
-        Utils.writeU16LE(cmd, 3, Utils.crc(page).toLong())
-        driver!!.WriteCtrl(cmd)
-        delay(WAIT_BETWEEN_PAGE)
-
-        while (true) {
-            when (ReadStatus()) {
-                OTA_CTRL_STATUS_OK -> return true
-                OTA_CTRL_STATUS_ERROR -> return false
-                else -> {}
-            }
-        }
+        isReady = true
     }
 
-    private suspend fun BurnPageSecure(page: ByteArray, address: Long): Boolean {
-        val sig = keyUtils.signData(keyUtils.session_sk, page)
-
-        keyUtils.encrypt(page)
-
-        var cmd = byteArrayOf(OTA_CTRL_PAGE_BEGIN, 0, 0, 0, 0)
-        Utils.writeU32LE(cmd, 1, address)
-        driver!!.WriteCtrl(cmd)
-        if (!CheckDevStatus()) return false
-        Log.i("Updater", "page start")
-
-        for (i in page.indices step mtu) {
-            var block = mtu
-            if (i + mtu > page.size) block = page.size - i
-            Log.d("BLE", "-->");
-            if (!driver!!.WriteData(page.copyOfRange(i, i + block))) {
-                Log.e("BLE", "FALSE")
-                return false
-            }
-            Log.d("BLE", "done")
-            setCurrentBytes(currentBytes + block)
-            delay(WAIT_BETWEEN_MTU)
-        }
-
-        cmd = ByteArray(5 + sig.size)
-        cmd[0] = OTA_CTRL_PAGE_END
-        Utils.writeU16LE(cmd, 1, page.size.toLong())
-        Utils.writeU16LE(cmd, 3, Utils.crc(page).toLong())
-        arraycopy(sig, 0, cmd, 5, sig.size)
-        driver!!.WriteCtrl(cmd)
-        delay(WAIT_BETWEEN_PAGE)
-
-        Log.i("Updater", "page end")
-
-        while (true) {
-            when (ReadStatus()) {
-                OTA_CTRL_STATUS_OK -> return true
-                OTA_CTRL_STATUS_ERROR -> return false
-                else -> {}
-            }
-        }
-    }
-
-
-    private suspend fun BurnFile(item: UpdateItem, pageSize: Int): Boolean {
-        for (i in 0 until item.data.size step pageSize) {
-            var err = 0
-            var block = pageSize
-            if (i + pageSize > item.data.size) block = item.data.size - i
-            val page = Arrays.copyOfRange(item.data, i, i + block)
-            val backup = currentBytes
-
-            while (err < MAX_RETRY) {
-                showMsg(if (err == 0) "burn ${item.name} ..." else "burn ${item.name} (retry #${err} ...")
-
-                if (BurnPage(page.clone(), item.writeAddr + i)) {
-                    err = 0
-                    break
-                }
-                setCurrentBytes(backup)
-                err++
-            }
-
-            if (err > 0)
-                return false
-
-            updateProgress()
-        }
-
-        return true
-    }
-
-    private suspend fun BurnFiles(plan: PlanBuilder.Plan): Boolean {
-        for (f in plan.items)
-            if (!BurnFile(f, plan.pageSize)) return false
-        return true
-    }
-
-    private suspend fun BurnMetaData(item: UpdateItem, manualReboot: Boolean): Boolean {
-        if (isSecureOTA) {
-            return BurnMetaDataSecure(item, manualReboot);
-        } else {
-            return BurnMetaDataUnsecure(item, manualReboot);
-        }
-    }
-
-    private suspend fun BurnMetaDataUnsecure(item: UpdateItem, manualReboot: Boolean): Boolean {
-        showMsg("burn ${item.name}")
-
-        val cmd = ByteArray(1 + item.data.size)
-        cmd[0] = OTA_CTRL_METADATA
-        arraycopy(item.data, 0, cmd, 1, item.data.size)
-
-        if (!driver!!.WriteCtrl(cmd)) return false
-        return if (manualReboot) CheckDevStatus() else true
-    }
-
-    private suspend fun BurnMetaDataSecure(item: UpdateItem, manualReboot: Boolean): Boolean {
-        showMsg("burn ${item.name}")
-
-        val data = ByteArray(item.data.size - 2);
-        arraycopy(item.data, 2, data, 0, data.size)
-
-        var sig = keyUtils.signData(keyUtils.session_sk, data)
-
-        keyUtils.encrypt(data);
-
-        val cmd = ByteArray(1 + sig.size + 2 + data.size)
-        cmd[0] = OTA_CTRL_METADATA
-        arraycopy(sig, 0, cmd, 1, sig.size)
-        Utils.writeU16LE(cmd, 1 + sig.size,  Utils.crc(data).toLong())
-        arraycopy(data, 0, cmd, 1 + sig.size + 2, data.size)
-
-        if (!driver!!.WriteCtrl(cmd)) return false
-        return if (manualReboot) CheckDevStatus() else true
-    }
+    /**
+     * Skip pages already identical on the device (unsecure FOTA only)
+     */
+    var differential: Boolean = false
 
+    /**
+     * Journal for resuming interrupted updates, null to always start over
+     */
+    var journal: PageJournal? = null
 
     private suspend fun doUpdate2(plan: PlanBuilder.Plan) {
-        showMsg("enabling FOTA")
-        if (!driver!!.WriteCtrl(byteArrayOf(OTA_CTRL_START, 0, 0, 0, 0)) || !CheckDevStatus())
-            throw Exception("failed to enable FOTA")
-        showMsg("FOTA successfully enabled")
-        if (!BurnFiles(plan))
-            throw Exception("burn failed")
-        if (!BurnMetaData(plan.metaData, plan.manualReboot))
-            throw Exception("metadata failed")
-        showMsg("FOTA burn complete, reboot...")
-        if (plan.manualReboot)
-            driver!!.WriteCtrl(byteArrayOf( OTA_CTRL_REBOOT ))
-        //BLEUtil.disconnect(gatt!!.device)
-        abort()
+        session!!.differential = differential
+        if (journal != null) {
+            session!!.journal = journal
+            session!!.journalKey = PageJournal.keyOf(device.address, plan)
+        }
+        metrics.label("pacing", session!!.pacing.javaClass.simpleName)
+        metrics.label("write_without_response", driver?.isDataPipelined.toString())
+        metrics.label("differential", differential.toString())
+        driver?.setHighPriority(true)
+        metrics.label("interval", driver?.link?.intervalText ?: "")
+        val t = System.nanoTime()
+        session!!.doUpdate(plan)
+        SessionKeyPool.SHARED.complete(device.address)
+        metrics.observe("update", System.nanoTime() - t)
+        gatt = null
+        val r = System.nanoTime()
         delay(2000)
+        metrics.observe("reboot_delay", System.nanoTime() - r)
+        exportMetrics("ok")
         toFirstFragment()
     }
 
     private fun doUpdate1(plan: PlanBuilder.Plan) = runBlocking {
         try {
-            totalBytes = 0
-            currentBytes = 0
-            for (f in plan.items) totalBytes += f.data.size
-
             doUpdate2(plan)
         } catch (e: java.lang.Exception) {
             showMsg(e.message!!)
+            if (gatt != null)
+                driver?.setHighPriority(false)
+            exportMetrics("failed")
         }
     }
 
+    private suspend fun exportMetrics(result: String) {
+        val dir = metricsDir ?: return
+        exportMetrics(dir, device.address, metrics, result)
+    }
+
     /**
      * Do the update
      * @param plan          Update plan
@@ -519,7 +609,7 @@ class Updater
 
     private fun doSwitchApp1() = runBlocking {
         try {
-            driver!!.WriteCtrl(byteArrayOf(OTA_CTRL_SWITCH_APP));
+            session!!.doSwitchApp()
         } catch (e: java.lang.Exception) {
             showMsg(e.message!!)
         }
@@ -533,4 +623,4 @@ class Updater
             doSwitchApp1()
         }.start()
     }
-}
\ No newline at end of file
+}
@@ -1,26 +1,68 @@
 package com.ingchips.fota;
 
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Utilities
+ * CRC of a single page: the score is pages per second, and the `megabytes` counter
+ * gives the throughput in MB/s
  */
-public class Utils {
-    public static void writeU32LE(byte []buf, int offset, long value) {
-        buf[offset] = (byte)(value & 0xff);
-        buf[offset + 1] = (byte)((value >> 8) & 0xff);
-        buf[offset + 2] = (byte)((value >> 16) & 0xff);
-        buf[offset + 3] = (byte)((value >> 24) & 0xff);
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class CrcBenchmark {
+
+    @Param({"4096", "8192"})
+    int pageSize;
+
+    byte []page;
+
+    @Setup
+    public void setup() {
+        page = Fixtures.image(pageSize, pageSize);
+        if (legacyCrc(box(page)) != Utils.crc(page))
+            throw new IllegalStateException("legacy CRC differs");
+    }
+
+    @Benchmark
+    public int crc(Bytes b) {
+        b.megabytes += pageSize / 1e6;
+        return Utils.crc(page);
+    }
+
+    @Benchmark
+    public int crcIncremental(Crc16State s, Bytes b) {
+        b.megabytes += pageSize / 1e6;
+        for (int i = 0; i < page.length; i += 244)
+            s.crc.update(page, i, Math.min(244, page.length - i));
+        return s.crc.finish();
     }
 
-    public static void writeU16LE(byte []buf, int offset, long value) {
-        buf[offset] = (byte)(value & 0xff);
-        buf[offset + 1] = (byte)((value >> 8) & 0xff);
+    /**
+     * Baseline: the implementation before `Crc16`, on a page boxed into a list
+     */
+    @Benchmark
+    public int crcBoxed(Bytes b) {
+        b.megabytes += pageSize / 1e6;
+        return legacyCrc(box(page));
     }
 
-    public static int byteAsU8(byte v) {
-        return v >= 0 ? v : 256 + v;
+    static private List<Byte> box(byte []data) {
+        List<Byte> r = new ArrayList<>();
+        for (byte b : data) r.add(b);
+        return r;
     }
 
     static private final int[] auchCRCHi = {
@@ -61,14 +103,13 @@ public class Utils {
             0x44, 0x84, 0x85, 0x45, 0x87, 0x47, 0x46, 0x86, 0x82, 0x42, 0x43, 0x83, 0x41, 0x81, 0x80, 0x40
     };
 
-    public static int crc(List<Byte> data)
-    {
+    // `Utils.crc(List<Byte>)` as it was
+    static private int legacyCrc(List<Byte> data) {
         int hi = 0xFF; /* high byte of CRC initialized */
         int lo = 0xFF; /* low byte of CRC initialized */
 
-        for (Byte v : data)
-        {
-            int x = byteAsU8(v);
+        for (Byte v : data) {
+            int x = v >= 0 ? v : 256 + v;
             int uIndex = hi ^ x; /* calculate the CRC */
             hi = lo ^ auchCRCHi[uIndex];
             lo = auchCRCLo[uIndex];
@@ -77,16 +118,22 @@ public class Utils {
         return (hi << 8 | lo);
     }
 
-    public static int crc(byte []data, int offset, int len)
-    {
-        List<Byte> l = new ArrayList<>();
-        for (int i = 0; i < len; i++)
-            l.add(data[i + offset]);
-        return crc(l);
+    /**
+     * Bytes processed, reported as a rate (MB/s)
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
     }
 
-    public static int crc(byte []data)
-    {
-        return crc(data, 0, data.length);
+    @State(Scope.Thread)
+    public static class Crc16State {
+        Crc16 crc = new Crc16();
     }
 }
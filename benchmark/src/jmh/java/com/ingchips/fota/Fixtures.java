@@ -0,0 +1,96 @@
+package com.ingchips.fota;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic images and packages used by the benchmarks
+ */
+class Fixtures {
+    static final int IMAGE_SIZE = 512 * 1024;
+    static final int BIN_SIZE = 16 * 1024;
+
+    /**
+     * Make a firmware-like image: code-like random bytes mixed with runs of zero padding
+     * @param size          size of the image
+     * @param seed          seed of the content
+     * @return              the image
+     */
+    static byte[] image(int size, long seed) {
+        Random rand = new Random(seed);
+        byte []r = new byte[size];
+        int i = 0;
+        while (i < size) {
+            int run = Math.min(size - i, 64 + rand.nextInt(2048));
+            if (rand.nextInt(4) != 0) {
+                byte []t = new byte[run];
+                rand.nextBytes(t);
+                System.arraycopy(t, 0, r, i, run);
+            }
+            i += run;
+        }
+        return r;
+    }
+
+    private static void put(ZipOutputStream zip, String name, byte []data, boolean deflated) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (!deflated) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static String binEntry(String name, long address) {
+        return String.format("{\"name\":\"%s\",\"address\":%d}", name, address);
+    }
+
+    /**
+     * Make an update package (a .zip archive) with platform, app and `extraBins` extra bins
+     * @param extraBins     number of extra bins
+     * @param deflated      DEFLATED or STORED entries
+     * @return              content of the archive
+     */
+    static byte[] packageZip(int extraBins, boolean deflated) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ZipOutputStream zip = new ZipOutputStream(out);
+
+            StringBuilder bins = new StringBuilder();
+            for (int i = 0; i < extraBins; i++) {
+                String name = "bin" + i + ".bin";
+                put(zip, name, image(BIN_SIZE, 100 + i), deflated);
+                if (i > 0) bins.append(',');
+                bins.append(binEntry(name, 0x2040000 + i * BIN_SIZE));
+            }
+
+            put(zip, "platform.bin", image(IMAGE_SIZE, 1), deflated);
+            put(zip, "app.bin", image(IMAGE_SIZE, 2), deflated);
+            put(zip, "readme", "synthetic package".getBytes(StandardCharsets.UTF_8), deflated);
+
+            String manifest = "{"
+                    + "\"platform\":{\"name\":\"platform.bin\",\"address\":16384,\"version\":[1,2,3]},"
+                    + "\"app\":{\"name\":\"app.bin\",\"address\":147456,\"version\":[2,0,0]},"
+                    + "\"entry\":16384,"
+                    + "\"bins\":[" + bins + "]"
+                    + "}";
+            put(zip, "manifest.json", manifest.getBytes(StandardCharsets.UTF_8), deflated);
+
+            zip.close();
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
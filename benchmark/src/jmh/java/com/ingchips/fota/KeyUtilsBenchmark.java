@@ -0,0 +1,81 @@
+package com.ingchips.fota;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crypto used by secure FOTA
+ *
+ * Page-level benchmarks work on a single page, so their scores are pages per second,
+ * and `gc.alloc.rate.norm` is the allocation per page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class KeyUtilsBenchmark {
+
+    @Param({"4096", "8192"})
+    int pageSize;
+
+    byte []page;
+    KeyUtils keyUtils;
+    KeyUtils peer;
+
+    @Setup
+    public void setup() {
+        page = Fixtures.image(pageSize, pageSize);
+        keyUtils = new KeyUtils();
+        peer = new KeyUtils();
+        keyUtils.peer_pk = peer.session_pk;
+        keyUtils.shared_secret = KeyUtils.getSharedSecret(keyUtils.session_sk, keyUtils.peer_pk);
+        keyUtils.xor_key = KeyUtils.SHA256(keyUtils.shared_secret);
+    }
+
+    @Benchmark
+    public byte[] sha256() {
+        return KeyUtils.SHA256(page);
+    }
+
+    @Benchmark
+    public byte[] signData() {
+        return keyUtils.signData(keyUtils.session_sk, page);
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        keyUtils.encrypt(page);
+        return page;
+    }
+
+    /**
+     * All CPU work of `BurnPageSecure` for one page: copy, sign, encrypt and CRC
+     */
+    @Benchmark
+    public int securePage() {
+        byte []p = page.clone();
+        byte []sig = keyUtils.signData(keyUtils.session_sk, p);
+        keyUtils.encrypt(p);
+        return Utils.crc(p) + sig[0];
+    }
+
+    @Benchmark
+    public byte[] getSharedSecret() {
+        return KeyUtils.getSharedSecret(keyUtils.session_sk, keyUtils.peer_pk);
+    }
+
+    /**
+     * Session key pair generation, done each time an `Updater` is created
+     */
+    @Benchmark
+    public KeyUtils newSession() {
+        return new KeyUtils();
+    }
+}
@@ -0,0 +1,96 @@
+package com.ingchips.fota;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a package with 512 KB platform & app plus `extraBins` bins, and making a plan for it
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class PackageBenchmark {
+
+    @Param({"0", "16", "64"})
+    int extraBins;
+
+    @Param({"false", "true"})
+    boolean deflated;
+
+    byte []zip;
+    File file;
+    UpdatePackage pack;
+    ProductVersion devVersion = new ProductVersion(new Version(0, 0, 0), new Version(0, 0, 0));
+
+    @Setup
+    public void setup() throws IOException {
+        zip = Fixtures.packageZip(extraBins, deflated);
+        file = File.createTempFile("package", ".zip");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(zip);
+        }
+        pack = UpdatePackage.LoadFromStream(new ByteArrayInputStream(zip));
+        if (pack == null)
+            throw new IllegalStateException("bad package");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public UpdatePackage loadFromStream() {
+        return UpdatePackage.LoadFromStream(new ByteArrayInputStream(zip));
+    }
+
+    /**
+     * Ingesting a downloaded package of known length, then loading it lazily
+     */
+    @Benchmark
+    public UpdatePackage loadFromSink() throws IOException {
+        ByteSink sink = ByteSink.readFully(new ByteArrayInputStream(zip), zip.length);
+        return UpdatePackage.LoadFromBuffer(sink.toByteBuffer());
+    }
+
+    /**
+     * Lazy loading: only the central directory and manifest are read
+     */
+    @Benchmark
+    public UpdatePackage loadFromFile() {
+        return UpdatePackage.LoadFromFile(file);
+    }
+
+    /**
+     * Lazy loading, then reading the app page by page as `FotaSession` does
+     */
+    @Benchmark
+    public int loadFromFileAndReadApp() throws IOException {
+        UpdatePackage p = UpdatePackage.LoadFromFile(file);
+        int r = 0;
+        for (int i = 0; i < p.app.size(); i += 4096)
+            r += p.app.read(i, Math.min(4096, p.app.size() - i)).get(0);
+        return r;
+    }
+
+    @Benchmark
+    public PlanBuilder.Plan makeFlashProcedure() {
+        PlanBuilder.Plan plan = PlanBuilder.fromPackage(pack, devVersion);
+        PlanBuilder.makeFlashProcedure(plan, PlanBuilder.CHIP_SERIES_ING9168XX,
+                PlanBuilder.getFlashTopAddress(PlanBuilder.CHIP_SERIES_ING9168XX));
+        return plan;
+    }
+}
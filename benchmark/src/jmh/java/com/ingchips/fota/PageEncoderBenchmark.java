@@ -0,0 +1,76 @@
+package com.ingchips.fota;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a whole image into chunks as in secure FOTA (copy, encryption, CRC),
+ * i.e. the score is images per second; run with `-prof gc` for allocation per image.
+ *
+ * `legacy` is the path used before `PageEncoder`: a copy of each page, another one
+ * to encrypt, and a copy for each chunk.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class PageEncoderBenchmark {
+    static final int CHUNK = 244;
+
+    @Param({"8192"})
+    int pageSize;
+
+    UpdateItem item;
+    KeyUtils keyUtils;
+    PageEncoder encoder = new PageEncoder();
+    BufferPool pagePool = new BufferPool(4, 4);
+    BufferPool chunkPool = new BufferPool(4, 64);
+    ArrayList<byte[]> chunks = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        item = new UpdateItem("app.bin", Fixtures.image(Fixtures.IMAGE_SIZE, 1));
+        keyUtils = new KeyUtils();
+        keyUtils.xor_key = KeyUtils.SHA256(keyUtils.session_pk);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) throws IOException {
+        for (int off = 0; off < item.size(); off += pageSize) {
+            byte []page = item.copyOfRange(off, Math.min(pageSize, item.size() - off));
+            byte []data = page.clone();
+            keyUtils.encrypt(data);
+            bh.consume(Crc16.compute(data, 0, data.length));
+            for (int i = 0; i < data.length; i += CHUNK)
+                bh.consume(java.util.Arrays.copyOfRange(data, i, Math.min(data.length, i + CHUNK)));
+        }
+    }
+
+    @Benchmark
+    public void fused(Blackhole bh) throws IOException {
+        for (int off = 0; off < item.size(); off += pageSize) {
+            int size = Math.min(pageSize, item.size() - off);
+            byte []page = pagePool.acquire(size);
+            bh.consume(encoder.encode(item.read(off, size), page, keyUtils.xor_key));
+            chunks.clear();
+            for (int i = 0; i < size; i += CHUNK) {
+                byte []c = chunkPool.acquire(Math.min(CHUNK, size - i));
+                System.arraycopy(page, i, c, 0, c.length);
+                chunks.add(c);
+                bh.consume(c);
+            }
+            for (byte []c : chunks) chunkPool.release(c);
+            pagePool.release(page);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ingchips.fota;
+
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.asn1.nist.NISTNamedCurves;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ECDSA signatures per second of a page digest
+ *
+ * `legacy` is the signing path used before `KeyUtils.Signer`: curve lookup, domain
+ * parameters and a randomized signer for every signature.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SignerBenchmark {
+
+    byte []hash;
+    KeyUtils keyUtils;
+    KeyUtils.Signer signer;
+
+    @Setup
+    public void setup() {
+        hash = KeyUtils.SHA256(Fixtures.image(4096, 1));
+        keyUtils = new KeyUtils();
+        signer = keyUtils.signerOf(keyUtils.session_sk);
+    }
+
+    @Benchmark
+    public BigInteger[] legacy() {
+        X9ECParameters curve = NISTNamedCurves.getByName("P-256");
+        ECDomainParameters ecParam = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH(), curve.getSeed());
+        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(new BigInteger(1, keyUtils.session_sk), ecParam);
+        ECDSASigner sa = new ECDSASigner();
+        sa.init(true, privKey);
+        return sa.generateSignature(hash);
+    }
+
+    @Benchmark
+    public byte[] signer() {
+        return signer.sign(hash);
+    }
+
+    /**
+     * `KeyUtils.signHash`, including the lookup of the signer of the key
+     */
+    @Benchmark
+    public byte[] signHash() {
+        return keyUtils.signHash(keyUtils.session_sk, hash);
+    }
+}
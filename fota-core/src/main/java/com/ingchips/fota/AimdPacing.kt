@@ -0,0 +1,94 @@
+package com.ingchips.fota
+
+/**
+ * Additive-increase/multiplicative-decrease pacing
+ *
+ * Decisions are made per page:
+ *
+ * 1. Chunk gap shrinks by `gapStep` after each clean page, and doubles when the average
+ *    write latency of a page exceeds `latencyFactor` times the best page seen so far,
+ *    or when a page is retried;
+ * 1. Chunk size is halved on retries, and grows back by `chunkStep` after each clean page;
+ * 1. Page gap shrinks while the first status poll already sees OK, and grows with
+ *    every extra poll needed, so that the device is polled just once per page.
+ *
+ * It starts from the legacy constants (10 ms / 80 ms), so the first pages are paced
+ * as before.
+ */
+class AimdPacing(
+    initialChunkGap: Long = 10,
+    initialPageGap: Long = 80,
+    private val maxGap: Long = 500,
+    private val gapStep: Long = 1,
+    private val pageGapStep: Long = 5,
+    private val minChunkSize: Int = 20,
+    private val chunkStep: Int = 20,
+    private val latencyFactor: Int = 2
+) : PacingPolicy {
+
+    override var chunkGap = initialChunkGap
+        private set
+    override var pageGap = initialPageGap
+        private set
+
+    private var chunkLimit = Int.MAX_VALUE
+    private var lastMtu = Int.MAX_VALUE
+    private var pages = 0
+    private var retries = 0
+
+    private var pageNanos = 0L
+    private var pageChunks = 0
+    private var lastLatency = 0L
+    private var bestLatency = Long.MAX_VALUE
+
+    override fun chunkSize(mtu: Int): Int {
+        lastMtu = mtu
+        return minOf(mtu, chunkLimit)
+    }
+
+    override fun onChunkWritten(bytes: Int, nanos: Long) {
+        pageNanos += nanos
+        pageChunks++
+    }
+
+    private fun backOff() {
+        chunkGap = minOf(maxGap, maxOf(gapStep, chunkGap * 2))
+    }
+
+    override fun onPageDone(statusPolls: Int) {
+        pages++
+
+        if (pageChunks > 0) {
+            lastLatency = pageNanos / pageChunks
+            if ((bestLatency != Long.MAX_VALUE) && (lastLatency > latencyFactor * bestLatency))
+                backOff()
+            else
+                chunkGap = maxOf(0, chunkGap - gapStep)
+            bestLatency = minOf(bestLatency, lastLatency)
+        }
+        pageNanos = 0
+        pageChunks = 0
+
+        if (chunkLimit < lastMtu)
+            chunkLimit = if (chunkLimit + chunkStep >= lastMtu) Int.MAX_VALUE else chunkLimit + chunkStep
+
+        pageGap = if (statusPolls <= 1)
+            maxOf(0, pageGap - pageGapStep)
+        else
+            minOf(maxGap, pageGap + (statusPolls - 1) * pageGapStep)
+    }
+
+    override fun onPageRetry() {
+        retries++
+        pageNanos = 0
+        pageChunks = 0
+        backOff()
+        pageGap = minOf(maxGap, maxOf(pageGapStep, pageGap * 2))
+        chunkLimit = maxOf(minChunkSize, minOf(chunkLimit, lastMtu) / 2)
+    }
+
+    override val state: PacingPolicy.State
+        get() = PacingPolicy.State(chunkGap, pageGap,
+            if (chunkLimit < lastMtu) chunkLimit else 0,
+            pages, retries, lastLatency / 1000)
+}
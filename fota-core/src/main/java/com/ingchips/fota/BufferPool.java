@@ -0,0 +1,89 @@
+package com.ingchips.fota;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of byte arrays of exact sizes, e.g. pages and chunks of the transfer
+ *
+ * Arrays are kept for at most `maxSizes` distinct sizes, those acquired least recently
+ * being dropped first, and at most `maxPerSize` arrays of each size. Arrays not released
+ * (e.g. still held by a failed transport) are simply left to the GC.
+ * It is safe to use from several threads.
+ *
+ * Usage:
+ *
+ * 1. `acquire` an array of the wanted size;
+ * 1. `release` it when it is no longer referenced.
+ */
+public class BufferPool {
+    private final int maxPerSize;
+    // a few sizes, so plain arrays, and no boxing of sizes on each call
+    private final int []sizes;
+    private final long []lastUse;
+    private final ArrayDeque<byte[]> []free;
+    private long clock;
+    private long allocations;
+
+    /**
+     * Create an instance
+     * @param maxSizes      max number of distinct sizes kept
+     * @param maxPerSize    max number of arrays kept for each size
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxSizes, int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+        sizes = new int[maxSizes];
+        lastUse = new long[maxSizes];
+        free = new ArrayDeque[maxSizes];
+        java.util.Arrays.fill(sizes, -1);
+    }
+
+    private int slotOf(int size) {
+        for (int i = 0; i < sizes.length; i++)
+            if (sizes[i] == size) return i;
+        return -1;
+    }
+
+    /**
+     * @param size          size of the array
+     * @return              an array of exactly `size` bytes, with undefined content
+     */
+    public synchronized byte[] acquire(int size) {
+        int i = slotOf(size);
+        byte []r = null;
+        if (i >= 0) {
+            lastUse[i] = ++clock;
+            r = free[i].poll();
+        }
+        if (r == null) {
+            allocations++;
+            r = new byte[size];
+        }
+        return r;
+    }
+
+    /**
+     * Give an array back to the pool
+     */
+    public synchronized void release(byte []buf) {
+        int i = slotOf(buf.length);
+        if (i < 0) {
+            // take the slot of the size acquired least recently
+            i = 0;
+            for (int k = 1; k < sizes.length; k++)
+                if (lastUse[k] < lastUse[i]) i = k;
+            sizes[i] = buf.length;
+            lastUse[i] = ++clock;
+            free[i] = new ArrayDeque<>();
+        }
+        if (free[i].size() < maxPerSize)
+            free[i].push(buf);
+    }
+
+    /**
+     * Number of arrays allocated by `acquire`, i.e. not served from the pool
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+}
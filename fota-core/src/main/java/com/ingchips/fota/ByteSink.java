@@ -0,0 +1,133 @@
+package com.ingchips.fota;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer for ingesting streams (downloads, local files, etc)
+ *
+ * The buffer is pre-sized from the expected length when known, and grows
+ * geometrically otherwise. Contents are handed out without copying (@see toByteBuffer).
+ *
+ * Usage:
+ *
+ * 1. Create an instance with the expected length (or -1 if unknown);
+ * 1. Call `readFrom` to drain a stream into it;
+ * 1. Use `toByteBuffer` (e.g. `UpdatePackage.LoadFromBuffer`) or `toByteArray`;
+ * 1. Call `reset` to reuse the instance.
+ */
+public class ByteSink extends OutputStream {
+    private static final int DEFAULT_CAPACITY = 8 * 1024;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private byte []buf;
+    private int count;
+
+    /**
+     * @param expectedLength    expected length of the content, or -1 if unknown
+     */
+    public ByteSink(long expectedLength) {
+        if (expectedLength > MAX_CAPACITY)
+            throw new IllegalArgumentException("content too large: " + expectedLength);
+        buf = new byte[expectedLength >= 0 ? (int)expectedLength : DEFAULT_CAPACITY];
+    }
+
+    public ByteSink() {
+        this(-1);
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= buf.length) return;
+        if (minCapacity < 0)
+            throw new OutOfMemoryError("content too large");
+        long c = Math.max(DEFAULT_CAPACITY, (long)buf.length * 2);
+        c = Math.min(MAX_CAPACITY, Math.max(c, minCapacity));
+        buf = Arrays.copyOf(buf, (int)c);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte []b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Read all remaining bytes of a stream into this buffer
+     *
+     * Note: the stream is not closed.
+     *
+     * @param stream        the stream
+     * @return              number of bytes read
+     * @throws IOException  if the stream fails
+     */
+    public long readFrom(InputStream stream) throws IOException {
+        long total = 0;
+        while (true) {
+            if (count == buf.length) {
+                // full: probe for EOF before growing, so that pre-sized buffers are not grown
+                int b = stream.read();
+                if (b < 0) break;
+                write(b);
+                total++;
+                continue;
+            }
+            int n = stream.read(buf, count, buf.length - count);
+            if (n < 0) break;
+            count += n;
+            total += n;
+        }
+        return total;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    /**
+     * Get the internal array, whose first `size()` bytes are the content
+     */
+    public byte[] array() {
+        return buf;
+    }
+
+    /**
+     * Get the content as a buffer, without copying
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * Get the content as an array; the internal array is returned when it fits exactly
+     */
+    public byte[] toByteArray() {
+        return count == buf.length ? buf : Arrays.copyOf(buf, count);
+    }
+
+    /**
+     * Read a stream fully
+     * @param stream            the stream
+     * @param expectedLength    expected length of the content, or -1 if unknown
+     * @return                  the sink holding the content
+     * @throws IOException      if the stream fails
+     */
+    public static ByteSink readFully(InputStream stream, long expectedLength) throws IOException {
+        ByteSink r = new ByteSink(expectedLength);
+        r.readFrom(stream);
+        return r;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ingchips.fota;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC16 (Modbus) engine working directly on primitive byte ranges
+ *
+ * The checksum is identical to `Utils.crc`, i.e. the high byte of the
+ * Modbus register is returned in bits 15..8.
+ *
+ * Usage:
+ *
+ * 1. call `update` on consecutive pieces of data (e.g. each chunk of a page);
+ * 1. call `finish` to get the checksum, which also resets the engine for reuse.
+ */
+public class Crc16 {
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int k = 0; k < 8; k++)
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0xA001 : c >>> 1;
+            TABLE[i] = c;
+        }
+    }
+
+    private int reg = 0xFFFF;
+
+    public void reset() {
+        reg = 0xFFFF;
+    }
+
+    public void update(int b) {
+        reg = (reg >>> 8) ^ TABLE[(reg ^ b) & 0xff];
+    }
+
+    public void update(byte []data, int offset, int len) {
+        reg = run(reg, data, offset, len);
+    }
+
+    public void update(byte []data) {
+        update(data, 0, data.length);
+    }
+
+    /**
+     * Consume all remaining bytes of `buf`, advancing its position
+     */
+    public void update(ByteBuffer buf) {
+        int len = buf.remaining();
+        if (buf.hasArray()) {
+            update(buf.array(), buf.arrayOffset() + buf.position(), len);
+            buf.position(buf.limit());
+            return;
+        }
+        int r = reg;
+        for (int i = 0; i < len; i++)
+            r = (r >>> 8) ^ TABLE[(r ^ buf.get()) & 0xff];
+        reg = r;
+    }
+
+    /**
+     * Get the checksum of all data since last `reset`/`finish`, and reset
+     * @return          the checksum
+     */
+    public int finish() {
+        int r = value();
+        reset();
+        return r;
+    }
+
+    /**
+     * Get the checksum of all data so far without resetting
+     * @return          the checksum
+     */
+    public int value() {
+        return swap(reg);
+    }
+
+    private static int swap(int r) {
+        return ((r & 0xff) << 8) | (r >>> 8);
+    }
+
+    private static int run(int r, byte []data, int offset, int len) {
+        final int end = offset + len;
+        for (int i = offset; i < end; i++)
+            r = (r >>> 8) ^ TABLE[(r ^ data[i]) & 0xff];
+        return r;
+    }
+
+    public static int compute(byte []data, int offset, int len) {
+        return swap(run(0xFFFF, data, offset, len));
+    }
+
+    /**
+     * Compute the checksum of the remaining bytes of `buf` without changing its position
+     */
+    public static int compute(ByteBuffer buf) {
+        if (buf.hasArray())
+            return compute(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        int r = 0xFFFF;
+        for (int i = buf.position(); i < buf.limit(); i++)
+            r = (r >>> 8) ^ TABLE[(r ^ buf.get(i)) & 0xff];
+        return swap(r);
+    }
+}
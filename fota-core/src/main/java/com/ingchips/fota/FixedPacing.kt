@@ -0,0 +1,33 @@
+package com.ingchips.fota
+
+/**
+ * Constant pauses and full MTU chunks, whatever the link does
+ */
+class FixedPacing(
+    override val chunkGap: Long = 10,
+    override val pageGap: Long = 80
+) : PacingPolicy {
+    private var pages = 0
+    private var retries = 0
+    private var latencyNanos = 0L
+    private var chunks = 0
+
+    override fun chunkSize(mtu: Int): Int = mtu
+
+    override fun onChunkWritten(bytes: Int, nanos: Long) {
+        latencyNanos += nanos
+        chunks++
+    }
+
+    override fun onPageDone(statusPolls: Int) {
+        pages++
+    }
+
+    override fun onPageRetry() {
+        retries++
+    }
+
+    override val state: PacingPolicy.State
+        get() = PacingPolicy.State(chunkGap, pageGap, 0, pages, retries,
+            if (chunks > 0) latencyNanos / chunks / 1000 else 0)
+}
@@ -0,0 +1,227 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.concurrent.Executor
+
+/**
+ * This class updates a fleet of devices with one package, several at a time.
+ *
+ * Devices are identified by strings (e.g. addresses). A `FotaSession` is opened on each
+ * device by `connect`, and a plan is made for it by `planFor`. Plans share the content
+ * of the package (@see PlanBuilder.fromPackage).
+ *
+ * Progress is conflated per device, as with `ProgressTracker.deliver`: at most every
+ * `intervalMillis`, the listener gets the latest snapshot of each device changed since
+ * the last delivery, then one summary.
+ *
+ * Usage:
+ *
+ * 1. Create an instance with the max number of concurrent connections;
+ * 1. Call `run` with the devices; progress is reported to the `Listener`;
+ * 1. Check `summary`, e.g. `devicesPerHour`.
+ */
+class FleetOrchestrator
+/**
+ * Create an instance
+ * @param maxConnections    max number of devices updated at the same time
+ * @param connect           connect a device and `prepare` a session on it, null on failure
+ * @param planFor           make a plan for a device of the given version, null if up to date
+ * @param listener          callback of progress
+ * @param intervalMillis    min time between two deliveries to `listener`
+ * @param executor          where `listener` runs, e.g. posting to the UI thread
+ * @param onFinished        called when a device is done, skipped or failed, e.g. to export metrics
+ */(
+    private val maxConnections: Int,
+    private val connect: suspend (device: String, listener: FotaSession.Listener) -> FotaSession?,
+    private val planFor: (device: String, devVer: ProductVersion) -> PlanBuilder.Plan?,
+    private val listener: Listener?,
+    private val intervalMillis: Long = 0,
+    private val executor: Executor = Executor { it.run() },
+    private val onFinished: (suspend (device: String, state: State) -> Unit)? = null
+) {
+    enum class State { QUEUED, CONNECTING, UPDATING, DONE, SKIPPED, FAILED }
+
+    /**
+     * Snapshot of a device
+     */
+    data class DeviceProgress(
+        val device: String,
+        val state: State,
+        val current: Int,           // bytes burned
+        val total: Int,             // total bytes to be burned
+        val message: String?
+    )
+
+    /**
+     * Snapshot of the fleet
+     */
+    data class Summary(
+        val devices: Int,
+        val done: Int,
+        val skipped: Int,
+        val failed: Int,
+        val active: Int,
+        val elapsedMillis: Long,
+        val devicesPerHour: Double  // devices updated per hour since `run` started
+    )
+
+    interface Listener {
+        fun onDevice(progress: DeviceProgress)
+        fun onSummary(summary: Summary)
+    }
+
+    private val lock = Any()
+    private val progress = LinkedHashMap<String, DeviceProgress>()
+    // devices changed since the last delivery
+    private val dirty = LinkedHashSet<String>()
+    private val changes = MutableStateFlow(0L)
+    private var startMillis = 0L
+    private var endMillis = 0L
+
+    /**
+     * Progress of each device, in the order given to `run`
+     */
+    val devices: List<DeviceProgress>
+        get() = synchronized(lock) { ArrayList(progress.values) }
+
+    val summary: Summary
+        get() = synchronized(lock) {
+            val elapsed = (if (endMillis > 0) endMillis else System.currentTimeMillis()) - startMillis
+            var done = 0
+            var skipped = 0
+            var failed = 0
+            var active = 0
+            for (p in progress.values) when (p.state) {
+                State.DONE -> done++
+                State.SKIPPED -> skipped++
+                State.FAILED -> failed++
+                State.CONNECTING, State.UPDATING -> active++
+                else -> {}
+            }
+            Summary(progress.size, done, skipped, failed, active, elapsed,
+                if (elapsed > 0) done * 3600000.0 / elapsed else 0.0)
+        }
+
+    private fun update(device: String, change: (DeviceProgress) -> DeviceProgress) {
+        synchronized(lock) {
+            progress[device] = change(progress[device]!!)
+            dirty.add(device)
+        }
+        changes.update { it + 1 }
+    }
+
+    /**
+     * Pass devices changed since the last call, and the summary, to the listener
+     * and wait for it
+     */
+    private suspend fun flush(listener: Listener) {
+        val changed = synchronized(lock) {
+            val r = dirty.map { progress[it]!! }
+            dirty.clear()
+            r
+        }
+        val s = summary
+        val done = CompletableDeferred<Unit>()
+        executor.execute {
+            try {
+                for (p in changed) listener.onDevice(p)
+                listener.onSummary(s)
+            } finally {
+                done.complete(Unit)
+            }
+        }
+        done.await()
+    }
+
+    private suspend fun updateOne(device: String) {
+        update(device) { it.copy(state = State.CONNECTING) }
+        val sessionListener = object : FotaSession.Listener {
+            override fun onMessage(msg: String) {
+                update(device) { it.copy(message = msg) }
+            }
+
+            override fun onProgress(current: Int, total: Int) {
+                update(device) { it.copy(current = current, total = total) }
+            }
+        }
+
+        var session: FotaSession? = null
+        try {
+            session = connect(device, sessionListener)
+            if (session == null) {
+                update(device) { it.copy(state = State.FAILED, message = "connection failed") }
+                onFinished?.invoke(device, State.FAILED)
+                return
+            }
+            val plan = planFor(device, session.devVer!!)
+            if (plan == null || plan.items.isEmpty()) {
+                update(device) { it.copy(state = State.SKIPPED, message = "up to date") }
+                onFinished?.invoke(device, State.SKIPPED)
+                session.close()
+                return
+            }
+            update(device) { it.copy(state = State.UPDATING) }
+            session.doUpdate(plan)
+            update(device) { it.copy(state = State.DONE) }
+            onFinished?.invoke(device, State.DONE)
+        } catch (e: CancellationException) {
+            session?.close()
+            throw e
+        } catch (e: Exception) {
+            update(device) { it.copy(state = State.FAILED, message = e.message) }
+            onFinished?.invoke(device, State.FAILED)
+            session?.close()
+        }
+    }
+
+    /**
+     * Update the devices, at most `maxConnections` at a time
+     * @param devices       devices to be updated
+     * @return              the summary when all devices are done or failed
+     */
+    suspend fun run(devices: List<String>): Summary {
+        synchronized(lock) {
+            progress.clear()
+            for (d in devices)
+                progress[d] = DeviceProgress(d, State.QUEUED, 0, 0, null)
+            dirty.clear()
+            startMillis = System.currentTimeMillis()
+            endMillis = 0
+        }
+        val semaphore = Semaphore(maxConnections)
+        coroutineScope {
+            // StateFlow is conflated, so a busy listener only delays the next delivery
+            val delivery = listener?.let { l ->
+                launch {
+                    changes.collect {
+                        flush(l)
+                        delay(intervalMillis)
+                    }
+                }
+            }
+            devices.map { d ->
+                async {
+                    semaphore.withPermit { updateOne(d) }
+                }
+            }.awaitAll()
+            delivery?.cancelAndJoin()
+        }
+        synchronized(lock) {
+            endMillis = System.currentTimeMillis()
+        }
+        // the final states, and summary
+        listener?.let { flush(it) }
+        return summary
+    }
+}
@@ -0,0 +1,750 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.lang.System.arraycopy
+import java.nio.ByteBuffer
+import java.util.logging.Logger
+
+/**
+ * This class implements the FOTA protocol on an `OtaTransport`, independent of Android.
+ *
+ * Usage:
+ *
+ * 1. Create an instance on a connected transport;
+ * 1. Call `prepare` to exchange session key (secure FOTA) and query device version;
+ * 1. Call `doUpdate` to execute a `PlanBuilder.Plan`.
+ */
+class FotaSession
+/**
+ * Create an instance
+ * @param transport         connected transport
+ * @param listener          callback to show message and progress
+ * @param keys              keys of this session, taken from `SessionKeyPool.SHARED` if null
+ * @param pacing            pacing of the data path
+ */(
+    private val transport: OtaTransport,
+    private val listener: Listener?,
+    keys: KeyUtils? = null,
+    val pacing: PacingPolicy = AimdPacing()
+) {
+    companion object {
+        const val OTA_CTRL_STATUS_DISABLED: Byte = 0
+        const val OTA_CTRL_STATUS_OK: Byte = 1
+        const val OTA_CTRL_STATUS_ERROR: Byte = 2
+        const val OTA_CTRL_STATUS_WAIT_DATA: Byte = 3
+
+        const val OTA_CTRL_START: Byte = (0xAA).toByte() // param: no
+        const val OTA_CTRL_PAGE_BEGIN: Byte = (0xB0).toByte() // param: page address, following DATA contains the data
+        const val OTA_CTRL_PAGE_END: Byte = (0xB1).toByte() // param: no
+        const val OTA_CTRL_PAGE_BEGIN_COMPRESSED: Byte = (0xB2).toByte() // param: page address, following DATA contains a `PageCompressor` frame
+        const val OTA_CTRL_READ_PAGE: Byte = (0xC0).toByte() // param: page address
+        const val OTA_CTRL_SWITCH_APP: Byte = (0xD0).toByte() // param: no
+        const val OTA_CTRL_METADATA: Byte = (0xE0).toByte() // param: ota_meta_t
+        const val OTA_CTRL_REBOOT: Byte = (0xFF).toByte() // param: no
+
+        // capabilities, in the optional byte following versions in the version characteristic
+        const val OTA_CAP_COMPRESSION_LZ4 = 0x01
+
+        private const val MAX_RETRY = 3
+
+        // max time for the device to finish a page after PAGE_END
+        private const val PAGE_DONE_TIMEOUT: Long = 5000
+        // max wait for a notification before reading the status anyway
+        private const val NOTIFY_TIMEOUT: Long = 1000
+        private const val POLL_BACKOFF_MIN: Long = 5
+        private const val POLL_BACKOFF_MAX: Long = 80
+
+        // max size of a single read of the data characteristic
+        private const val READ_CHUNK = 512
+
+        // max pages prepared ahead of the one being sent
+        private const val PAGE_LOOKAHEAD = 2
+
+        // max pages signed in parallel
+        private val SIGN_WORKERS = maxOf(1, minOf(Runtime.getRuntime().availableProcessors(), PAGE_LOOKAHEAD + 2))
+
+        private val log = Logger.getLogger("FotaSession")
+    }
+
+    interface Listener {
+        /**
+         * @param msg           message
+         */
+        fun onMessage(msg: String)
+
+        /**
+         * @param current       bytes burned
+         * @param total         total bytes to be burned
+         */
+        fun onProgress(current: Int, total: Int)
+
+        /**
+         * @param phase         phase entered (@see UpdateProgress.Phase)
+         */
+        fun onPhase(phase: UpdateProgress.Phase) {}
+    }
+
+    var devVer: ProductVersion? = null
+        private set
+
+    /**
+     * Differential mode: pages already identical on the device are skipped
+     *
+     * Each page is read back (@see OTA_CTRL_READ_PAGE) and compared before being burned.
+     * This is ignored for secure FOTA, and turned off if the device can't read back.
+     */
+    var differential = false
+
+    /**
+     * Bytes skipped by differential mode in the last `doUpdate`
+     */
+    var skippedBytes = 0
+        private set
+
+    /**
+     * Compress pages when the device supports it (@see PageCompressor)
+     */
+    var compression = true
+
+    /**
+     * Whether the device supports compressed pages, known after `prepare`
+     */
+    var compressionSupported = false
+        private set
+
+    /**
+     * Bytes saved on air by compression in the last `doUpdate`
+     */
+    var savedBytes = 0
+        private set
+
+    private val compressor = PageCompressor()
+    private val encoder = PageEncoder()
+
+    // pages and frames in preparation or on air, and chunks until they are flushed
+    private val pagePool = BufferPool(4, PAGE_LOOKAHEAD + 3)
+    private val chunkPool = BufferPool(4, 64)
+    private val chunks = ArrayList<ByteArray>()
+
+    // only secure FOTA needs keys
+    private val keyUtils: KeyUtils by lazy { keys ?: SessionKeyPool.SHARED.take() }
+
+    /**
+     * Durations of the steps of `prepare`
+     */
+    var timings = StepTimings()
+
+    /**
+     * Counters and latencies of the session (@see SessionMetrics), null to record none
+     */
+    var metrics: SessionMetrics? = null
+
+    /**
+     * Cache of page signatures (@see SignatureCache), null to sign every page
+     */
+    var signatures: SignatureCache? = SignatureCache.SHARED
+
+    /**
+     * Journal of confirmed pages, for resuming interrupted updates
+     */
+    var journal: PageJournal? = null
+
+    /**
+     * Key of the plan in `journal` (@see PageJournal.keyOf)
+     */
+    var journalKey: String? = null
+
+    private var pageIndex = 0
+    private var resumeFrom = 0
+
+    val isSecureOTA: Boolean
+        get() = transport.hasPubKey
+
+    private val mtu: Int = transport.mtu
+    private var totalBytes: Int = 0
+    private var currentBytes: Int = 0
+    private var ctrlNotified = false
+    private var statusPolls = 0
+
+    private fun setCurrentBytes(value: Int) {
+        currentBytes = value
+        updateProgress()
+    }
+
+    private fun showMsg(s: String) {
+        listener?.onMessage(s)
+    }
+
+    private fun updateProgress() {
+        listener?.onProgress(currentBytes, totalBytes)
+    }
+
+    private fun setPhase(phase: UpdateProgress.Phase) {
+        listener?.onPhase(phase)
+    }
+
+    private inline fun <T> timed(name: String, block: () -> T): T {
+        val t = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            metrics?.observe(name, System.nanoTime() - t)
+        }
+    }
+
+    private fun count(name: String, delta: Long = 1) {
+        metrics?.count(name, delta)
+    }
+
+    /**
+     * Exchange the session key
+     *
+     * The shared secret is computed in background while the session key is written and
+     * confirmed by the device.
+     */
+    private suspend fun exchangeKey(): Boolean = coroutineScope {
+        val pk = timings.measure("read key") { transport.ReadPubKey() } ?: return@coroutineScope false
+        keyUtils.peer_pk = pk
+
+        val secret = async(Dispatchers.Default) {
+            timings.measure("ECDH") {
+                try {
+                    KeyUtils.getSharedSecret(keyUtils.session_sk, pk)
+                } catch (e: IllegalArgumentException) {
+                    null    // not a point on the curve
+                }
+            }
+        }
+
+        val sig = keyUtils.session_pk_sig ?: keyUtils.signData(keyUtils.root_sk, keyUtils.session_pk)
+        val r = timings.measure("write key") {
+            transport.WritePubKey(keyUtils.session_pk + sig) && (ReadStatus() != OTA_CTRL_STATUS_ERROR)
+        }
+        val shared = secret.await()
+        if (r && (shared != null))
+        {
+            keyUtils.shared_secret = shared
+            keyUtils.xor_key = KeyUtils.SHA256(keyUtils.shared_secret)
+            keyUtils.is_secure_fota = true
+        }
+        r && (shared != null)
+    }
+
+    /**
+     * Exchange session key if secure FOTA is used, and then query current version
+     * @return              true if the device is ready for update
+     */
+    suspend fun prepare(): Boolean {
+        setPhase(UpdateProgress.Phase.PREPARING)
+        if (!prepare0()) {
+            setPhase(UpdateProgress.Phase.FAILED)
+            return false
+        }
+        setPhase(UpdateProgress.Phase.READY)
+        return true
+    }
+
+    private suspend fun prepare0(): Boolean {
+        ctrlNotified = timings.measure("subscribe") { transport.SubscribeCtrl() }
+        if (ctrlNotified)
+            log.fine("control status is notified")
+
+        if (isSecureOTA) {
+            showMsg("exchange session key ...")
+            if (!exchangeKey()) {
+                showMsg("failed to exchange session key")
+                return false
+            }
+        }
+
+        showMsg("query current version ...")
+
+        val b = timings.measure("version") { transport.ReadVersion() }
+        if (b == null) {
+            showMsg("failed to query version")
+            return false
+        }
+
+        devVer = ProductVersion(Version(b, 0), Version(b, 4))
+        compressionSupported = (b.size > 8) && ((b[8].toInt() and OTA_CAP_COMPRESSION_LZ4) != 0)
+        if (compressionSupported)
+            showMsg("compressed transfer supported")
+        return true
+    }
+
+    private suspend fun ReadStatus(): Byte {
+        val r = transport.ReadCtrl()
+        if ((r == null) || (r.isEmpty()))
+            return OTA_CTRL_STATUS_ERROR
+        return r[0]
+    }
+
+    private suspend fun CheckDevStatus(): Boolean {
+        return ReadStatus() == OTA_CTRL_STATUS_OK
+    }
+
+    /**
+     * Write page data to the data characteristic in chunks
+     *
+     * Chunks fill whole link layer PDUs when the transport knows their size. They come
+     * from `chunkPool`, and go back to it once flushed; on failure, they are left to the
+     * transport.
+     *
+     * @param data          the page, or its compressed frame
+     * @param size          size of the data
+     * @param plainSize     size of the plain page, for progress
+     */
+    private suspend fun SendPageData(data: ByteArray, size: Int, plainSize: Int): Boolean {
+        val chunk = LinkLayer.alignedChunkSize(pacing.chunkSize(mtu), transport.dataLength)
+        val base = currentBytes
+        chunks.clear()
+        for (i in 0 until size step chunk) {
+            val block = minOf(chunk, size - i)
+            val bytes = chunkPool.acquire(block)
+            arraycopy(data, i, bytes, 0, block)
+            chunks.add(bytes)
+            val t = System.nanoTime()
+            if (!transport.WriteData(bytes)) {
+                log.warning("failed to write data")
+                return false
+            }
+            val nanos = System.nanoTime() - t
+            pacing.onChunkWritten(block, nanos)
+            metrics?.observe("chunk_write", nanos)
+            setCurrentBytes(base + (i + block) * plainSize / size)
+            if (!transport.isDataPipelined && (pacing.chunkGap > 0))
+                delay(pacing.chunkGap)
+        }
+        if (!timed("flush") { transport.FlushData() }) {
+            log.warning("failed to write data")
+            return false
+        }
+        count("chunks", chunks.size.toLong())
+        count("bytes_sent", size.toLong())
+        for (c in chunks) chunkPool.release(c)
+        chunks.clear()
+        return true
+    }
+
+    /**
+     * Wait for the next status after PAGE_END
+     *
+     * With notifications, the status is awaited and only read if no notification comes
+     * in time; otherwise, it is polled with bounded backoff.
+     */
+    private suspend fun NextPageStatus(deadline: Long): Byte {
+        if (ctrlNotified) {
+            val timeout = minOf(NOTIFY_TIMEOUT, (deadline - System.nanoTime()) / 1000000)
+            val v = transport.AwaitCtrl(maxOf(1, timeout))
+            if ((v != null) && v.isNotEmpty())
+                return v[0]
+        }
+        statusPolls++
+        return ReadStatus()
+    }
+
+    /**
+     * Wait for the device to finish a page after PAGE_END
+     * @return              false if the device reports an error, or doesn't finish in time
+     */
+    private suspend fun WaitPageDone(): Boolean {
+        val deadline = System.nanoTime() + PAGE_DONE_TIMEOUT * 1000000
+        var backoff = POLL_BACKOFF_MIN
+        statusPolls = 0
+        if (!ctrlNotified)
+            delay(pacing.pageGap)
+        while (System.nanoTime() < deadline) {
+            when (NextPageStatus(deadline)) {
+                OTA_CTRL_STATUS_OK -> {
+                    pacing.onPageDone(maxOf(1, statusPolls))
+                    count("status_polls", statusPolls.toLong())
+                    return true
+                }
+                OTA_CTRL_STATUS_ERROR -> {
+                    count("status_polls", statusPolls.toLong())
+                    count("page_errors")
+                    return false
+                }
+                else -> if (!ctrlNotified) {
+                    delay(backoff)
+                    backoff = minOf(POLL_BACKOFF_MAX, backoff * 2)
+                }
+            }
+        }
+        log.warning("page timeout")
+        count("status_polls", statusPolls.toLong())
+        count("page_timeouts")
+        return false
+    }
+
+    /**
+     * Check if the page is already on the device, reading back as little as possible
+     * @return              null if the device can't read back
+     */
+    private suspend fun PageMatches(page: ByteArray, address: Long): Boolean? {
+        val cmd = byteArrayOf(OTA_CTRL_READ_PAGE, 0, 0, 0, 0)
+        for (off in page.indices step READ_CHUNK) {
+            Utils.writeU32LE(cmd, 1, address + off)
+            if (!transport.WriteCtrl(cmd)) return false
+            val d = transport.ReadData() ?: return null
+            val len = minOf(READ_CHUNK, page.size - off)
+            if (d.size < len) return false
+            for (i in 0 until len)
+                if (d[i] != page[off + i]) return false
+        }
+        return true
+    }
+
+    /**
+     * A page ready to be sent, in buffers of `pagePool`
+     */
+    private class PreparedPage(
+        val page: ByteArray,        // the page; encrypted in place in secure FOTA unless it is compressed
+        val frame: ByteArray?,      // compressed frame, encrypted in secure FOTA
+        val frameSize: Int,
+        val crc: Long,              // CRC in PAGE_END
+        val sig: Deferred<ByteArray>?   // signature of the plain page in secure FOTA, in progress
+    ) {
+        val compressed: Boolean
+            get() = frame != null
+
+        val data: ByteArray
+            get() = frame ?: page
+
+        val dataSize: Int
+            get() = if (frame != null) frameSize else page.size
+    }
+
+    /**
+     * Sign a page with the session key, or get its signature from `signatures`
+     * @param digest        SHA-256 of the page
+     */
+    private fun SignPage(digest: ByteArray): ByteArray {
+        signatures?.get(keyUtils.session_pk, digest)?.let { return it }
+        val sig = keyUtils.signHash(keyUtils.session_sk, digest)
+        signatures?.put(keyUtils.session_pk, digest, sig)
+        return sig
+    }
+
+    /**
+     * Prepare a page: copy it from its view, compress, encrypt it with its signature, and
+     * compute its CRC
+     *
+     * CRC in PAGE_END is of the data sent, or of the plain page if it is compressed.
+     * Without compression, copying, encryption and CRC are a single pass (@see PageEncoder).
+     *
+     * @param view          view of the page
+     * @param sig           signature of the page in secure FOTA
+     */
+    private fun PreparePage(view: ByteBuffer, sig: Deferred<ByteArray>?): PreparedPage {
+        val page = pagePool.acquire(view.remaining())
+        val xorKey = if (sig != null) keyUtils.xor_key else null
+        if (!compression || !compressionSupported)
+            return PreparedPage(page, null, 0, encoder.encode(view, page, xorKey).toLong(), sig)
+
+        val crc = encoder.encode(view, page, null)
+        val frame = pagePool.acquire(PageCompressor.maxFrameSize(page.size))
+        val n = compressor.encode(page, 0, page.size, frame)
+        if (n >= 0) {
+            if (xorKey != null) PageEncoder.xor(frame, 0, n, xorKey)
+            return PreparedPage(page, frame, n, crc.toLong(), sig)
+        }
+
+        pagePool.release(frame)
+        if (xorKey == null)
+            return PreparedPage(page, null, 0, crc.toLong(), null)
+        PageEncoder.xor(page, 0, page.size, xorKey)
+        return PreparedPage(page, null, 0, Crc16.compute(page, 0, page.size).toLong(), sig)
+    }
+
+    /**
+     * Give the buffers of a page back to `pagePool`
+     */
+    private fun ReleasePage(page: PreparedPage) {
+        pagePool.release(page.page)
+        page.frame?.let { pagePool.release(it) }
+    }
+
+    private fun PageBeginCmd(compressed: Boolean, address: Long): ByteArray {
+        val cmd = byteArrayOf(if (compressed) OTA_CTRL_PAGE_BEGIN_COMPRESSED else OTA_CTRL_PAGE_BEGIN, 0, 0, 0, 0)
+        Utils.writeU32LE(cmd, 1, address)
+        return cmd
+    }
+
+    private suspend fun BurnPage(page: PreparedPage, address: Long): Boolean = timed("page") {
+        if (!timed("page_begin") {
+                transport.WriteCtrl(PageBeginCmd(page.compressed, address))
+                CheckDevStatus()
+            }) return false
+        log.fine("page start")
+
+        if (!timed("page_data") { SendPageData(page.data, page.dataSize, page.page.size) }) return false
+
+        val sig = page.sig?.await() ?: ByteArray(0)
+        val cmd = ByteArray(5 + sig.size)
+        cmd[0] = OTA_CTRL_PAGE_END
+        Utils.writeU16LE(cmd, 1, page.page.size.toLong())
+        Utils.writeU16LE(cmd, 3, page.crc)
+        arraycopy(sig, 0, cmd, 5, sig.size)
+        timed("page_end") { transport.WriteCtrl(cmd) }
+
+        log.fine("page end")
+        timed("page_done") { WaitPageDone() }
+    }
+
+    private suspend fun BurnFile(item: UpdateItem, pageSize: Int, pages: ReceiveChannel<PreparedPage>): Boolean {
+        for (i in 0 until item.size() step pageSize) {
+            var err = 0
+            var block = pageSize
+            if (i + pageSize > item.size()) block = item.size() - i
+            val index = pageIndex++
+            if (index < resumeFrom) {
+                setCurrentBytes(currentBytes + block)
+                count("pages_resumed")
+                continue
+            }
+
+            val page = pages.receive()
+            val backup = currentBytes
+
+            if (differential && !isSecureOTA) {
+                val matched = PageMatches(page.page, item.writeAddr + i)
+                if (matched == null) {
+                    showMsg("read back not supported, differential mode off")
+                    differential = false
+                } else if (matched) {
+                    skippedBytes += block
+                    totalBytes -= block
+                    updateProgress()
+                    ConfirmPages(index + 1)
+                    ReleasePage(page)
+                    count("pages_skipped")
+                    continue
+                }
+            }
+
+            while (err < MAX_RETRY) {
+                showMsg(if (err == 0) "burn ${item.name} ..." else "burn ${item.name} (retry #${err} ...")
+
+                if (BurnPage(page, item.writeAddr + i)) {
+                    err = 0
+                    break
+                }
+                setCurrentBytes(backup)
+                pacing.onPageRetry()
+                count("page_retries")
+                err++
+            }
+
+            if (err > 0)
+                return false
+
+            if (page.compressed)
+                savedBytes += block - page.dataSize
+            count("pages")
+            ReleasePage(page)
+            ConfirmPages(index + 1)
+            updateProgress()
+        }
+
+        return true
+    }
+
+    private fun ConfirmPages(pages: Int) {
+        val key = journalKey ?: return
+        journal?.confirm(key, pages, devVerString())
+    }
+
+    private fun devVerString(): String {
+        return "${devVer?.platform} ${devVer?.app}"
+    }
+
+    /**
+     * Find where to resume from the journal
+     *
+     * When the device can read back, the last confirmed page is checked as well.
+     *
+     * @return              number of pages to skip
+     */
+    private suspend fun LoadResumePoint(plan: PlanBuilder.Plan): Int {
+        val key = journalKey ?: return 0
+        val j = journal ?: return 0
+        val pages = j.confirmedPages(key, devVerString())
+        if (pages <= 0) return 0
+
+        var index = 0
+        for (item in plan.items) {
+            val count = (item.size() + plan.pageSize - 1) / plan.pageSize
+            if (pages - 1 < index + count) {
+                if (isSecureOTA) break
+                val off = (pages - 1 - index) * plan.pageSize
+                val page = item.copyOfRange(off, minOf(plan.pageSize, item.size() - off))
+                if (PageMatches(page, item.writeAddr + off) == false) {
+                    showMsg("journal does not match the device, start over")
+                    j.clear(key)
+                    return 0
+                }
+                break
+            }
+            index += count
+        }
+        return pages
+    }
+
+    /**
+     * Burn all items
+     *
+     * Pages are prepared (@see PreparePage) in background, at most `PAGE_LOOKAHEAD` pages
+     * ahead, so crypto and compression overlap with the transfer of the previous page.
+     * The producer is the only reader of the items, and reads them in order, so views
+     * stay valid and Zip entries are inflated page by page. In secure FOTA, the digest of
+     * each page is handed to at most `SIGN_WORKERS` signers in parallel.
+     * Pages are read through views of the items, into buffers of `pagePool`.
+     */
+    private suspend fun BurnFiles(plan: PlanBuilder.Plan): Boolean = coroutineScope {
+        pageIndex = 0
+        resumeFrom = LoadResumePoint(plan)
+        if (resumeFrom > 0)
+            showMsg("resume from page #${resumeFrom}")
+
+        val ranges = ArrayList<Pair<UpdateItem, Int>>()
+        var index = 0
+        for (f in plan.items)
+            for (i in 0 until f.size() step plan.pageSize)
+                if (index++ >= resumeFrom) ranges.add(Pair(f, i))
+
+        val signers = Semaphore(SIGN_WORKERS)
+        val pages = Channel<PreparedPage>(PAGE_LOOKAHEAD)
+        val producer = launch(Dispatchers.Default) {
+            for (r in ranges) {
+                val view = r.first.read(r.second, minOf(plan.pageSize, r.first.size() - r.second))
+                val sig = if (isSecureOTA) {
+                    val digest = KeyUtils.SHA256(view.duplicate())
+                    async { signers.withPermit { SignPage(digest) } }
+                } else null
+                pages.send(PreparePage(view, sig))
+            }
+            pages.close()
+        }
+        try {
+            for (f in plan.items)
+                if (!BurnFile(f, plan.pageSize, pages)) return@coroutineScope false
+            true
+        } finally {
+            producer.cancel()
+        }
+    }
+
+    private suspend fun BurnMetaData(item: UpdateItem, manualReboot: Boolean): Boolean {
+        if (isSecureOTA) {
+            return BurnMetaDataSecure(item, manualReboot);
+        } else {
+            return BurnMetaDataUnsecure(item, manualReboot);
+        }
+    }
+
+    private suspend fun BurnMetaDataUnsecure(item: UpdateItem, manualReboot: Boolean): Boolean {
+        showMsg("burn ${item.name}")
+
+        val meta = item.getData()
+        val cmd = ByteArray(1 + meta.size)
+        cmd[0] = OTA_CTRL_METADATA
+        arraycopy(meta, 0, cmd, 1, meta.size)
+
+        if (!transport.WriteCtrl(cmd)) return false
+        return if (manualReboot) CheckDevStatus() else true
+    }
+
+    private suspend fun BurnMetaDataSecure(item: UpdateItem, manualReboot: Boolean): Boolean {
+        showMsg("burn ${item.name}")
+
+        val data = item.copyOfRange(2, item.size() - 2)
+
+        var sig = keyUtils.signData(keyUtils.session_sk, data)
+
+        keyUtils.encrypt(data);
+
+        val cmd = ByteArray(1 + sig.size + 2 + data.size)
+        cmd[0] = OTA_CTRL_METADATA
+        arraycopy(sig, 0, cmd, 1, sig.size)
+        Utils.writeU16LE(cmd, 1 + sig.size,  Utils.crc(data).toLong())
+        arraycopy(data, 0, cmd, 1 + sig.size + 2, data.size)
+
+        if (!transport.WriteCtrl(cmd)) return false
+        return if (manualReboot) CheckDevStatus() else true
+    }
+
+    /**
+     * Execute the plan: enable FOTA, burn all items and metadata, then reboot.
+     *
+     * The transport is closed when the device is rebooting.
+     *
+     * @param plan          Update plan
+     * @throws Exception    if any step fails
+     */
+    suspend fun doUpdate(plan: PlanBuilder.Plan) {
+        try {
+            doUpdate0(plan)
+        } catch (e: Exception) {
+            setPhase(UpdateProgress.Phase.FAILED)
+            throw e
+        }
+        setPhase(UpdateProgress.Phase.DONE)
+    }
+
+    private suspend fun doUpdate0(plan: PlanBuilder.Plan) {
+        totalBytes = 0
+        currentBytes = 0
+        skippedBytes = 0
+        savedBytes = 0
+        for (f in plan.items) totalBytes += f.size()
+
+        showMsg("enabling FOTA")
+        if (!timed("enable") { transport.WriteCtrl(byteArrayOf(OTA_CTRL_START, 0, 0, 0, 0)) && CheckDevStatus() })
+            throw Exception("failed to enable FOTA")
+        showMsg("FOTA successfully enabled")
+        setPhase(UpdateProgress.Phase.BURNING)
+        if (!timed("burn") { BurnFiles(plan) })
+            throw Exception("burn failed")
+        if (skippedBytes > 0) {
+            showMsg("${skippedBytes} bytes unchanged, skipped")
+            count("bytes_skipped", skippedBytes.toLong())
+        }
+        if (savedBytes > 0) {
+            showMsg("${savedBytes} bytes saved by compression")
+            count("bytes_saved", savedBytes.toLong())
+        }
+        setPhase(UpdateProgress.Phase.METADATA)
+        if (!timed("metadata") { BurnMetaData(plan.metaData, plan.manualReboot) })
+            throw Exception("metadata failed")
+        showMsg("FOTA burn complete, reboot...")
+        setPhase(UpdateProgress.Phase.REBOOTING)
+        journalKey?.let { journal?.clear(it) }
+        if (plan.manualReboot)
+            transport.WriteCtrl(byteArrayOf( OTA_CTRL_REBOOT ))
+        transport.close()
+    }
+
+    /**
+     * Disconnect from the device, e.g. when the update is given up
+     */
+    fun close() {
+        transport.close()
+    }
+
+    /**
+     * switch app
+     */
+    suspend fun doSwitchApp(): Boolean {
+        return transport.WriteCtrl(byteArrayOf(OTA_CTRL_SWITCH_APP))
+    }
+}
@@ -0,0 +1,247 @@
+package com.ingchips.fota;
+
+import org.bouncycastle.asn1.sec.SECObjectIdentifiers;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHCBasicAgreement;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.ec.CustomNamedCurves;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.FixedPointUtil;
+import org.bouncycastle.util.BigIntegers;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+public class KeyUtils {
+    public byte[] root_sk = new byte[] {
+            (byte)0x5c, (byte)0x77, (byte)0x17, (byte)0x11, (byte)0x67, (byte)0xd6, (byte)0x40, (byte)0xa3, (byte)0x36, (byte)0x0d, (byte)0xe2,
+            (byte)0x69, (byte)0xfe, (byte)0x0b, (byte)0xb7, (byte)0x8f, (byte)0x5e, (byte)0x94, (byte)0xd8, (byte)0xf2, (byte)0xf4, (byte)0x80,
+            (byte)0x94, (byte)0x0a, (byte)0xc2, (byte)0xf2, (byte)0x6e, (byte)0x43, (byte)0xbb, (byte)0x69, (byte)0x5f, (byte)0xa7
+    };
+    public byte[] root_pk = new byte[] {
+            (byte)0x14, (byte)0x1b, (byte)0x0b, (byte)0x28, (byte)0x46, (byte)0xc4, (byte)0xaf, (byte)0x97, (byte)0x41, (byte)0x59, (byte)0x97,
+            (byte)0x4f, (byte)0x17, (byte)0x52, (byte)0xe0, (byte)0x1c, (byte)0x9a, (byte)0xea, (byte)0x21, (byte)0xc7, (byte)0xc6, (byte)0xe3,
+            (byte)0x04, (byte)0x30, (byte)0x4f, (byte)0x8d, (byte)0x9c, (byte)0xf0, (byte)0x7f, (byte)0x1d, (byte)0x1f, (byte)0x0a, (byte)0x83,
+            (byte)0xaf, (byte)0x76, (byte)0xe0, (byte)0x4d, (byte)0xc1, (byte)0xcc, (byte)0x96, (byte)0xb4, (byte)0xb8, (byte)0x3f, (byte)0xbb,
+            (byte)0x73, (byte)0x6c, (byte)0x66, (byte)0x3f, (byte)0x0b, (byte)0xdf, (byte)0x52, (byte)0x86, (byte)0xbf, (byte)0x60, (byte)0xe8,
+            (byte)0x91, (byte)0x27, (byte)0x00, (byte)0x85, (byte)0xc8, (byte)0xbf, (byte)0x55, (byte)0xa8, (byte)0x96
+    };
+    public byte[] session_pk;
+    public byte[] session_sk;
+    public byte[] session_pk_sig;   // `session_pk` signed by `root_sk`, null if not signed yet
+    public byte[] peer_pk;
+    public byte[] shared_secret;
+    public byte[] xor_key;
+
+    public boolean is_secure_fota;
+
+    // P-256 (secp256r1), with the fixed-base comb table of G computed once; the custom
+    // curve has specialized field arithmetic, unlike the generic one of `NISTNamedCurves`
+    static private final ECDomainParameters DOMAIN;
+    static private final SecureRandom RANDOM = new SecureRandom();
+    static private final int FIELD_SIZE = 32;
+
+    static {
+        X9ECParameters curve = CustomNamedCurves.getByOID(SECObjectIdentifiers.secp256r1);
+        DOMAIN = new ECDomainParameters(curve.getCurve(), curve.getG(), curve.getN(), curve.getH(), curve.getSeed());
+        FixedPointUtil.precompute(DOMAIN.getG());
+    }
+
+    /**
+     * Signer of a private key, with deterministic nonces (RFC 6979)
+     *
+     * Signatures are r followed by s, 32 bytes each. It is safe to use from several threads.
+     */
+    public static class Signer {
+        private final ECPrivateKeyParameters key;
+
+        public Signer(byte[] sk) {
+            key = new ECPrivateKeyParameters(new BigInteger(1, sk), DOMAIN);
+        }
+
+        /**
+         * @param hash          SHA-256 of the data
+         * @return              signature, r followed by s
+         */
+        public byte[] sign(byte[] hash) {
+            ECDSASigner sa = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+            sa.init(true, key);
+            BigInteger[] sig = sa.generateSignature(hash);
+            byte[] r = new byte[FIELD_SIZE * 2];
+            writeFixed(sig[0], r, 0);
+            writeFixed(sig[1], r, FIELD_SIZE);
+            return r;
+        }
+    }
+
+    private final IdentityHashMap<byte[], Signer> signers = new IdentityHashMap<>();
+
+    /**
+     * Kept for compatibility: prefer fixed-width encoding (@see writeFixed)
+     */
+    public static byte[] trimToUnsignedByteArray(byte[] array) {
+        if (array.length == 33) {
+            byte[] temp = new byte[array.length - 1];
+            System.arraycopy(array, 1, temp, 0, temp.length);
+            array = temp;
+        }
+        return array;
+    }
+
+    /**
+     * Write a value as a 32-byte big-endian unsigned integer
+     */
+    static private void writeFixed(BigInteger value, byte[] buf, int offset) {
+        byte[] b = BigIntegers.asUnsignedByteArray(FIELD_SIZE, value);
+        System.arraycopy(b, 0, buf, offset, FIELD_SIZE);
+    }
+
+    public KeyUtils() {
+        ECKeyGenerationParameters ecKeyGenerationParameters = new ECKeyGenerationParameters(DOMAIN, RANDOM);
+        ECKeyPairGenerator ecKeyPairGenerator = new ECKeyPairGenerator();
+        ecKeyPairGenerator.init(ecKeyGenerationParameters);
+
+        AsymmetricCipherKeyPair keyPair = ecKeyPairGenerator.generateKeyPair();
+
+        ECPrivateKeyParameters sk = (ECPrivateKeyParameters)keyPair.getPrivate();
+        ECPublicKeyParameters pk = (ECPublicKeyParameters)keyPair.getPublic();
+        ECPoint q = pk.getQ().normalize();
+
+        session_sk = BigIntegers.asUnsignedByteArray(FIELD_SIZE, sk.getD());
+        session_pk = new byte[FIELD_SIZE * 2];
+        writeFixed(q.getAffineXCoord().toBigInteger(), session_pk, 0);
+        writeFixed(q.getAffineYCoord().toBigInteger(), session_pk, FIELD_SIZE);
+        is_secure_fota = false;
+    }
+
+    /**
+     * Signer of a private key of this instance, e.g. `session_sk`, created on first use
+     */
+    public Signer signerOf(byte[] sk) {
+        synchronized (signers) {
+            Signer r = signers.get(sk);
+            if (r == null) {
+                r = new Signer(sk);
+                signers.put(sk, r);
+            }
+            return r;
+        }
+    }
+
+    /**
+     * Sign `session_pk` by `root_sk` ahead of the key exchange
+     */
+    public void presign() {
+        session_pk_sig = signData(root_sk, session_pk);
+    }
+
+    public byte[] signData(byte[] sk, byte[] data) {
+        return signHash(sk, SHA256(data));
+    }
+
+    /**
+     * Sign data by its SHA-256 digest, e.g. when the digest is known already
+     * @param sk            private key
+     * @param hash          SHA-256 of the data
+     * @return              signature, r followed by s
+     */
+    public byte[] signHash(byte[] sk, byte[] hash) {
+        return signerOf(sk).sign(hash);
+    }
+
+    /**
+     * Verify a signature made by `signData`
+     *
+     * `r` and `s` may be shorter than 32 bytes each if made by older versions
+     * (@see trimToUnsignedByteArray), so every possible split of `sig` is tried.
+     *
+     * @param pk            public key, X and Y (64 bytes)
+     * @param data          signed data
+     * @param sig           signature, r followed by s
+     * @return              true if the signature is valid
+     */
+    public static boolean verifyData(byte[] pk, byte[] data, byte[] sig) {
+        ECPublicKeyParameters pubKey;
+        try {
+            pubKey = new ECPublicKeyParameters(DOMAIN.getCurve().validatePoint(
+                    new BigInteger(1, Arrays.copyOfRange(pk, 0, 32)),
+                    new BigInteger(1, Arrays.copyOfRange(pk, 32, 64))), DOMAIN);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        byte[] hash = SHA256(data);
+        ECDSASigner sa = new ECDSASigner();
+        sa.init(false, pubKey);
+        for (int rLen = Math.max(1, sig.length - 32); rLen <= Math.min(32, sig.length - 1); rLen++) {
+            BigInteger r = new BigInteger(1, Arrays.copyOfRange(sig, 0, rLen));
+            BigInteger s = new BigInteger(1, Arrays.copyOfRange(sig, rLen, sig.length));
+            if (sa.verifySignature(hash, r, s))
+                return true;
+        }
+        return false;
+    }
+
+    public void encrypt(byte[] data) {
+        for (int i = 0; i < data.length; i++)
+            data[i] ^= xor_key[i & 0x1f];
+    }
+
+    public static byte[] SHA256(byte []data) {
+        SHA256Digest bcsha256a =  new SHA256Digest();
+        bcsha256a.update(data, 0, data.length);
+
+        byte[] checksum = new byte[32];
+        bcsha256a.doFinal(checksum, 0);
+        return checksum;
+    }
+
+    /**
+     * SHA-256 of all remaining bytes of `data`, e.g. a view of an item, without copying it
+     * when it is backed by an array
+     */
+    public static byte[] SHA256(ByteBuffer data) {
+        SHA256Digest d = new SHA256Digest();
+        if (data.hasArray()) {
+            d.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] block = new byte[Math.min(512, data.remaining())];
+            while (data.hasRemaining()) {
+                int n = Math.min(block.length, data.remaining());
+                data.get(block, 0, n);
+                d.update(block, 0, n);
+            }
+        }
+
+        byte[] checksum = new byte[32];
+        d.doFinal(checksum, 0);
+        return checksum;
+    }
+
+    public static byte[] getSharedSecret(byte[] privateKeyIn, byte[] publicKeyIn) {
+        ECDHCBasicAgreement agreement = new ECDHCBasicAgreement();
+
+        ECPrivateKeyParameters privKey = new ECPrivateKeyParameters(new BigInteger(1, privateKeyIn), DOMAIN);
+
+        BigInteger x = new BigInteger(1, Arrays.copyOfRange(publicKeyIn, 0, FIELD_SIZE));
+        BigInteger y = new BigInteger(1, Arrays.copyOfRange(publicKeyIn, FIELD_SIZE, FIELD_SIZE * 2));
+
+        ECPublicKeyParameters pubKey = new ECPublicKeyParameters(DOMAIN.getCurve().validatePoint(x, y), DOMAIN);
+
+        agreement.init(privKey);
+        BigInteger secret = agreement.calculateAgreement(pubKey);
+
+        return BigIntegers.asUnsignedByteArray(FIELD_SIZE, secret);
+    }
+}
@@ -0,0 +1,38 @@
+package com.ingchips.fota
+
+/**
+ * Sizes of BLE link layer PDUs carrying ATT packets
+ *
+ * An ATT packet of `n` bytes of value takes `n + ATT_HEADER + L2CAP_HEADER` bytes of link
+ * layer payload, split into PDUs of at most `dataLength` bytes (27, or up to 251 with
+ * Data Length Extension). A chunk filling whole PDUs wastes no air time on a short last PDU.
+ */
+object LinkLayer {
+    const val ATT_HEADER = 3
+    const val L2CAP_HEADER = 4
+
+    /**
+     * Number of link layer PDUs to carry an ATT packet
+     * @param attPayload    bytes of value
+     * @param dataLength    max link layer payload
+     */
+    @JvmStatic
+    fun pdusOf(attPayload: Int, dataLength: Int): Int {
+        val size = attPayload + ATT_HEADER + L2CAP_HEADER
+        return (size + dataLength - 1) / dataLength
+    }
+
+    /**
+     * Largest chunk size, no more than `max`, filling whole PDUs
+     * @param max           max chunk size, e.g. MTU
+     * @param dataLength    max link layer payload, 0 if unknown
+     * @return              the chunk size, or `max` if unknown or less than one PDU
+     */
+    @JvmStatic
+    fun alignedChunkSize(max: Int, dataLength: Int): Int {
+        if (dataLength <= 0) return max
+        val pdus = (max + ATT_HEADER + L2CAP_HEADER) / dataLength
+        if (pdus == 0) return max
+        return pdus * dataLength - ATT_HEADER - L2CAP_HEADER
+    }
+}
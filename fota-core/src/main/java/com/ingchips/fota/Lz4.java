@@ -0,0 +1,166 @@
+package com.ingchips.fota;
+
+/**
+ * LZ4 block format codec (no frame header, no checksums)
+ *
+ * The compressor is the greedy single-probe one of the reference implementation, which
+ * is fast and needs nothing on the device side beyond the simple decoder (@see decompress).
+ *
+ * An instance keeps its hash table, so it is not thread-safe but can be reused for
+ * pages without allocation.
+ */
+public class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 12;
+
+    private final int []table = new int[1 << HASH_LOG];
+
+    /**
+     * Worst case size of compressed data
+     */
+    public static int maxCompressedLength(int len) {
+        return len + len / 255 + 16;
+    }
+
+    private static int readInt(byte []b, int i) {
+        return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) | ((b[i + 2] & 0xff) << 16) | (b[i + 3] << 24);
+    }
+
+    private static int hash(int v) {
+        return (v * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static int writeLength(byte []dst, int d, int len) {
+        while (len >= 255) {
+            dst[d++] = (byte)255;
+            len -= 255;
+        }
+        dst[d++] = (byte)len;
+        return d;
+    }
+
+    private static int writeSequence(byte []src, int anchor, int litLen, int matchLen, int offset,
+                                     byte []dst, int d) {
+        int token = d++;
+        int t = Math.min(litLen, 15) << 4;
+        if (litLen >= 15) d = writeLength(dst, d, litLen - 15);
+        System.arraycopy(src, anchor, dst, d, litLen);
+        d += litLen;
+        if (matchLen > 0) {
+            dst[d++] = (byte)offset;
+            dst[d++] = (byte)(offset >>> 8);
+            int m = matchLen - MIN_MATCH;
+            t |= Math.min(m, 15);
+            if (m >= 15) d = writeLength(dst, d, m - 15);
+        }
+        dst[token] = (byte)t;
+        return d;
+    }
+
+    /**
+     * Compress a block
+     * @param src           source
+     * @param off           offset of data in source
+     * @param len           length of data
+     * @param dst           destination, at least `maxCompressedLength(len)` bytes from `dstOff`
+     * @param dstOff        offset in destination
+     * @return              length of compressed data
+     */
+    public int compress(byte []src, int off, int len, byte []dst, int dstOff) {
+        int end = off + len;
+        int anchor = off;
+        int d = dstOff;
+
+        if (len >= MF_LIMIT + 1) {
+            java.util.Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int limit = end - MF_LIMIT;
+            int i = off;
+            while (i < limit) {
+                int v = readInt(src, i);
+                int h = hash(v);
+                int ref = table[h];
+                table[h] = i;
+                if ((ref < 0) || (i - ref > MAX_DISTANCE) || (readInt(src, ref) != v)) {
+                    i++;
+                    continue;
+                }
+                // extend backwards over pending literals
+                while ((i > anchor) && (ref > off) && (src[i - 1] == src[ref - 1])) {
+                    i--;
+                    ref--;
+                }
+                int m = MIN_MATCH;
+                while ((i + m < matchLimit) && (src[i + m] == src[ref + m])) m++;
+
+                d = writeSequence(src, anchor, i - anchor, m, i - ref, dst, d);
+                i += m;
+                anchor = i;
+                if (i < limit)
+                    table[hash(readInt(src, i - 2))] = i - 2;
+            }
+        }
+        return writeSequence(src, anchor, end - anchor, 0, 0, dst, d) - dstOff;
+    }
+
+    /**
+     * Decompress a block (reference decoder, as on the device)
+     * @param src           source
+     * @param off           offset of compressed data in source
+     * @param len           length of compressed data
+     * @param dst           destination
+     * @param dstOff        offset in destination
+     * @param dstLen        max length of decompressed data
+     * @return              length of decompressed data
+     * @throws IllegalArgumentException if the block is malformed or does not fit
+     */
+    public static int decompress(byte []src, int off, int len, byte []dst, int dstOff, int dstLen) {
+        int s = off;
+        int end = off + len;
+        int d = dstOff;
+        int dEnd = dstOff + dstLen;
+        while (s < end) {
+            int token = src[s++] & 0xff;
+            int litLen = token >>> 4;
+            if (litLen == 15) {
+                int b;
+                do {
+                    if (s >= end) throw new IllegalArgumentException("truncated literal length");
+                    b = src[s++] & 0xff;
+                    litLen += b;
+                } while (b == 255);
+            }
+            if ((litLen > end - s) || (litLen > dEnd - d))
+                throw new IllegalArgumentException("literals out of bounds");
+            System.arraycopy(src, s, dst, d, litLen);
+            s += litLen;
+            d += litLen;
+            if (s == end) break;  // last sequence has no match
+
+            if (end - s < 2) throw new IllegalArgumentException("truncated offset");
+            int offset = (src[s] & 0xff) | ((src[s + 1] & 0xff) << 8);
+            s += 2;
+            if ((offset == 0) || (offset > d - dstOff))
+                throw new IllegalArgumentException("bad offset");
+            int matchLen = token & 0xf;
+            if (matchLen == 15) {
+                int b;
+                do {
+                    if (s >= end) throw new IllegalArgumentException("truncated match length");
+                    b = src[s++] & 0xff;
+                    matchLen += b;
+                } while (b == 255);
+            }
+            matchLen += MIN_MATCH;
+            if (matchLen > dEnd - d)
+                throw new IllegalArgumentException("match out of bounds");
+            // byte by byte, as matches may overlap
+            for (int i = 0; i < matchLen; i++, d++)
+                dst[d] = dst[d - offset];
+        }
+        return d - dstOff;
+    }
+}
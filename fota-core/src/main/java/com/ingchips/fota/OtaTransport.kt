@@ -0,0 +1,91 @@
+package com.ingchips.fota
+
+/**
+ * Transport of INGChips FOTA Service, on which `FotaSession` runs.
+ *
+ * A transport is already connected to the device, with the service discovered.
+ * On Android, this is implemented on top of GATT (@see Updater.BLEDriver).
+ */
+interface OtaTransport {
+    /**
+     * Max size of a single write to the data characteristic
+     */
+    val mtu: Int
+
+    /**
+     * Max link layer payload (27, or up to 251 with Data Length Extension), 0 if unknown
+     *
+     * When known, data chunks are sized to fill whole link layer PDUs (@see LinkLayer).
+     */
+    val dataLength: Int
+        get() = 0
+
+    /**
+     * Whether the public key characteristic exists, i.e. secure FOTA is used
+     */
+    val hasPubKey: Boolean
+
+    suspend fun WriteCtrl(bytes: ByteArray): Boolean
+
+    suspend fun ReadCtrl(): ByteArray?
+
+    /**
+     * Subscribe to value changes of the control characteristic
+     * @return              false if not supported by the device
+     */
+    suspend fun SubscribeCtrl(): Boolean {
+        return false
+    }
+
+    /**
+     * Wait for the control characteristic to be notified after the last `WriteCtrl`
+     * @param timeoutMillis max time to wait
+     * @return              the notified value, or null on timeout
+     */
+    suspend fun AwaitCtrl(timeoutMillis: Long): ByteArray? {
+        return null
+    }
+
+    /**
+     * Write to the data characteristic
+     *
+     * A pipelined transport (@see isDataPipelined) may return before the write completes,
+     * in which case errors are reported by `FlushData`. The caller may reuse `bytes`
+     * once `FlushData` has returned true, so a transport must not keep it afterwards.
+     */
+    suspend fun WriteData(bytes: ByteArray): Boolean
+
+    /**
+     * Whether `WriteData` is pipelined and flow-controlled by the transport itself,
+     * so that no pause is needed between writes
+     */
+    val isDataPipelined: Boolean
+        get() = false
+
+    /**
+     * Wait for all pending data writes to complete
+     * @return              true if all of them succeeded
+     */
+    suspend fun FlushData(): Boolean {
+        return true
+    }
+
+    /**
+     * Read the data characteristic, i.e. flash content at the address of the last `OTA_CTRL_READ_PAGE`
+     * @return              the content, or null if not supported by the device
+     */
+    suspend fun ReadData(): ByteArray? {
+        return null
+    }
+
+    suspend fun ReadVersion(): ByteArray?
+
+    suspend fun ReadPubKey(): ByteArray?
+
+    suspend fun WritePubKey(bytes: ByteArray): Boolean
+
+    /**
+     * Disconnect from the device
+     */
+    fun close()
+}
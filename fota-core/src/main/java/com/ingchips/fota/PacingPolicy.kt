@@ -0,0 +1,62 @@
+package com.ingchips.fota
+
+/**
+ * Pacing of the FOTA data path, i.e. how fast `FotaSession` pushes data.
+ *
+ * The session asks the policy for chunk size and pauses, and reports what it
+ * observes (write latency, status polls after each page, retries).
+ *
+ * Implementations:
+ *
+ * 1. `FixedPacing`: constant pauses, full MTU chunks;
+ * 1. `AimdPacing`: adapts to the link (default).
+ */
+interface PacingPolicy {
+
+    data class State(
+        val chunkGap: Long,         // ms between data writes
+        val pageGap: Long,          // ms between PAGE_END and the first status poll
+        val chunkSize: Int,         // bytes per data write, 0 if not limited below MTU
+        val pages: Int,             // pages burned
+        val retries: Int,           // pages retried
+        val latencyMicros: Long     // average write latency of the last page
+    )
+
+    /**
+     * Pause between data writes in ms (not used by pipelined transports)
+     */
+    val chunkGap: Long
+
+    /**
+     * Pause between PAGE_END and the first status poll in ms
+     */
+    val pageGap: Long
+
+    /**
+     * @param mtu           max size of a single write
+     * @return              bytes per data write, no more than `mtu`
+     */
+    fun chunkSize(mtu: Int): Int
+
+    /**
+     * @param bytes         size of the chunk
+     * @param nanos         time spent in `OtaTransport.WriteData`
+     */
+    fun onChunkWritten(bytes: Int, nanos: Long)
+
+    /**
+     * A page is burned successfully
+     * @param statusPolls   number of status reads until the device reported OK
+     */
+    fun onPageDone(statusPolls: Int)
+
+    /**
+     * A page failed and is to be retried
+     */
+    fun onPageRetry()
+
+    /**
+     * Current state, for display and logging
+     */
+    val state: State
+}
@@ -0,0 +1,443 @@
+package com.ingchips.fota;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * On-disk cache of downloads (e.g. `latest.json` and update packages), revalidated
+ * with conditional GETs
+ *
+ * Contents are stored once per SHA-256 digest (`blobs/<digest>`): a download is verified
+ * once before it is moved there, and its size is checked whenever it is served. For each
+ * URL, the digest, size, `ETag` and `Last-Modified` of the last response are recorded
+ * (`urls/<digest of URL>`), so a repeated fetch
+ * sends `If-None-Match`/`If-Modified-Since` and an unchanged resource costs a `304`
+ * instead of a download. Contents beyond `maxBytes` are dropped, least recently used first.
+ *
+ * Downloads of different URLs run in parallel: only the lookups and the final move into
+ * `blobs` are serialized.
+ *
+ * Usage:
+ *
+ * 1. Create an instance on a directory;
+ * 1. Call `fetch` (on a worker thread) and use the `file` of the result,
+ *    e.g. `UpdatePackage.LoadFromFile`.
+ */
+public class PackageCache {
+    static public final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static public final int DEFAULT_TIMEOUT = 15000;
+
+    /**
+     * A cached content
+     */
+    public static class Entry {
+        public final File file;
+        public final String digest;     // SHA-256, in hex
+        public final boolean downloaded;// false if served from the cache
+        public final boolean stale;     // served from the cache as the server is not reachable
+
+        Entry(File file, String digest, boolean downloaded, boolean stale) {
+            this.file = file;
+            this.digest = digest;
+            this.downloaded = downloaded;
+            this.stale = stale;
+        }
+
+        public long size() {
+            return file.length();
+        }
+
+        public ByteSink read() throws IOException {
+            try (FileInputStream in = new FileInputStream(file)) {
+                return ByteSink.readFully(in, file.length());
+            }
+        }
+    }
+
+    private final File blobs;
+    private final File urls;
+    private final File downloading;
+    private final long maxBytes;
+    private int timeout = DEFAULT_TIMEOUT;
+    private long hits;
+    private long downloads;
+
+    /**
+     * Create an instance
+     * @param dir           directory of the cache
+     * @param maxBytes      max total size of contents
+     */
+    public PackageCache(File dir, long maxBytes) {
+        this.blobs = new File(dir, "blobs");
+        this.urls = new File(dir, "urls");
+        this.downloading = new File(dir, "tmp");
+        this.maxBytes = maxBytes;
+    }
+
+    public PackageCache(File dir) {
+        this(dir, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param timeout       connect and read timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getDownloads() {
+        return downloads;
+    }
+
+    static private String hex(byte []b) {
+        StringBuilder sb = new StringBuilder();
+        for (byte x : b)
+            sb.append(String.format("%02x", x));
+        return sb.toString();
+    }
+
+    static private String keyOf(String url) {
+        return hex(KeyUtils.SHA256(url.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Validators of the last response of a URL
+     */
+    static private class Record {
+        String digest;
+        String etag;
+        String lastModified;
+        long size = -1;
+
+        static Record parse(String s) {
+            String []lines = s.split("\n", -1);
+            if (lines.length < 3) return null;
+            Record r = new Record();
+            r.digest = lines[0];
+            r.etag = lines[1].isEmpty() ? null : lines[1];
+            r.lastModified = lines[2].isEmpty() ? null : lines[2];
+            // records of older versions have no size
+            if (lines.length > 3) {
+                try {
+                    r.size = Long.parseLong(lines[3]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return r;
+        }
+
+        @Override
+        public String toString() {
+            return digest + "\n" + (etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "")
+                    + "\n" + size;
+        }
+    }
+
+    private Record loadRecord(String url) {
+        File f = new File(urls, keyOf(url));
+        try (FileInputStream in = new FileInputStream(f)) {
+            return Record.parse(new String(ByteSink.readFully(in, f.length()).toByteArray(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void saveRecord(String url, Record r) {
+        if (!urls.isDirectory() && !urls.mkdirs()) return;
+        File f = new File(urls, keyOf(url));
+        File tmp = new File(urls, f.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(r.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            return;
+        }
+        if (!tmp.renameTo(f))
+            tmp.delete();
+    }
+
+    /**
+     * Consumer of a download while it arrives (@see fetch)
+     */
+    public interface StreamReader {
+        /**
+         * @param in            the download; need not be read to the end, nor closed
+         */
+        void read(InputStream in) throws IOException;
+    }
+
+    /**
+     * A stream digesting, and copying to `out`, whatever is read through it
+     */
+    static private class DigestStream extends FilterInputStream {
+        private final SHA256Digest digest = new SHA256Digest();
+        private final OutputStream out;
+
+        DigestStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                digest.update((byte)b);
+                if (out != null) out.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte []b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                digest.update(b, off, n);
+                if (out != null) out.write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte []buf = new byte[(int)Math.min(n, 4096)];
+            return Math.max(0, read(buf, 0, buf.length));
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // closed by the owner
+        }
+
+        /**
+         * Read the rest of the stream
+         * @return              SHA-256 of the whole stream, in hex
+         */
+        String finish() throws IOException {
+            byte []buf = new byte[16 * 1024];
+            while (read(buf, 0, buf.length) >= 0) ;
+            byte []r = new byte[digest.getDigestSize()];
+            digest.doFinal(r, 0);
+            return hex(r);
+        }
+    }
+
+    /**
+     * Look up a content
+     *
+     * A blob is verified before it is stored, so it is not hashed again here.
+     *
+     * @param digest        SHA-256 in hex
+     * @param size          expected size, or -1 if unknown
+     * @return              the file, or null if missing or corrupted (then it is removed)
+     */
+    private File lookup(String digest, long size) {
+        File f = new File(blobs, digest);
+        if (!f.isFile()) return null;
+        if ((size >= 0) && (f.length() != size)) {
+            f.delete();
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+        return f;
+    }
+
+    /**
+     * Get a content if cached, without any network access
+     * @param url           the URL
+     * @return              the entry, or null if not cached
+     */
+    public synchronized Entry get(String url) {
+        Record r = loadRecord(url);
+        if (r == null) return null;
+        File f = lookup(r.digest, r.size);
+        return f != null ? new Entry(f, r.digest, false, false) : null;
+    }
+
+    /**
+     * Fetch a URL, revalidating the cached content if any
+     *
+     * When the server is not reachable, the cached content is served as `stale`.
+     * A download is passed to `reader` (if any) while it arrives, e.g. to parse it with
+     * `PackageStream`; it is not called for contents served from the cache. Once it is
+     * called, a failed download is not replaced by the cached content.
+     *
+     * @param url           the URL
+     * @param sha256        expected SHA-256 in hex (e.g. from `latest.json`), or null
+     * @param reader        consumer of a download, or null
+     * @return              the entry
+     * @throws IOException  if it can't be downloaded nor served from the cache, the
+     *                      content does not match `sha256`, or `reader` fails
+     */
+    public Entry fetch(String url, String sha256, StreamReader reader) throws IOException {
+        Record r;
+        File cached;
+        synchronized (this) {
+            if (sha256 != null) {
+                // content is pinned by its digest: no need to ask the server if it is cached
+                String digest = sha256.toLowerCase(Locale.ROOT);
+                File f = lookup(digest, -1);
+                if (f != null) {
+                    hits++;
+                    return new Entry(f, digest, false, false);
+                }
+            }
+
+            r = loadRecord(url);
+            cached = (r != null) && (sha256 == null) ? lookup(r.digest, r.size) : null;
+        }
+
+        Record n = new Record();
+        File tmp;
+        boolean reading = false;
+        HttpURLConnection conn = null;
+        try {
+            URLConnection c = new URL(url).openConnection();
+            c.setUseCaches(false);
+            c.setConnectTimeout(timeout);
+            c.setReadTimeout(timeout);
+            if (c instanceof HttpURLConnection) {
+                conn = (HttpURLConnection)c;
+                if (cached != null) {
+                    if (r.etag != null) conn.setRequestProperty("If-None-Match", r.etag);
+                    if (r.lastModified != null) conn.setRequestProperty("If-Modified-Since", r.lastModified);
+                }
+                int code = conn.getResponseCode();
+                if ((code == HttpURLConnection.HTTP_NOT_MODIFIED) && (cached != null)) {
+                    synchronized (this) {
+                        hits++;
+                    }
+                    return new Entry(cached, r.digest, false, false);
+                }
+                if (code != HttpURLConnection.HTTP_OK)
+                    throw new IOException("HTTP " + code + ": " + url);
+            }
+            n.etag = c.getHeaderField("ETag");
+            n.lastModified = c.getHeaderField("Last-Modified");
+            reading = reader != null;
+            tmp = download(c.getInputStream(), n, reader);
+        } catch (IOException e) {
+            if ((cached == null) || reading) throw e;
+            synchronized (this) {
+                hits++;
+            }
+            return new Entry(cached, r.digest, false, true);
+        } finally {
+            if (conn != null) conn.disconnect();
+        }
+
+        try {
+            // never moved into `blobs` if it is not the expected content
+            if ((sha256 != null) && !sha256.equalsIgnoreCase(n.digest))
+                throw new IOException("digest mismatch: " + url);
+            synchronized (this) {
+                File f = store(tmp, n.digest);
+                saveRecord(url, n);
+                downloads++;
+                evict(f);
+                return new Entry(f, n.digest, true, false);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    public Entry fetch(String url, String sha256) throws IOException {
+        return fetch(url, sha256, null);
+    }
+
+    public Entry fetch(String url) throws IOException {
+        return fetch(url, null, null);
+    }
+
+    /**
+     * Download a stream into a temporary file
+     * @param in            the stream, closed on return
+     * @param r             `digest` and `size` are set on return
+     * @param reader        consumer of the stream, or null
+     * @return              the file, to be deleted by the caller
+     */
+    private File download(InputStream in, Record r, StreamReader reader) throws IOException {
+        if (!downloading.isDirectory() && !downloading.mkdirs())
+            throw new IOException("can't create " + downloading);
+        File tmp = File.createTempFile("download", ".tmp", downloading);
+        boolean done = false;
+        try (InputStream s = in; FileOutputStream out = new FileOutputStream(tmp)) {
+            DigestStream d = new DigestStream(s, out);
+            if (reader != null) reader.read(d);
+            r.digest = d.finish();
+            done = true;
+        } finally {
+            if (!done) tmp.delete();
+        }
+        r.size = tmp.length();
+        return tmp;
+    }
+
+    /**
+     * Move a verified download into `blobs`
+     * @param tmp           the download
+     * @param digest        its digest
+     * @return              the blob
+     */
+    private File store(File tmp, String digest) throws IOException {
+        if (!blobs.isDirectory() && !blobs.mkdirs())
+            throw new IOException("can't create " + blobs);
+        File f = new File(blobs, digest);
+        if (f.isFile() && (f.length() == tmp.length())) {
+            // same content from another URL, or a previous version
+            f.setLastModified(System.currentTimeMillis());
+            return f;
+        }
+        f.delete();
+        if (!tmp.renameTo(f))
+            throw new IOException("can't rename " + tmp);
+        return f;
+    }
+
+    /**
+     * Remove least recently used contents until the total size is within `maxBytes`
+     * @param keep          content just used, never removed
+     */
+    private void evict(File keep) {
+        File []files = blobs.listFiles();
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files) {
+            if (total <= maxBytes) break;
+            if (f.equals(keep)) continue;
+            total -= f.length();
+            f.delete();
+        }
+    }
+}
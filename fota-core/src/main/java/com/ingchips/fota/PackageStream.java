@@ -0,0 +1,158 @@
+package com.ingchips.fota;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Parser of an update package (a .zip archive) as its bytes arrive, e.g. while downloading
+ *
+ * The manifest is exposed as soon as it is seen, and each item as soon as it is complete
+ * (its CRC checked by the Zip stream). So the version can be compared and a plan be made
+ * (@see planFor) before the rest of the archive arrives, e.g. a platform binary which
+ * the device does not need.
+ *
+ * Usage:
+ *
+ * 1. Create an instance with a `Listener`;
+ * 1. Call `parse` on a worker thread (e.g. from `PackageCache.fetch`);
+ * 1. Call `planFor` on events of the listener, until it gives a plan.
+ */
+public class PackageStream {
+
+    /**
+     * Events of the parser, called on the thread of `parse`
+     */
+    public interface Listener {
+        void onManifest(ProductVersion version);
+
+        /**
+         * An item is complete; its load address is set if the manifest is seen
+         */
+        void onItem(UpdateItem item);
+    }
+
+    private final Listener listener;
+    private final Hashtable<String, UpdateItem> contents = new Hashtable<>();
+    private UpdatePackage.Manifest manifest;
+    private UpdatePackage pack;
+
+    /**
+     * Create an instance
+     * @param listener      the listener, or null
+     */
+    public PackageStream(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Parse an archive
+     *
+     * Note: the stream is not closed, and bytes after the last entry (the central
+     * directory) are not read.
+     *
+     * @param stream        input stream of the archive
+     * @return              the package
+     * @throws IOException  if the stream fails, or the archive is not a valid package
+     */
+    public UpdatePackage parse(InputStream stream) throws IOException {
+        ZipInputStream zipIn = new ZipInputStream(stream);
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+            if (!entry.isDirectory()) {
+                String name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                // size is -1 when the entry is followed by a data descriptor; when it is
+                // known, the buffer fits exactly and is handed over without a copy
+                ByteSink data = ByteSink.readFully(zipIn, entry.getSize());
+                add(new UpdateItem(name, data.toByteArray()));
+            }
+            zipIn.closeEntry();
+        }
+
+        UpdatePackage r = UpdatePackage.fromContents(contents);
+        if (r == null)
+            throw new ZipException("invalid update package");
+        synchronized (this) {
+            pack = r;
+        }
+        return r;
+    }
+
+    private void add(UpdateItem item) throws IOException {
+        ProductVersion seen = null;
+        synchronized (this) {
+            contents.put(item.name, item);
+            if ((manifest == null) && item.name.equals(UpdatePackage.Manifest.NAME)) {
+                try {
+                    manifest = new UpdatePackage.Manifest(UpdatePackage.asString(item));
+                } catch (JSONException e) {
+                    throw new ZipException("invalid manifest: " + e.getMessage());
+                }
+                // items seen before the manifest
+                for (UpdateItem i : contents.values()) {
+                    int addr = manifest.addressOf(i.name);
+                    if (addr >= 0) i.loadAddr = addr;
+                }
+                seen = manifest.version;
+            } else if (manifest != null) {
+                int addr = manifest.addressOf(item.name);
+                if (addr >= 0) item.loadAddr = addr;
+            }
+        }
+        if (listener == null) return;
+        if (seen != null) listener.onManifest(seen);
+        listener.onItem(item);
+    }
+
+    /**
+     * @return              version of the package, or null if the manifest is not seen yet
+     */
+    public synchronized ProductVersion getVersion() {
+        return manifest != null ? manifest.version : null;
+    }
+
+    /**
+     * @return              the package, or null if not parsed to the end yet
+     */
+    public synchronized UpdatePackage getPackage() {
+        return pack;
+    }
+
+    /**
+     * Make a plan for a device from the items complete so far
+     *
+     * The plan is the same as `PlanBuilder.fromPackage` makes from the whole package.
+     * Until the end, the platform binary listed by the manifest is assumed to be in the
+     * archive, so a plan which does not update the App has to wait for it.
+     *
+     * @param devVersion    current version of the device
+     * @return              the plan, or null if items it needs are not complete yet
+     */
+    public synchronized PlanBuilder.Plan planFor(ProductVersion devVersion) {
+        if (pack != null) return PlanBuilder.fromPackage(pack, devVersion);
+        if (manifest == null) return null;
+
+        UpdateItem platform = contents.get(manifest.platformName);
+        PlanBuilder.Plan r = PlanBuilder.decide(manifest.version, true, manifest.entry, devVersion);
+        // without the platform binary, the App would be updated anyway
+        if ((platform == null) && !r.app) return null;
+
+        List<UpdateItem> items = new ArrayList<>();
+        if (r.platform) items.add(platform);
+        if (r.app) items.add(contents.get(manifest.appName));
+        for (String name : manifest.binNames)
+            items.add(contents.get(name));
+        for (UpdateItem item : items) {
+            if (item == null) return null;
+            r.items.add(new UpdateItem(item));
+        }
+        return r;
+    }
+}
@@ -0,0 +1,74 @@
+package com.ingchips.fota;
+
+/**
+ * Compressed page frames, sent after `OTA_CTRL_PAGE_BEGIN_COMPRESSED`
+ *
+ * A frame is:
+ *
+ * 1. plain length (U16 LE);
+ * 1. block length (U16 LE);
+ * 1. the page compressed as a LZ4 block (@see Lz4).
+ *
+ * CRC and signature in `OTA_CTRL_PAGE_END` still cover the plain page.
+ */
+public class PageCompressor {
+    public static final int HEADER_SIZE = 4;
+
+    private final Lz4 lz4 = new Lz4();
+    private byte []buf = new byte[0];
+
+    /**
+     * Make a frame for a page
+     * @param page          the page
+     * @return              the frame, or null if it is not smaller than the page
+     */
+    public byte[] encode(byte []page) {
+        int max = maxFrameSize(page.length);
+        if (buf.length < max) buf = new byte[max];
+        int n = encode(page, 0, page.length, buf);
+        return n < 0 ? null : java.util.Arrays.copyOf(buf, n);
+    }
+
+    /**
+     * Size of a buffer large enough for the frame of any page of `pageSize` bytes
+     */
+    public static int maxFrameSize(int pageSize) {
+        return HEADER_SIZE + Lz4.maxCompressedLength(pageSize);
+    }
+
+    /**
+     * Make a frame for a page into a buffer, e.g. a pooled one
+     * @param page          the page
+     * @param offset        offset of the page in `page`
+     * @param len           size of the page
+     * @param frame         buffer of at least `maxFrameSize(len)` bytes
+     * @return              size of the frame, or -1 if it is not smaller than the page
+     */
+    public int encode(byte []page, int offset, int len, byte []frame) {
+        int n = lz4.compress(page, offset, len, frame, HEADER_SIZE);
+        if ((HEADER_SIZE + n >= len) || (len > 0xffff))
+            return -1;
+        Utils.writeU16LE(frame, 0, len);
+        Utils.writeU16LE(frame, 2, n);
+        return HEADER_SIZE + n;
+    }
+
+    /**
+     * Decode a frame, as the device does
+     * @param frame         the frame
+     * @return              the plain page
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static byte[] decode(byte []frame) {
+        if (frame.length < HEADER_SIZE)
+            throw new IllegalArgumentException("truncated header");
+        int plain = Utils.readU16LE(frame, 0);
+        int n = Utils.readU16LE(frame, 2);
+        if (HEADER_SIZE + n != frame.length)
+            throw new IllegalArgumentException("bad block length");
+        byte []r = new byte[plain];
+        if (Lz4.decompress(frame, HEADER_SIZE, n, r, 0, plain) != plain)
+            throw new IllegalArgumentException("bad plain length");
+        return r;
+    }
+}
@@ -0,0 +1,51 @@
+package com.ingchips.fota;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder of pages into the data sent, without intermediate copies
+ *
+ * A page is copied from a view of its item (@see UpdateItem.read) into a (pooled) buffer,
+ * the XOR keystream of secure FOTA is applied and the CRC is computed, block by block, so
+ * each byte is touched once while it is in cache.
+ *
+ * Not thread-safe: use one instance per thread.
+ */
+public class PageEncoder {
+    // a multiple of the keystream length, so each block starts at keystream offset 0
+    static private final int BLOCK = 256;
+    static private final int KEY_SIZE = 32;
+
+    private final Crc16 crc = new Crc16();
+
+    /**
+     * Copy a page, applying the keystream, and compute the CRC of the result
+     * @param src           view of the page; all remaining bytes are consumed
+     * @param dst           destination, at least `src.remaining()` bytes
+     * @param xorKey        keystream (32 bytes), or null to copy as is
+     * @return              CRC of the bytes written into `dst`
+     */
+    public int encode(ByteBuffer src, byte []dst, byte []xorKey) {
+        int len = src.remaining();
+        for (int off = 0; off < len; off += BLOCK) {
+            int n = Math.min(BLOCK, len - off);
+            src.get(dst, off, n);
+            if (xorKey != null)
+                xor(dst, off, n, xorKey);
+            crc.update(dst, off, n);
+        }
+        return crc.finish();
+    }
+
+    /**
+     * Apply the keystream in place, as `KeyUtils.encrypt` does
+     * @param data          the data
+     * @param offset        offset of the data; the keystream starts at offset 0
+     * @param len           length of the data
+     * @param xorKey        keystream (32 bytes)
+     */
+    public static void xor(byte []data, int offset, int len, byte []xorKey) {
+        for (int i = 0; i < len; i++)
+            data[offset + i] ^= xorKey[(offset + i) & (KEY_SIZE - 1)];
+    }
+}
@@ -0,0 +1,145 @@
+package com.ingchips.fota;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Journal of pages confirmed by devices, so that an interrupted update can be resumed
+ *
+ * Pages of a plan are burned in order, so a record is just the number of pages confirmed,
+ * together with the device version at that time. Records are keyed by device address,
+ * contents and plan layout (@see keyOf), so any change of them starts over.
+ *
+ * Usage:
+ *
+ * 1. Create an instance on a `Store` (e.g. `FileStore`);
+ * 1. Pass it to `FotaSession` (@see FotaSession.journal) with the key of the plan.
+ */
+public class PageJournal {
+
+    /**
+     * Persistent storage of records
+     */
+    public interface Store {
+        String load(String key);
+        void save(String key, String value);
+        void remove(String key);
+    }
+
+    /**
+     * One file per record in a directory
+     */
+    public static class FileStore implements Store {
+        private final File dir;
+
+        public FileStore(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        public String load(String key) {
+            File f = new File(dir, key);
+            try (FileInputStream in = new FileInputStream(f)) {
+                return new String(ByteSink.readFully(in, f.length()).toByteArray(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void save(String key, String value) {
+            if (!dir.isDirectory() && !dir.mkdirs()) return;
+            // write then rename, so that a record is never half written
+            File tmp = new File(dir, key + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(value.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                return;
+            }
+            if (!tmp.renameTo(new File(dir, key)))
+                tmp.delete();
+        }
+
+        @Override
+        public void remove(String key) {
+            new File(dir, key).delete();
+        }
+    }
+
+    private final Store store;
+
+    public PageJournal(Store store) {
+        this.store = store;
+    }
+
+    private static void updateU32(SHA256Digest digest, long v) {
+        byte []b = new byte[4];
+        Utils.writeU32LE(b, 0, v);
+        digest.update(b, 0, b.length);
+    }
+
+    /**
+     * Make the key of a plan for a device
+     *
+     * Note: contents of items are identified by their CRC-32 (@see UpdateItem.crc32), so
+     * items from an archive are not read, and a burn still reads them forward only.
+     *
+     * @param deviceAddress address of the device
+     * @param plan          the plan, after `PlanBuilder.makeFlashProcedure`
+     * @return              the key
+     */
+    public static String keyOf(String deviceAddress, PlanBuilder.Plan plan) {
+        SHA256Digest digest = new SHA256Digest();
+        byte []addr = deviceAddress.getBytes(StandardCharsets.UTF_8);
+        digest.update(addr, 0, addr.length);
+        updateU32(digest, plan.pageSize);
+        for (UpdateItem item : plan.items) {
+            updateU32(digest, item.writeAddr);
+            updateU32(digest, item.loadAddr);
+            updateU32(digest, item.size());
+            updateU32(digest, item.crc32());
+        }
+        byte []r = new byte[digest.getDigestSize()];
+        digest.doFinal(r, 0);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 16; i++)
+            sb.append(String.format("%02x", r[i]));
+        return sb.toString();
+    }
+
+    /**
+     * @param key           key of the plan
+     * @param devVersion    current version of the device
+     * @return              number of pages confirmed, 0 if none, or the device has changed since
+     */
+    public int confirmedPages(String key, String devVersion) {
+        String s = store.load(key);
+        if (s == null) return 0;
+        int i = s.indexOf(' ');
+        if ((i < 0) || !s.substring(i + 1).equals(devVersion)) return 0;
+        try {
+            return Integer.parseInt(s.substring(0, i));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Record that the first `pages` pages of the plan are confirmed by the device
+     */
+    public void confirm(String key, int pages, String devVersion) {
+        store.save(key, pages + " " + devVersion);
+    }
+
+    /**
+     * Remove the record, e.g. when the update is complete
+     */
+    public void clear(String key) {
+        store.remove(key);
+    }
+}
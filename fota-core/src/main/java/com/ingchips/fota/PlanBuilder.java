@@ -60,7 +60,7 @@ public class PlanBuilder {
         long FLASH_OTA_DATA_HIGH = flashTopAddress;
 
         for (UpdateItem item : plan.items) {
-            int size = ((item.data.length + (FLASH_PAGE_SIZE - 1)) / FLASH_PAGE_SIZE) * FLASH_PAGE_SIZE;
+            int size = ((item.size() + (FLASH_PAGE_SIZE - 1)) / FLASH_PAGE_SIZE) * FLASH_PAGE_SIZE;
             FLASH_OTA_DATA_HIGH -= size;
             item.writeAddr = FLASH_OTA_DATA_HIGH;
         }
@@ -71,35 +71,57 @@ public class PlanBuilder {
         for (UpdateItem item : plan.items) {
             Utils.writeU32LE(b, c, item.writeAddr); c += 4;
             Utils.writeU32LE(b, c, item.loadAddr); c += 4;
-            Utils.writeU32LE(b, c, item.data.length); c += 4;
+            Utils.writeU32LE(b, c, item.size()); c += 4;
         }
 
         Utils.writeU16LE(b, 0, Utils.crc(b, 2, b.length - 2));
 
-        plan.metaData = new UpdateItem();
-        plan.metaData.name = "metadata";
-        plan.metaData.data = b;
+        plan.metaData = new UpdateItem("metadata", b);
 
         return true;
     }
 
-    public static Plan fromPackage(UpdatePackage pack, Updater.ProductVersion devVersion) {
+    /**
+     * Make a plan for a device
+     *
+     * Items of the plan are copies sharing content with the package, so plans of
+     * several devices can be made from one package.
+     *
+     * @param pack          the package
+     * @param devVersion    current version of the device
+     * @return              the plan
+     */
+    public static Plan fromPackage(UpdatePackage pack, ProductVersion devVersion) {
+        Plan r = decide(pack.version, pack.platform != null, pack.getEntry(), devVersion);
+
+        if (r.platform) r.items.add(new UpdateItem(pack.platform));
+        if (r.app) r.items.add(new UpdateItem(pack.app));
+
+        for (UpdateItem item : pack.extraBins)
+            r.items.add(new UpdateItem(item));
+        return r;
+    }
+
+    /**
+     * Decide whether a plan updates the platform and the App, without adding any item
+     * @param version       version of the package
+     * @param hasPlatform   whether the package has a platform binary
+     * @param entry         entry of the package
+     * @param devVersion    current version of the device
+     * @return              the plan
+     */
+    static Plan decide(ProductVersion version, boolean hasPlatform, int entry, ProductVersion devVersion) {
         Plan r = new Plan();
 
-        r.entry = pack.getEntry();
+        r.entry = entry;
 
-        if (pack.platform != null) {
-            r.platform = pack.version.getPlatform().compare(devVersion.getPlatform()) != 0;
-            r.app = r.platform || pack.version.getApp().compare(devVersion.getApp()) > 0;
+        if (hasPlatform) {
+            r.platform = version.getPlatform().compare(devVersion.getPlatform()) != 0;
+            r.app = r.platform || version.getApp().compare(devVersion.getApp()) > 0;
         } else {
             r.platform = false;
             r.app = true;
         }
-
-        if (r.platform) r.items.add(pack.platform);
-        if (r.app) r.items.add(pack.app);
-
-        r.items.addAll(pack.extraBins);
         return r;
     }
 }
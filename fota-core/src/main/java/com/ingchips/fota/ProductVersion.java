@@ -0,0 +1,20 @@
+package com.ingchips.fota;
+
+/**
+ * Versions of both platform and app of a product
+ */
+public class ProductVersion {
+    private Version platform;
+    private Version app;
+
+    public ProductVersion(Version platform, Version app) {
+        this.platform = platform;
+        this.app = app;
+    }
+
+    public Version getPlatform() { return platform; }
+    public void setPlatform(Version platform) { this.platform = platform; }
+
+    public Version getApp() { return app; }
+    public void setApp(Version app) { this.app = app; }
+}
@@ -0,0 +1,113 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import java.util.concurrent.Executor
+
+/**
+ * Progress of an update as a `StateFlow` of `UpdateProgress`
+ *
+ * It listens to a `FotaSession`, so it is updated for each chunk, while the flow is
+ * conflated: collectors only see the latest snapshot. Throughput is sampled every
+ * `RATE_WINDOW_MILLIS`, and smoothed (exponential moving average), as is the ETA.
+ *
+ * Usage:
+ *
+ * 1. Pass an instance as the listener of a `FotaSession`;
+ * 1. Collect `state`, or `deliver` it to a `UpdateProgress.Listener`, e.g. on the UI thread.
+ */
+class ProgressTracker
+/**
+ * Create an instance
+ * @param clock             time source in nanoseconds
+ */(
+    private val clock: () -> Long = System::nanoTime
+) : FotaSession.Listener {
+    companion object {
+        const val RATE_WINDOW_MILLIS = 250L
+        // weight of the latest sample in the smoothed throughput
+        private const val ALPHA = 0.3
+    }
+
+    private val _state = MutableStateFlow(UpdateProgress())
+    val state: StateFlow<UpdateProgress> = _state.asStateFlow()
+
+    private var sampleAt = -1L
+    private var sampleBytes = 0
+    private var rate = 0.0
+
+    fun setPhase(phase: UpdateProgress.Phase) {
+        _state.update {
+            when (phase) {
+                UpdateProgress.Phase.DONE -> it.copy(phase = phase, etaMillis = 0)
+                UpdateProgress.Phase.FAILED -> it.copy(phase = phase, etaMillis = -1)
+                else -> it.copy(phase = phase)
+            }
+        }
+    }
+
+    override fun onPhase(phase: UpdateProgress.Phase) {
+        setPhase(phase)
+    }
+
+    override fun onMessage(msg: String) {
+        _state.update { it.copy(message = msg) }
+    }
+
+    override fun onProgress(current: Int, total: Int) {
+        val now = clock()
+        val r = synchronized(this) {
+            if ((sampleAt < 0) || (current < sampleBytes)) {
+                // first sample, or bytes given back by a retry
+                sampleAt = now
+                sampleBytes = current
+            } else if (now - sampleAt >= RATE_WINDOW_MILLIS * 1000000) {
+                val x = (current - sampleBytes) * 1e9 / (now - sampleAt)
+                rate = if (rate > 0) rate + ALPHA * (x - rate) else x
+                sampleAt = now
+                sampleBytes = current
+            }
+            rate
+        }
+        val eta = if (r > 0) ((total - current) * 1000 / r).toLong() else -1
+        _state.update {
+            it.copy(currentBytes = current, totalBytes = total, bytesPerSecond = r, etaMillis = eta)
+        }
+    }
+
+    /**
+     * Deliver snapshots to a listener, at most one every `intervalMillis`
+     *
+     * The listener runs on `executor`, e.g. posting to the UI thread, and the next snapshot
+     * is not posted before it has run, so a busy UI never queues up snapshots; it gets the
+     * latest one instead, including the final one.
+     *
+     * @param scope         scope of the delivery
+     * @param intervalMillis min time between two snapshots
+     * @param executor      where the listener runs
+     * @param listener      the listener
+     * @return              the delivery, to be cancelled when the listener goes away
+     */
+    fun deliver(scope: CoroutineScope, intervalMillis: Long, executor: Executor,
+                listener: UpdateProgress.Listener): Job = scope.launch {
+        state.collect { p ->
+            val done = CompletableDeferred<Unit>()
+            executor.execute {
+                try {
+                    listener.onUpdate(p)
+                } finally {
+                    done.complete(Unit)
+                }
+            }
+            done.await()
+            delay(intervalMillis)
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.ingchips.fota;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of session keys generated in background
+ *
+ * Each key is ready for the key exchange: its `session_pk` is signed by `root_sk` already
+ * (@see KeyUtils.presign). A key is used by one session only, and the pool is refilled in
+ * background whenever a key is taken.
+ *
+ * A key taken for a device (@see takeFor) is kept until its update is complete, so that
+ * the next attempt (a retry or a resumed update) uses it again, and finds signatures of
+ * its pages in `SignatureCache`.
+ *
+ * Usage:
+ *
+ * 1. Call `warmUp` early, e.g. while scanning;
+ * 1. Call `take` for each session, or `takeFor` and `complete` for each device.
+ */
+public class SessionKeyPool {
+    static public final int DEFAULT_CAPACITY = 4;
+
+    /**
+     * Pool shared by all sessions of the process
+     */
+    static public final SessionKeyPool SHARED = new SessionKeyPool(DEFAULT_CAPACITY);
+
+    // max number of devices whose key is kept for the next attempt
+    static private final int MAX_DEVICES = 64;
+
+    private final int capacity;
+    private final ConcurrentLinkedQueue<KeyUtils> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final LinkedHashMap<String, KeyUtils> devices = new LinkedHashMap<String, KeyUtils>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, KeyUtils> eldest) {
+            return size() > MAX_DEVICES;
+        }
+    };
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SessionKeyPool");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /**
+     * Create an instance
+     * @param capacity      number of keys kept ready
+     */
+    public SessionKeyPool(int capacity) {
+        this.capacity = capacity;
+    }
+
+    static private KeyUtils newKeys() {
+        KeyUtils r = new KeyUtils();
+        r.presign();
+        return r;
+    }
+
+    private void refill() {
+        if (!refilling.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            try {
+                while (count.get() < capacity) {
+                    ready.add(newKeys());
+                    count.incrementAndGet();
+                }
+            } finally {
+                refilling.set(false);
+            }
+            // a key may be taken after the check above
+            if (count.get() < capacity) refill();
+        });
+    }
+
+    /**
+     * Start filling the pool in background
+     */
+    public void warmUp() {
+        refill();
+    }
+
+    /**
+     * Take a key, or generate one if none is ready
+     * @return              a key not used by any other session
+     */
+    public KeyUtils take() {
+        KeyUtils r = ready.poll();
+        if (r != null) count.decrementAndGet();
+        refill();
+        return r != null ? r : newKeys();
+    }
+
+    /**
+     * Take the key of a device: the one of its last attempt if the update is not
+     * complete yet, otherwise a new one (@see take)
+     *
+     * Note: sessions of a device must not overlap, as they share the key.
+     *
+     * @param device        the device, e.g. its address
+     * @return              the key
+     */
+    public KeyUtils takeFor(String device) {
+        synchronized (devices) {
+            KeyUtils r = devices.get(device);
+            if (r != null) return r;
+        }
+        KeyUtils r = take();
+        synchronized (devices) {
+            devices.put(device, r);
+        }
+        return r;
+    }
+
+    /**
+     * The update of a device is complete, so its next session gets a new key
+     * @param device        the device
+     */
+    public void complete(String device) {
+        synchronized (devices) {
+            devices.remove(device);
+        }
+    }
+
+    /**
+     * @return              number of keys ready
+     */
+    public int size() {
+        return count.get();
+    }
+}
@@ -0,0 +1,207 @@
+package com.ingchips.fota;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Counters and latency histograms of a session, e.g. per page `PAGE_BEGIN` latency,
+ * chunk writes, status polls and retries
+ *
+ * Histograms have fixed buckets in milliseconds (@see BUCKETS_MILLIS), so reports of
+ * different phones, firmware builds and pacing settings can be compared bucket by bucket.
+ * Labels (e.g. phone model, device version) describe the session.
+ * It is safe to use from several threads.
+ *
+ * Usage:
+ *
+ * 1. `label` the session, then `count` and `observe` while it runs;
+ * 1. Export it with `toJson` or `toOpenMetrics`.
+ */
+public class SessionMetrics {
+    /**
+     * Upper bounds of histogram buckets; a last bucket takes the rest
+     */
+    static public final double []BUCKETS_MILLIS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000
+    };
+
+    /**
+     * Latencies of an operation
+     */
+    static public class Histogram {
+        private final long []buckets = new long[BUCKETS_MILLIS.length + 1];
+        private long count;
+        private double sum;
+        private double min = Double.MAX_VALUE;
+        private double max;
+
+        void observe(double millis) {
+            int i = 0;
+            while ((i < BUCKETS_MILLIS.length) && (millis > BUCKETS_MILLIS[i])) i++;
+            buckets[i]++;
+            count++;
+            sum += millis;
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+        }
+
+        public long getCount() { return count; }
+        public double getSum() { return sum; }
+        public double getMin() { return count > 0 ? min : 0; }
+        public double getMax() { return max; }
+
+        /**
+         * Estimate a quantile as the upper bound of its bucket (the max for the last one)
+         * @param q             quantile, e.g. 0.5 for the median
+         */
+        public double quantile(double q) {
+            long rank = (long)Math.ceil(q * count);
+            long n = 0;
+            for (int i = 0; i < BUCKETS_MILLIS.length; i++) {
+                n += buckets[i];
+                if (n >= rank) return Math.min(BUCKETS_MILLIS[i], max);
+            }
+            return max;
+        }
+    }
+
+    private final TreeMap<String, String> labels = new TreeMap<>();
+    private final TreeMap<String, Long> counters = new TreeMap<>();
+    private final TreeMap<String, Histogram> histograms = new TreeMap<>();
+
+    public synchronized void label(String name, String value) {
+        labels.put(name, value);
+    }
+
+    public synchronized void count(String name, long delta) {
+        Long v = counters.get(name);
+        counters.put(name, (v != null ? v : 0) + delta);
+    }
+
+    public void count(String name) {
+        count(name, 1);
+    }
+
+    /**
+     * Add a latency
+     * @param name          operation, e.g. "page_begin"
+     * @param nanos         latency in nanoseconds
+     */
+    public synchronized void observe(String name, long nanos) {
+        Histogram h = histograms.get(name);
+        if (h == null) {
+            h = new Histogram();
+            histograms.put(name, h);
+        }
+        h.observe(nanos / 1e6);
+    }
+
+    public synchronized long getCounter(String name) {
+        Long v = counters.get(name);
+        return v != null ? v : 0;
+    }
+
+    /**
+     * @return              the histogram, or null if nothing is observed
+     */
+    public synchronized Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    static private String quote(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if ((c == '"') || (c == '\\')) b.append('\\').append(c);
+            else if (c < 0x20) b.append(String.format("\\u%04x", (int)c));
+            else b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    // OpenMetrics label values only escape backslash, double quote and line feed
+    static private String labelValue(String s) {
+        StringBuilder b = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if ((c == '"') || (c == '\\')) b.append('\\').append(c);
+            else if (c == '\n') b.append("\\n");
+            else b.append(c);
+        }
+        return b.append('"').toString();
+    }
+
+    static private String num(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    /**
+     * Compact JSON: labels, counters, and for each histogram count, sum, min, max,
+     * p50, p90, p99 (milliseconds) and bucket counts
+     */
+    public synchronized String toJson() {
+        StringBuilder b = new StringBuilder("{\"labels\":{");
+        String sep = "";
+        for (Map.Entry<String, String> e : labels.entrySet()) {
+            b.append(sep).append(quote(e.getKey())).append(':').append(quote(e.getValue()));
+            sep = ",";
+        }
+        b.append("},\"counters\":{");
+        sep = "";
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            b.append(sep).append(quote(e.getKey())).append(':').append(e.getValue());
+            sep = ",";
+        }
+        b.append("},\"histograms\":{");
+        sep = "";
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            b.append(sep).append(quote(e.getKey())).append(":{\"count\":").append(h.count)
+                    .append(",\"sum\":").append(num(h.sum))
+                    .append(",\"min\":").append(num(h.getMin()))
+                    .append(",\"max\":").append(num(h.max))
+                    .append(",\"p50\":").append(num(h.quantile(0.5)))
+                    .append(",\"p90\":").append(num(h.quantile(0.9)))
+                    .append(",\"p99\":").append(num(h.quantile(0.99)))
+                    .append(",\"buckets\":[");
+            for (int i = 0; i < h.buckets.length; i++)
+                b.append(i > 0 ? "," : "").append(h.buckets[i]);
+            b.append("]}");
+            sep = ",";
+        }
+        return b.append("}}").toString();
+    }
+
+    /**
+     * OpenMetrics text: counters as `fota_<name>_total`, histograms as `fota_<name>_ms`
+     * with cumulative buckets; labels are attached to every sample
+     */
+    public synchronized String toOpenMetrics() {
+        StringBuilder l = new StringBuilder();
+        for (Map.Entry<String, String> e : labels.entrySet())
+            l.append(l.length() > 0 ? "," : "").append(e.getKey()).append('=').append(labelValue(e.getValue()));
+        String common = l.toString();
+        String plain = common.isEmpty() ? "" : "{" + common + "}";
+
+        StringBuilder b = new StringBuilder();
+        for (Map.Entry<String, Long> e : counters.entrySet()) {
+            String name = "fota_" + e.getKey();
+            b.append("# TYPE ").append(name).append(" counter\n");
+            b.append(name).append("_total").append(plain).append(' ').append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            String name = "fota_" + e.getKey() + "_ms";
+            Histogram h = e.getValue();
+            b.append("# TYPE ").append(name).append(" histogram\n");
+            long n = 0;
+            for (int i = 0; i < h.buckets.length; i++) {
+                n += h.buckets[i];
+                String le = i < BUCKETS_MILLIS.length ? num(BUCKETS_MILLIS[i]) : "+Inf";
+                b.append(name).append("_bucket{").append(common).append(common.isEmpty() ? "" : ",")
+                        .append("le=\"").append(le).append("\"} ").append(n).append('\n');
+            }
+            b.append(name).append("_count").append(plain).append(' ').append(h.count).append('\n');
+            b.append(name).append("_sum").append(plain).append(' ').append(num(h.sum)).append('\n');
+        }
+        return b.append("# EOF\n").toString();
+    }
+}
@@ -0,0 +1,77 @@
+package com.ingchips.fota;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of page signatures, keyed by (session key, page digest)
+ *
+ * Signatures of a session key stay valid for any page with the same content, so sessions
+ * sharing a session key never sign a page twice, e.g. a new attempt on a device after a
+ * failure or disconnection (@see SessionKeyPool.takeFor). The least recently used
+ * entries are dropped when the cache is full. It is safe to use from several threads.
+ */
+public class SignatureCache {
+    static public final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Cache shared by all sessions of the process
+     */
+    static public final SignatureCache SHARED = new SignatureCache(DEFAULT_CAPACITY);
+
+    private final LinkedHashMap<ByteBuffer, byte[]> entries;
+    private long hits;
+    private long misses;
+
+    /**
+     * Create an instance
+     * @param capacity      max number of signatures
+     */
+    public SignatureCache(final int capacity) {
+        entries = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    static private ByteBuffer keyOf(byte []sessionPk, byte []digest) {
+        ByteBuffer r = ByteBuffer.allocate(sessionPk.length + digest.length);
+        r.put(sessionPk).put(digest);
+        r.flip();
+        return r;
+    }
+
+    /**
+     * @param sessionPk     public key of the session
+     * @param digest        SHA-256 of the page
+     * @return              the signature, or null if not cached
+     */
+    public synchronized byte[] get(byte []sessionPk, byte []digest) {
+        byte []r = entries.get(keyOf(sessionPk, digest));
+        if (r != null) hits++; else misses++;
+        return r;
+    }
+
+    public synchronized void put(byte []sessionPk, byte []digest, byte []sig) {
+        entries.put(keyOf(sessionPk, digest), sig);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,37 @@
+package com.ingchips.fota
+
+/**
+ * Durations of the steps of connection setup, e.g. connect, MTU, key exchange
+ *
+ * Steps may be recorded from several coroutines; a step measured in background while
+ * other steps run (e.g. ECDH during GATT round trips) overlaps them.
+ */
+class StepTimings {
+    data class Step(val name: String, val millis: Double)
+
+    private val list = ArrayList<Step>()
+
+    val steps: List<Step>
+        get() = synchronized(list) { ArrayList(list) }
+
+    fun add(name: String, nanos: Long) {
+        synchronized(list) { list.add(Step(name, nanos / 1e6)) }
+    }
+
+    inline fun <T> measure(name: String, block: () -> T): T {
+        val t = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            add(name, System.nanoTime() - t)
+        }
+    }
+
+    fun clear() {
+        synchronized(list) { list.clear() }
+    }
+
+    override fun toString(): String {
+        return steps.joinToString(", ") { String.format("%s %.1f ms", it.name, it.millis) }
+    }
+}
@@ -0,0 +1,129 @@
+package com.ingchips.fota;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Representation of a file (an Item) to be updated
+ *
+ * Content of an item is materialized on demand (@see Content), so large packages
+ * need not be held in memory.
+ */
+public class UpdateItem {
+    String name;
+    long writeAddr;
+    long loadAddr;
+    private final Content content;
+
+    /**
+     * Source of the bytes of an item
+     */
+    public interface Content {
+        int size();
+
+        /**
+         * Read a range of the content
+         *
+         * The returned buffer may be a read-only view of the underlying storage,
+         * and is only valid until the next call.
+         *
+         * @param offset        offset of the range
+         * @param len           length of the range
+         * @return              a buffer with exactly `len` bytes remaining
+         * @throws IOException  if the content can't be read
+         */
+        ByteBuffer read(int offset, int len) throws IOException;
+
+        /**
+         * CRC-32 of the whole content, known without reading it when it comes from an
+         * archive (the Zip directory records it)
+         */
+        long crc32();
+    }
+
+    static private class ArrayContent implements Content {
+        private final byte []data;
+
+        ArrayContent(byte []data) {
+            this.data = data;
+        }
+
+        @Override
+        public int size() {
+            return data.length;
+        }
+
+        @Override
+        public ByteBuffer read(int offset, int len) {
+            return ByteBuffer.wrap(data, offset, len).slice();
+        }
+
+        @Override
+        public long crc32() {
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            return crc.getValue();
+        }
+    }
+
+    public UpdateItem(String name, Content content) {
+        this.name = name;
+        this.content = content;
+    }
+
+    public UpdateItem(String name, byte []data) {
+        this(name, new ArrayContent(data));
+    }
+
+    /**
+     * Copy an item, sharing its content
+     */
+    public UpdateItem(UpdateItem other) {
+        this(other.name, other.content);
+        writeAddr = other.writeAddr;
+        loadAddr = other.loadAddr;
+    }
+
+    public String getName() { return name; }
+
+    Content getContent() { return content; }
+
+    public int size() {
+        return content.size();
+    }
+
+    /**
+     * CRC-32 of the content (@see Content.crc32)
+     */
+    public long crc32() {
+        return content.crc32();
+    }
+
+    /**
+     * Read a range of the content (@see Content.read)
+     */
+    public ByteBuffer read(int offset, int len) throws IOException {
+        return content.read(offset, len);
+    }
+
+    /**
+     * Copy a range of the content into a new array
+     */
+    public byte[] copyOfRange(int offset, int len) throws IOException {
+        byte []r = new byte[len];
+        content.read(offset, len).get(r);
+        return r;
+    }
+
+    /**
+     * Get the whole content as an array
+     *
+     * Note: this materializes the whole item, so use `read` for large items.
+     */
+    public byte[] getData() throws IOException {
+        if (content instanceof ArrayContent)
+            return ((ArrayContent)content).data;
+        return copyOfRange(0, size());
+    }
+}
@@ -0,0 +1,237 @@
+package com.ingchips.fota;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.*;
+
+/**
+ * This class models a update package (a .zip archive)
+ *
+ * Use `LoadFromStream` (or `PackageStream`) to load an `InputStream` created on a .zip archive, or
+ * `LoadFromChannel`/`LoadFromFile`/`LoadFromBuffer` to load an archive lazily: only the
+ * central directory and manifest are read up front, and items are read on demand.
+ */
+public class UpdatePackage {
+
+    public List<UpdateItem> extraBins = new ArrayList<>();
+    public UpdateItem platform = null;
+    public UpdateItem app = null;
+
+    public ProductVersion version;
+
+    private int Entry;
+    public int getEntry() { return Entry; }
+
+    public String readme;
+
+    private UpdatePackage() {
+
+    }
+
+    static private Version fromArray(JSONArray arr) {
+        try {
+            return new Version(arr.getInt(0), arr.getInt(1), arr.getInt(2));
+        } catch (Exception e) {
+            return new Version(0, 0, 0);
+        }
+    }
+
+    static String asString(UpdateItem item) throws IOException {
+        return new String(item.getData(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Names and load addresses of items, and versions, as listed in `manifest.json`
+     */
+    static class Manifest {
+        static final String NAME = "manifest.json";
+
+        final String platformName;
+        final int platformAddr;         // -1 if not listed
+        final String appName;
+        final int appAddr;
+        final String []binNames;
+        final int []binAddrs;
+        final ProductVersion version;
+        final int entry;
+
+        Manifest(String json) throws JSONException {
+            JSONObject obj = new JSONObject(json);
+            JSONObject p = obj.getJSONObject("platform");
+            JSONObject a = obj.getJSONObject("app");
+            platformName = p.getString("name");
+            platformAddr = p.has("address") ? p.getInt("address") : -1;
+            appName = a.getString("name");
+            appAddr = a.getInt("address");
+            version = new ProductVersion(fromArray(p.getJSONArray("version")),
+                    fromArray(a.getJSONArray("version")));
+            entry = obj.getInt("entry");
+
+            JSONArray arr = obj.getJSONArray("bins");
+            binNames = new String[arr.length()];
+            binAddrs = new int[arr.length()];
+            for (int i = 0; i < arr.length(); i++) {
+                binNames[i] = arr.getJSONObject(i).getString("name");
+                binAddrs[i] = arr.getJSONObject(i).getInt("address");
+            }
+        }
+
+        /**
+         * @return              load address of an item, or -1 if not listed
+         */
+        int addressOf(String name) {
+            if (name.equals(platformName)) return platformAddr;
+            if (name.equals(appName)) return appAddr;
+            for (int i = 0; i < binNames.length; i++)
+                if (name.equals(binNames[i])) return binAddrs[i];
+            return -1;
+        }
+    }
+
+    private void LoadManifest(Map<String, UpdateItem> contents) throws Exception {
+        Manifest m = new Manifest(asString(contents.get(Manifest.NAME)));
+
+        platform = contents.get(m.platformName);
+        if (platform != null) {
+            if (m.platformAddr < 0) throw new JSONException("platform address missing");
+            platform.loadAddr = m.platformAddr;
+        }
+
+        app = contents.get(m.appName);
+        app.loadAddr = m.appAddr;
+
+        version = m.version;
+        Entry = m.entry;
+
+        if (contents.containsKey("readme")) {
+            readme = asString(contents.get("readme"));
+        } else
+            readme = "<null>";
+
+        for (int i = 0; i < m.binNames.length; i++)
+        {
+            UpdateItem b = contents.get(m.binNames[i]);
+            b.loadAddr = m.binAddrs[i];
+            extraBins.add(b);
+        }
+    }
+
+    /**
+     * Make a package of the items of an archive
+     * @param contents      items by name, including `manifest.json`
+     * @return              the package, or null if the manifest is missing or invalid
+     */
+    static UpdatePackage fromContents(Map<String, UpdateItem> contents) {
+        UpdatePackage r = new UpdatePackage();
+        try {
+            r.LoadManifest(contents);
+            return r;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private boolean LoadFromBuffer0(ByteBuffer buf) {
+        try {
+            LoadManifest(ZipDirectory.read(buf.slice()));
+            return true;
+        } catch (Exception e)  {
+            return false;
+        }
+    }
+
+    /**
+     * Load a Zip archive from an input stream
+     *
+     * Use `PackageStream` to use the manifest and items before the end of the stream.
+     *
+     * @param stream        input stream of the archive
+     * @return              UpdatePacket instance representing the package
+     */
+    public static UpdatePackage LoadFromStream(InputStream stream) {
+        try (InputStream s = stream) {
+            return new PackageStream(null).parse(s);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load a Zip archive held in a buffer (e.g. `ByteSink.toByteBuffer`)
+     *
+     * Items are views of, or inflated on demand from the buffer, which must stay unchanged
+     * while the package is in use.
+     *
+     * @param buf           content of the archive (from position to limit)
+     * @return              UpdatePacket instance representing the package
+     */
+    public static UpdatePackage LoadFromBuffer(ByteBuffer buf) {
+        UpdatePackage r = new UpdatePackage();
+        return r.LoadFromBuffer0(buf) ? r : null;
+    }
+
+    /**
+     * Load a Zip archive lazily from a file channel
+     *
+     * The archive is memory-mapped, so the channel may be closed afterwards, but the file
+     * must stay unchanged while the package is in use.
+     *
+     * @param channel       channel of the archive
+     * @return              UpdatePacket instance representing the package
+     */
+    public static UpdatePackage LoadFromChannel(FileChannel channel) {
+        UpdatePackage r = new UpdatePackage();
+        try {
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return r.LoadFromBuffer0(buf) ? r : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load a Zip archive lazily from a file (@see LoadFromChannel)
+     * @param file          the archive
+     * @return              UpdatePacket instance representing the package
+     */
+    public static UpdatePackage LoadFromFile(File file) {
+        try (RandomAccessFile f = new RandomAccessFile(file, "r")) {
+            return LoadFromChannel(f.getChannel());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Create an UpdatePacket instance from a single App binary
+     *
+     * Note: this is used for on-the-fly App update.
+     *
+     * @param loadAddr      Load address of app
+     * @param bin           content of the app binary
+     * @param fileName      file name of app binary (used for logging, etc)
+     * @param readme        readme of the update package
+     * @return              UpdatePacket instance representing the package
+     */
+    public static UpdatePackage MakeAppOnPackage(long loadAddr, byte []bin, String fileName, String readme) {
+        UpdatePackage r = new UpdatePackage();
+        UpdateItem item = new UpdateItem(fileName, bin);
+        item.loadAddr = loadAddr;
+
+        r.app = item;
+        r.readme = readme;
+        r.Entry = 0;
+        r.version = new ProductVersion(new Version(0, 0, 0),
+                new Version(-1, 0, 0));
+        return r;
+    }
+}
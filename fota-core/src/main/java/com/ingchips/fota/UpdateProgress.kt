@@ -0,0 +1,45 @@
+package com.ingchips.fota
+
+/**
+ * Snapshot of an update, as published by `ProgressTracker`
+ */
+data class UpdateProgress(
+    val phase: Phase = Phase.CONNECTING,
+    val message: String? = null,        // last message
+    val currentBytes: Int = 0,
+    val totalBytes: Int = 0,
+    val bytesPerSecond: Double = 0.0,   // smoothed, 0 if unknown
+    val etaMillis: Long = -1            // time left at `bytesPerSecond`, -1 if unknown
+) {
+    enum class Phase {
+        CONNECTING,
+        PREPARING,      // key exchange and version query
+        READY,          // version confirmed, waiting for a plan
+        BURNING,
+        METADATA,
+        REBOOTING,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Callback of snapshots (@see ProgressTracker.deliver)
+     */
+    fun interface Listener {
+        fun onUpdate(progress: UpdateProgress)
+    }
+
+    val percent: Int
+        get() = if (totalBytes > 0) (100L * currentBytes / totalBytes).toInt() else if (phase == Phase.DONE) 100 else 0
+
+    /**
+     * Throughput and time left while burning, e.g. "12.3 KB/s, 0:42 left", or "" if unknown
+     */
+    fun rateText(): String {
+        if ((phase != Phase.BURNING) || (bytesPerSecond <= 0)) return ""
+        val r = String.format("%.1f KB/s", bytesPerSecond / 1024)
+        if (etaMillis < 0) return r
+        val s = (etaMillis + 999) / 1000
+        return String.format("%s, %d:%02d left", r, s / 60, s % 60)
+    }
+}
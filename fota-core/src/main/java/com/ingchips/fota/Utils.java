@@ -0,0 +1,40 @@
+package com.ingchips.fota;
+
+/**
+ * Utilities
+ */
+public class Utils {
+    public static void writeU32LE(byte []buf, int offset, long value) {
+        buf[offset] = (byte)(value & 0xff);
+        buf[offset + 1] = (byte)((value >> 8) & 0xff);
+        buf[offset + 2] = (byte)((value >> 16) & 0xff);
+        buf[offset + 3] = (byte)((value >> 24) & 0xff);
+    }
+
+    public static void writeU16LE(byte []buf, int offset, long value) {
+        buf[offset] = (byte)(value & 0xff);
+        buf[offset + 1] = (byte)((value >> 8) & 0xff);
+    }
+
+    public static int readU16LE(byte []buf, int offset) {
+        return byteAsU8(buf[offset]) | (byteAsU8(buf[offset + 1]) << 8);
+    }
+
+    public static long readU32LE(byte []buf, int offset) {
+        return (readU16LE(buf, offset) | ((long)readU16LE(buf, offset + 2) << 16));
+    }
+
+    public static int byteAsU8(byte v) {
+        return v >= 0 ? v : 256 + v;
+    }
+
+    public static int crc(byte []data, int offset, int len)
+    {
+        return Crc16.compute(data, offset, len);
+    }
+
+    public static int crc(byte []data)
+    {
+        return crc(data, 0, data.length);
+    }
+}
@@ -0,0 +1,50 @@
+package com.ingchips.fota;
+
+/**
+ * Version of a platform or an app: major.minor.patch
+ */
+public class Version {
+    private final int major;
+    private final int minor;
+    private final int patch;
+
+    public Version(int major, int minor, int patch) {
+        this.major = major;
+        this.minor = minor;
+        this.patch = patch;
+    }
+
+    /**
+     * Decode a version from its 4-byte representation on the device
+     * @param bytes         raw bytes
+     * @param offset        offset of the version in `bytes`
+     */
+    public Version(byte []bytes, int offset) {
+        major = Utils.byteAsU8(bytes[offset + 0]) + (Utils.byteAsU8(bytes[offset + 1]) << 8);
+        minor = Utils.byteAsU8(bytes[offset + 2]);
+        patch = Utils.byteAsU8(bytes[offset + 3]);
+    }
+
+    /**
+     * Encode the version into its 4-byte representation on the device
+     * @param bytes         raw bytes
+     * @param offset        offset of the version in `bytes`
+     */
+    public void write(byte []bytes, int offset) {
+        Utils.writeU16LE(bytes, offset, major);
+        bytes[offset + 2] = (byte)minor;
+        bytes[offset + 3] = (byte)patch;
+    }
+
+    public int compare(Version b) {
+        int r = major - b.major;
+        if (r == 0) r = minor - b.minor;
+        if (r == 0) r = patch - b.patch;
+        return r;
+    }
+
+    @Override
+    public String toString() {
+        return major >= 0 ? String.format("%d.%d.%d", major, minor, patch) : "\u221E";
+    }
+}
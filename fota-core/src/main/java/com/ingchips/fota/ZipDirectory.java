@@ -0,0 +1,261 @@
+package com.ingchips.fota;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Hashtable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Random access to a .zip archive held in a `ByteBuffer` (typically a memory-mapped file)
+ *
+ * Only the central directory is parsed up front. Contents of entries are
+ * served on demand: STORED entries as views of the buffer (zero-copy), DEFLATED
+ * entries by an inflater which streams forward from the last position.
+ *
+ * ZIP64 archives are not supported.
+ */
+class ZipDirectory {
+    private static final int SIG_EOCD = 0x06054b50;
+    private static final int SIG_CEN = 0x02014b50;
+    private static final int SIG_LOC = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private final ByteBuffer buf;
+
+    private ZipDirectory(ByteBuffer buf) {
+        this.buf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int u16(int pos) {
+        return buf.getShort(pos) & 0xffff;
+    }
+
+    private long u32(int pos) {
+        return buf.getInt(pos) & 0xffffffffL;
+    }
+
+    private int findEndOfCentralDirectory() throws ZipException {
+        int limit = Math.max(0, buf.limit() - EOCD_SIZE - 0xffff);
+        for (int pos = buf.limit() - EOCD_SIZE; pos >= limit; pos--)
+            if (buf.getInt(pos) == SIG_EOCD)
+                return pos;
+        throw new ZipException("end of central directory not found");
+    }
+
+    private ByteBuffer slice(long offset, long len) throws ZipException {
+        if ((offset < 0) || (len < 0) || (offset + len > buf.limit()))
+            throw new ZipException("bad entry");
+        ByteBuffer r = buf.duplicate();
+        r.position((int)offset);
+        r.limit((int)(offset + len));
+        return r.slice();
+    }
+
+    private UpdateItem.Content makeContent(int cen) throws ZipException {
+        int method = u16(cen + 10);
+        long crc = u32(cen + 16);
+        long compressedSize = u32(cen + 20);
+        long size = u32(cen + 24);
+        long loc = u32(cen + 42);
+        if ((loc + LOC_SIZE > buf.limit()) || (buf.getInt((int)loc) != SIG_LOC))
+            throw new ZipException("bad local header");
+        long dataOffset = loc + LOC_SIZE + u16((int)loc + 26) + u16((int)loc + 28);
+        ByteBuffer data = slice(dataOffset, compressedSize);
+
+        switch (method) {
+            case METHOD_STORED:
+                return new StoredContent(data.asReadOnlyBuffer(), crc);
+            case METHOD_DEFLATED:
+                return new DeflatedContent(data, (int)size, crc);
+            default:
+                throw new ZipException("unsupported compression method: " + method);
+        }
+    }
+
+    private Hashtable<String, UpdateItem> readEntries() throws ZipException {
+        int eocd = findEndOfCentralDirectory();
+        int count = u16(eocd + 10);
+        long offset = u32(eocd + 16);
+
+        Hashtable<String, UpdateItem> r = new Hashtable<>();
+        int pos = (int)offset;
+        for (int i = 0; i < count; i++) {
+            if ((pos + CEN_SIZE > buf.limit()) || (buf.getInt(pos) != SIG_CEN))
+                throw new ZipException("bad central directory");
+            int nameLen = u16(pos + 28);
+            int extraLen = u16(pos + 30);
+            int commentLen = u16(pos + 32);
+
+            byte []nameBytes = new byte[nameLen];
+            ByteBuffer t = buf.duplicate();
+            t.position(pos + CEN_SIZE);
+            t.get(nameBytes);
+            String fullName = new String(nameBytes, StandardCharsets.UTF_8);
+
+            if (!fullName.endsWith("/")) {
+                String name = fullName.substring(fullName.lastIndexOf('/') + 1);
+                r.put(name, new UpdateItem(name, makeContent(pos)));
+            }
+
+            pos += CEN_SIZE + nameLen + extraLen + commentLen;
+        }
+        return r;
+    }
+
+    /**
+     * Read the central directory of an archive
+     * @param buf           content of the archive, which must stay unchanged afterwards
+     * @return              items of all files in the archive, keyed by base name
+     * @throws ZipException if the archive is malformed
+     */
+    static Hashtable<String, UpdateItem> read(ByteBuffer buf) throws ZipException {
+        return new ZipDirectory(buf).readEntries();
+    }
+
+    static private class StoredContent implements UpdateItem.Content {
+        private final ByteBuffer data;
+        private final long crc;
+
+        StoredContent(ByteBuffer data, long crc) {
+            this.data = data;
+            this.crc = crc;
+        }
+
+        @Override
+        public int size() {
+            return data.limit();
+        }
+
+        @Override
+        public long crc32() {
+            return crc;
+        }
+
+        @Override
+        public ByteBuffer read(int offset, int len) {
+            ByteBuffer r = data.duplicate();
+            r.position(offset);
+            r.limit(offset + len);
+            return r.slice();
+        }
+    }
+
+    static class DeflatedContent implements UpdateItem.Content {
+        private final ByteBuffer compressed;
+        private final int size;
+        private final long crc;
+        private byte []input;
+        private Inflater inflater;
+        private ByteBuffer source;
+        private int pos;
+        private boolean padded;
+        private byte []whole;
+
+        DeflatedContent(ByteBuffer compressed, int size, long crc) {
+            this.compressed = compressed;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public long crc32() {
+            return crc;
+        }
+
+        private void restart() {
+            if (inflater != null)
+                inflater.end();
+            inflater = new Inflater(true);
+            if (input == null)
+                input = new byte[4096];
+            source = compressed.duplicate();
+            pos = 0;
+            padded = false;
+        }
+
+        private int inflate(byte []dst, int off, int len) throws IOException {
+            int cnt = 0;
+            try {
+                while (cnt < len) {
+                    int n = inflater.inflate(dst, off + cnt, len - cnt);
+                    cnt += n;
+                    if (n > 0) continue;
+                    if (inflater.finished() || inflater.needsDictionary())
+                        break;
+                    if (inflater.needsInput()) {
+                        // one extra byte may be needed by the inflater after the last block
+                        int t = Math.min(input.length, source.remaining());
+                        if (t == 0) {
+                            if (padded) break;
+                            padded = true;
+                            input[0] = 0;
+                            inflater.setInput(input, 0, 1);
+                        } else {
+                            source.get(input, 0, t);
+                            inflater.setInput(input, 0, t);
+                        }
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            }
+            pos += cnt;
+            return cnt;
+        }
+
+        /**
+         * Whether the whole item is inflated, after reading backwards
+         */
+        synchronized boolean isInflated() {
+            return whole != null;
+        }
+
+        @Override
+        public synchronized ByteBuffer read(int offset, int len) throws IOException {
+            if ((offset < 0) || (len < 0) || (offset + len > size))
+                throw new IndexOutOfBoundsException();
+            if (whole != null)
+                return ByteBuffer.wrap(whole, offset, len).slice().asReadOnlyBuffer();
+            byte []r = new byte[len];
+            if (len == 0)
+                return ByteBuffer.wrap(r);
+            if ((inflater != null) && (offset < pos)) {
+                // reading backwards (e.g. retries, or several readers): inflate once and for all
+                byte []all = new byte[size];
+                restart();
+                if (inflate(all, 0, size) < size)
+                    throw new ZipException("unexpected end of entry");
+                whole = all;
+                inflater.end();
+                inflater = null;
+                input = null;
+                return read(offset, len);
+            }
+            if (inflater == null)
+                restart();
+
+            // skip forward, using `r` as scratch
+            while (pos < offset) {
+                int n = inflate(r, 0, Math.min(len, offset - pos));
+                if (n == 0) throw new ZipException("unexpected end of entry");
+            }
+            if (inflate(r, 0, len) < len)
+                throw new ZipException("unexpected end of entry");
+            return ByteBuffer.wrap(r);
+        }
+    }
+}
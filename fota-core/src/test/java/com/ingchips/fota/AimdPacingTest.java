@@ -0,0 +1,63 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AimdPacingTest {
+
+    private static final int MTU = 244;
+
+    /**
+     * Burn a page on a simulated device which needs `busyMs` after PAGE_END
+     */
+    private static void page(AimdPacing pacing, long latencyNanos, long busyMs) {
+        int chunk = pacing.chunkSize(MTU);
+        for (int i = 0; i < 4096; i += chunk)
+            pacing.onChunkWritten(chunk, latencyNanos);
+        long polls = 1 + Math.max(0, busyMs - pacing.getPageGap() + 9) / 10;
+        pacing.onPageDone((int)polls);
+    }
+
+    @Test
+    public void convergesOnCleanLink() {
+        AimdPacing pacing = new AimdPacing();
+        for (int i = 0; i < 200; i++)
+            page(pacing, 1000000, 30);
+        assertEquals(0, pacing.getChunkGap());
+        // polled once per page, without sleeping much longer than needed
+        assertTrue(pacing.getPageGap() >= 30 - 10);
+        assertTrue(pacing.getPageGap() <= 30 + 5);
+        assertEquals(200, pacing.getState().getPages());
+    }
+
+    @Test
+    public void backsOffOnRetryAndRecovers() {
+        AimdPacing pacing = new AimdPacing();
+        for (int i = 0; i < 20; i++)
+            page(pacing, 1000000, 0);
+        long gap = pacing.getChunkGap();
+
+        pacing.onPageRetry();
+        assertTrue(pacing.getChunkGap() > gap);
+        assertEquals(MTU / 2, pacing.chunkSize(MTU));
+        assertEquals(MTU / 2, pacing.getState().getChunkSize());
+
+        for (int i = 0; i < 100; i++)
+            page(pacing, 1000000, 0);
+        assertEquals(MTU, pacing.chunkSize(MTU));
+        assertEquals(0, pacing.getChunkGap());
+        assertEquals(1, pacing.getState().getRetries());
+    }
+
+    @Test
+    public void backsOffOnSlowWrites() {
+        AimdPacing pacing = new AimdPacing();
+        for (int i = 0; i < 20; i++)
+            page(pacing, 1000000, 0);
+        assertEquals(0, pacing.getChunkGap());
+        page(pacing, 5000000, 0);
+        assertTrue(pacing.getChunkGap() > 0);
+    }
+}
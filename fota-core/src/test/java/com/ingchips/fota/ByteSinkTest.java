@@ -0,0 +1,51 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ByteSinkTest {
+
+    private static byte[] randomBytes(int size) {
+        byte []r = new byte[size];
+        new Random(size).nextBytes(r);
+        return r;
+    }
+
+    @Test
+    public void presized() throws IOException {
+        byte []data = randomBytes(100000);
+        ByteSink sink = ByteSink.readFully(new ByteArrayInputStream(data), data.length);
+        assertEquals(data.length, sink.size());
+        assertEquals(data.length, sink.array().length);
+        assertSame(sink.array(), sink.toByteArray());
+        assertArrayEquals(data, sink.toByteArray());
+    }
+
+    @Test
+    public void growing() throws IOException {
+        byte []data = randomBytes(100000);
+        for (long expected : new long[] {-1, 0, 10, 50000}) {
+            ByteSink sink = ByteSink.readFully(new ByteArrayInputStream(data), expected);
+            assertArrayEquals(data, sink.toByteArray());
+            assertEquals(data.length, sink.toByteBuffer().remaining());
+        }
+    }
+
+    @Test
+    public void reuse() throws IOException {
+        ByteSink sink = new ByteSink();
+        sink.readFrom(new ByteArrayInputStream(randomBytes(20000)));
+        sink.reset();
+        byte []data = randomBytes(300);
+        sink.readFrom(new ByteArrayInputStream(data));
+        assertArrayEquals(data, Arrays.copyOf(sink.array(), sink.size()));
+    }
+}
@@ -0,0 +1,108 @@
+package com.ingchips.fota;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Host-side emulation of compressed page transfer, for measuring the gain offline
+ *
+ * Each image is split into pages, which are framed as `FotaSession` does and decoded
+ * again with the reference decoder as the device would.
+ *
+ * Usage:
+ *
+ *     ./gradlew :fota-core:compressionReport --args="[--page 8192] package.zip|image.bin ..."
+ */
+public class CompressionEmulator {
+
+    static public class Report {
+        public String name;
+        public int pages;
+        public int compressedPages;
+        public long plainBytes;
+        public long sentBytes;
+
+        public double ratio() {
+            return plainBytes > 0 ? (double)sentBytes / plainBytes : 1.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-24s %5d pages (%5d compressed) %9d -> %9d bytes, %5.1f%% on air",
+                    name, pages, compressedPages, plainBytes, sentBytes, ratio() * 100);
+        }
+    }
+
+    /**
+     * Emulate the transfer of an item
+     * @param item          the item
+     * @param pageSize      flash page size
+     * @return              the report
+     * @throws IOException  if the item can't be read
+     * @throws IllegalStateException if a page does not survive the round trip
+     */
+    public static Report emulate(UpdateItem item, int pageSize) throws IOException {
+        PageCompressor compressor = new PageCompressor();
+        Report r = new Report();
+        r.name = item.getName();
+        for (int i = 0; i < item.size(); i += pageSize) {
+            byte []page = item.copyOfRange(i, Math.min(pageSize, item.size() - i));
+            byte []frame = compressor.encode(page);
+            r.pages++;
+            r.plainBytes += page.length;
+            if (frame == null) {
+                r.sentBytes += page.length;
+                continue;
+            }
+            if (!Arrays.equals(page, PageCompressor.decode(frame)))
+                throw new IllegalStateException(item.getName() + ": page at " + i + " corrupted");
+            r.compressedPages++;
+            r.sentBytes += frame.length;
+        }
+        return r;
+    }
+
+    private static List<UpdateItem> load(File f) throws IOException {
+        List<UpdateItem> r = new ArrayList<>();
+        if (!f.getName().endsWith(".zip")) {
+            try (RandomAccessFile in = new RandomAccessFile(f, "r")) {
+                byte []bin = new byte[(int)in.length()];
+                in.readFully(bin);
+                r.add(new UpdateItem(f.getName(), bin));
+            }
+            return r;
+        }
+        UpdatePackage pack = UpdatePackage.LoadFromFile(f);
+        if (pack == null)
+            throw new IOException("bad package: " + f);
+        if (pack.platform != null) r.add(pack.platform);
+        r.add(pack.app);
+        r.addAll(pack.extraBins);
+        return r;
+    }
+
+    public static void main(String []args) throws IOException {
+        int pageSize = 8 * 1024;
+        Report total = new Report();
+        total.name = "total";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--page")) {
+                pageSize = Integer.parseInt(args[++i]);
+                continue;
+            }
+            for (UpdateItem item : load(new File(args[i]))) {
+                Report r = emulate(item, pageSize);
+                System.out.println(r);
+                total.pages += r.pages;
+                total.compressedPages += r.compressedPages;
+                total.plainBytes += r.plainBytes;
+                total.sentBytes += r.sentBytes;
+            }
+        }
+        System.out.println(total);
+    }
+}
@@ -0,0 +1,60 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks `Crc16` against a bitwise CRC16 (Modbus)
+ */
+public class Crc16Test {
+
+    // high byte of the Modbus register in bits 15..8, as `Utils.crc`
+    private static int bitwiseCrc(byte []data, int offset, int len) {
+        int r = 0xFFFF;
+        for (int i = 0; i < len; i++) {
+            r ^= data[i + offset] & 0xff;
+            for (int k = 0; k < 8; k++)
+                r = (r & 1) != 0 ? (r >>> 1) ^ 0xA001 : r >>> 1;
+        }
+        return ((r & 0xff) << 8) | (r >>> 8);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte []r = new byte[size];
+        new Random(size).nextBytes(r);
+        return r;
+    }
+
+    @Test
+    public void sameAsBitwise() {
+        // check value of CRC-16/MODBUS is 0x4B37
+        assertEquals(0x374B, Utils.crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+
+        byte []data = randomBytes(8 * 1024 + 13);
+        for (int len : new int[] {0, 1, 2, 17, 244, 4096, 8192}) {
+            assertEquals(bitwiseCrc(data, 13, len), Crc16.compute(data, 13, len));
+            assertEquals(bitwiseCrc(data, 13, len), Utils.crc(data, 13, len));
+        }
+    }
+
+    @Test
+    public void incremental() {
+        byte []data = randomBytes(8 * 1024);
+        Crc16 crc = new Crc16();
+        for (int i = 0; i < data.length; i += 244)
+            crc.update(data, i, Math.min(244, data.length - i));
+        assertEquals(Utils.crc(data), crc.finish());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(Utils.crc(data), Crc16.compute(direct));
+        crc.update(direct);
+        assertEquals(0, direct.remaining());
+        assertEquals(Utils.crc(data), crc.finish());
+    }
+}
@@ -0,0 +1,289 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.delay
+
+/**
+ * Host-side emulator of a device running the INGChips FOTA service
+ *
+ * It implements `OtaTransport`, in place of the GATT driver, with the version, ctrl, data
+ * and pubkey characteristics, and charges time for each operation by a `LinkModel`.
+ * Pages are checked (CRC, signature in secure FOTA) and burned into an emulated flash,
+ * and metadata is checked and kept for inspection.
+ *
+ * Usage:
+ *
+ * 1. Create an instance with the link model, version and flash layout;
+ * 1. Run a `FotaSession` on it;
+ * 1. Check `flash`, `metadata` and `stats`.
+ */
+class DeviceEmulator
+/**
+ * Create an instance
+ * @param link              model of the link
+ * @param version           current version of the device
+ * @param chipSeries        chip series (@see PlanBuilder.CHIP_SERIES_ING9168XX)
+ * @param secure            secure FOTA (a pubkey characteristic is present)
+ * @param compression       accept compressed pages (@see OTA_CAP_COMPRESSION_LZ4)
+ * @param readBack          support reading back pages (@see OTA_CTRL_READ_PAGE)
+ */(
+    val link: LinkModel,
+    private val version: ProductVersion,
+    chipSeries: Int = PlanBuilder.CHIP_SERIES_ING9168XX,
+    secure: Boolean = false,
+    private val compression: Boolean = true,
+    private val readBack: Boolean = true
+) : OtaTransport {
+    companion object {
+        private const val READ_CHUNK = 512
+        private const val SIG_SIZE = 64
+
+        // flash of each chip series: base address, size and page size, as in `PlanBuilder`
+        private val FLASH = arrayOf(
+            longArrayOf(0x4000, 512 * 1024, 8 * 1024),
+            longArrayOf(0x02000000, 512 * 1024, 4 * 1024)
+        )
+    }
+
+    data class Stats(
+        var roundTrips: Int = 0,        // acknowledged operations
+        var dataWrites: Int = 0,
+        var notifications: Int = 0,
+        var pages: Int = 0,             // pages burned
+        var rejectedPages: Int = 0
+    )
+
+    /**
+     * Metadata accepted by the device
+     */
+    data class Block(val writeAddr: Long, val loadAddr: Long, val size: Int)
+    data class Metadata(val entry: Long, val blocks: List<Block>)
+
+    val flashBase = FLASH[chipSeries][0]
+    val pageSize = FLASH[chipSeries][2].toInt()
+    val flash = ByteArray(FLASH[chipSeries][1].toInt()).also {
+        it.fill(0xFF.toByte())
+    }
+
+    var metadata: Metadata? = null
+        private set
+    var rebooted = false
+        private set
+    val stats = Stats()
+
+    override val mtu = link.mtu - 3
+    override val dataLength = link.dataLength
+    override val hasPubKey = secure
+    override val isDataPipelined = link.writeWithoutResponse
+
+    private val keys: KeyUtils? = if (secure) KeyUtils() else null
+    private var appKey: ByteArray? = null
+    private var enabled = false
+    private var status = FotaSession.OTA_CTRL_STATUS_DISABLED
+    private var pageAddr = -1L
+    private var pageCompressed = false
+    private val pageData = ByteSink()
+    private var readAddr = -1L
+    private var busyUntil = 0L
+    private var notifyPending = false
+    private var debt = 0L
+
+    /**
+     * Let the time of an operation pass; sub-millisecond times are accumulated
+     */
+    private suspend fun spend(nanos: Long) {
+        debt += nanos
+        if (debt >= 1000000) {
+            delay(debt / 1000000)
+            debt %= 1000000
+        }
+    }
+
+    private suspend fun roundTrip(requestBytes: Int, responseBytes: Int) {
+        stats.roundTrips++
+        spend(link.roundTripNanos(requestBytes, responseBytes))
+    }
+
+    private fun currentStatus(): Byte {
+        return if (System.nanoTime() < busyUntil) FotaSession.OTA_CTRL_STATUS_WAIT_DATA else status
+    }
+
+    private fun inFlash(addr: Long, size: Int): Boolean {
+        return (addr >= flashBase) && (addr + size <= flashBase + flash.size)
+    }
+
+    private fun endPage(cmd: ByteArray): Boolean {
+        if (!enabled || (pageAddr < 0) || (cmd.size < 5)) return false
+        val size = Utils.readU16LE(cmd, 1)
+        val crc = Utils.readU16LE(cmd, 3)
+        val data = pageData.toByteArray()
+        val addr = pageAddr
+        pageAddr = -1
+
+        // CRC is of the data sent, or of the plain page if it is compressed
+        if (!pageCompressed && (Crc16.compute(data, 0, data.size) != crc)) return false
+        keys?.encrypt(data)
+        val page = if (pageCompressed) {
+            try {
+                PageCompressor.decode(data)
+            } catch (e: IllegalArgumentException) {
+                return false
+            }
+        } else data
+        if (page.size != size) return false
+        if (pageCompressed && (Crc16.compute(page, 0, page.size) != crc)) return false
+        if (keys != null) {
+            val sig = cmd.copyOfRange(5, cmd.size)
+            if (!KeyUtils.verifyData(appKey, page, sig)) return false
+        }
+        if (((addr - flashBase) % pageSize != 0L) || !inFlash(addr, size)) return false
+
+        System.arraycopy(page, 0, flash, (addr - flashBase).toInt(), size)
+        return true
+    }
+
+    private fun parseMetadata(cmd: ByteArray): Boolean {
+        if (!enabled) return false
+        val data = if (keys != null) {
+            if (cmd.size < 1 + SIG_SIZE + 2) return false
+            val sig = cmd.copyOfRange(1, 1 + SIG_SIZE)
+            val d = cmd.copyOfRange(1 + SIG_SIZE + 2, cmd.size)
+            if (Utils.readU16LE(cmd, 1 + SIG_SIZE) != Utils.crc(d)) return false
+            keys.encrypt(d)
+            if (!KeyUtils.verifyData(appKey, d, sig)) return false
+            d
+        } else {
+            if (cmd.size < 3) return false
+            val d = cmd.copyOfRange(3, cmd.size)
+            if (Utils.readU16LE(cmd, 1) != Utils.crc(d)) return false
+            d
+        }
+        if ((data.size < 4) || ((data.size - 4) % 12 != 0)) return false
+
+        val blocks = ArrayList<Block>()
+        for (off in 4 until data.size step 12) {
+            val b = Block(Utils.readU32LE(data, off), Utils.readU32LE(data, off + 4),
+                Utils.readU32LE(data, off + 8).toInt())
+            if (!inFlash(b.writeAddr, b.size)) return false
+            blocks.add(b)
+        }
+        metadata = Metadata(Utils.readU32LE(data, 0), blocks)
+        return true
+    }
+
+    private fun control(cmd: ByteArray) {
+        val ok = when (cmd[0]) {
+            FotaSession.OTA_CTRL_START -> {
+                enabled = true
+                true
+            }
+            FotaSession.OTA_CTRL_PAGE_BEGIN, FotaSession.OTA_CTRL_PAGE_BEGIN_COMPRESSED -> {
+                pageCompressed = cmd[0] == FotaSession.OTA_CTRL_PAGE_BEGIN_COMPRESSED
+                pageAddr = if (enabled && (cmd.size >= 5) && (compression || !pageCompressed))
+                    Utils.readU32LE(cmd, 1) else -1
+                pageData.reset()
+                pageAddr >= 0
+            }
+            FotaSession.OTA_CTRL_PAGE_END -> {
+                val r = endPage(cmd)
+                if (r) stats.pages++ else stats.rejectedPages++
+                busyUntil = System.nanoTime() + (link.pageWriteMillis * 1e6).toLong()
+                notifyPending = link.notify
+                r
+            }
+            FotaSession.OTA_CTRL_READ_PAGE -> {
+                readAddr = if (readBack && (cmd.size >= 5)) Utils.readU32LE(cmd, 1) else -1
+                readAddr >= 0
+            }
+            FotaSession.OTA_CTRL_METADATA -> parseMetadata(cmd)
+            FotaSession.OTA_CTRL_REBOOT, FotaSession.OTA_CTRL_SWITCH_APP -> {
+                rebooted = true
+                true
+            }
+            else -> false
+        }
+        status = if (ok) FotaSession.OTA_CTRL_STATUS_OK else FotaSession.OTA_CTRL_STATUS_ERROR
+    }
+
+    override suspend fun WriteCtrl(bytes: ByteArray): Boolean {
+        if (rebooted || bytes.isEmpty()) return false
+        roundTrip(bytes.size, 0)
+        control(bytes)
+        return true
+    }
+
+    override suspend fun ReadCtrl(): ByteArray? {
+        if (rebooted) return null
+        roundTrip(0, 1)
+        return byteArrayOf(currentStatus())
+    }
+
+    override suspend fun SubscribeCtrl(): Boolean {
+        if (!link.notify) return false
+        roundTrip(2, 0)
+        return true
+    }
+
+    override suspend fun AwaitCtrl(timeoutMillis: Long): ByteArray? {
+        val wait = (busyUntil - System.nanoTime()) / 1000000
+        if (!notifyPending || (wait > timeoutMillis)) {
+            delay(timeoutMillis)
+            return null
+        }
+        if (wait > 0) delay(wait)
+        notifyPending = false
+        stats.notifications++
+        spend(link.notifyNanos(1))
+        return byteArrayOf(status)
+    }
+
+    override suspend fun WriteData(bytes: ByteArray): Boolean {
+        if (rebooted) return false
+        stats.dataWrites++
+        if (isDataPipelined)
+            spend(link.writeNanos(bytes.size))
+        else
+            roundTrip(bytes.size, 0)
+        if (pageAddr >= 0) pageData.write(bytes, 0, bytes.size)
+        return true
+    }
+
+    override suspend fun ReadData(): ByteArray? {
+        if (!readBack || (readAddr < 0) || !inFlash(readAddr, 1)) return null
+        val off = (readAddr - flashBase).toInt()
+        val r = flash.copyOfRange(off, minOf(flash.size, off + READ_CHUNK))
+        roundTrip(0, r.size)
+        return r
+    }
+
+    override suspend fun ReadVersion(): ByteArray? {
+        val b = ByteArray(9)
+        version.platform.write(b, 0)
+        version.app.write(b, 4)
+        if (compression) b[8] = FotaSession.OTA_CAP_COMPRESSION_LZ4.toByte()
+        roundTrip(0, b.size)
+        return b
+    }
+
+    override suspend fun ReadPubKey(): ByteArray? {
+        val k = keys ?: return null
+        roundTrip(0, k.session_pk.size)
+        return k.session_pk
+    }
+
+    override suspend fun WritePubKey(bytes: ByteArray): Boolean {
+        val k = keys ?: return false
+        roundTrip(bytes.size, 0)
+        val pk = bytes.copyOfRange(0, minOf(64, bytes.size))
+        val ok = (bytes.size > 64) &&
+                KeyUtils.verifyData(k.root_pk, pk, bytes.copyOfRange(64, bytes.size))
+        if (ok) {
+            appKey = pk
+            k.shared_secret = KeyUtils.getSharedSecret(k.session_sk, pk)
+            k.xor_key = KeyUtils.SHA256(k.shared_secret)
+        }
+        status = if (ok) FotaSession.OTA_CTRL_STATUS_OK else FotaSession.OTA_CTRL_STATUS_ERROR
+        return true
+    }
+
+    override fun close() {}
+}
@@ -0,0 +1,176 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+class DeviceEmulatorTest {
+
+    private val chipSeries = PlanBuilder.CHIP_SERIES_ING9168XX
+    private val devVer = ProductVersion(Version(1, 0, 0), Version(1, 0, 0))
+
+    private fun update(device: DeviceEmulator, bin: ByteArray, keys: KeyUtils? = null,
+                       setup: (FotaSession, PlanBuilder.Plan) -> Unit = { _, _ -> }): PlanBuilder.Plan =
+        update(device, UpdatePackage.MakeAppOnPackage(0x02002000, bin, "app.bin", ""), keys, setup)
+
+    private fun update(device: DeviceEmulator, pack: UpdatePackage, keys: KeyUtils? = null,
+                       setup: (FotaSession, PlanBuilder.Plan) -> Unit = { _, _ -> }): PlanBuilder.Plan = runBlocking {
+        val session = FotaSession(device, null, keys, pacing = FixedPacing(0, 0))
+        assertTrue(session.prepare())
+        val plan = PlanBuilder.fromPackage(pack, session.devVer!!)
+        PlanBuilder.makeFlashProcedure(plan, chipSeries, PlanBuilder.getFlashTopAddress(chipSeries))
+        setup(session, plan)
+        session.doUpdate(plan)
+        plan
+    }
+
+    private fun check(device: DeviceEmulator, plan: PlanBuilder.Plan, bin: ByteArray) {
+        val item = plan.items[0]
+        val off = (item.writeAddr - device.flashBase).toInt()
+        assertArrayEquals(bin, device.flash.copyOfRange(off, off + bin.size))
+        val meta = device.metadata
+        assertNotNull(meta)
+        assertEquals(1, meta!!.blocks.size)
+        assertEquals(DeviceEmulator.Block(item.writeAddr, 0x02002000, bin.size), meta.blocks[0])
+        assertEquals(0, device.stats.rejectedPages)
+    }
+
+    @Test
+    fun unsecureCompressed() {
+        val bin = UpdateBenchmark.image(20000, 1)
+        val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries)
+        val plan = update(device, bin)
+        check(device, plan, bin)
+        assertEquals(5, device.stats.pages)
+        assertTrue(device.stats.notifications > 0)
+    }
+
+    @Test
+    fun securePolled() {
+        val bin = UpdateBenchmark.image(20000, 2)
+        val device = DeviceEmulator(LinkModel.IDEAL.copy(notify = false, writeWithoutResponse = false),
+            devVer, chipSeries, secure = true, compression = false)
+        val plan = update(device, bin)
+        check(device, plan, bin)
+        assertEquals(0, device.stats.notifications)
+    }
+
+    // a package of a DEFLATED App
+    private fun deflatedZip(bin: ByteArray): ByteArray {
+        val out = ByteArrayOutputStream()
+        ZipOutputStream(out).use { zip ->
+            zip.putNextEntry(ZipEntry("manifest.json"))
+            zip.write(("{\"platform\":{\"name\":\"platform.bin\",\"version\":[1,0,0]},"
+                    + "\"app\":{\"name\":\"app.bin\",\"address\":${0x02002000},\"version\":[2,0,0]},"
+                    + "\"entry\":0,\"bins\":[]}").toByteArray())
+            zip.putNextEntry(ZipEntry("app.bin"))
+            zip.write(bin)
+        }
+        return out.toByteArray()
+    }
+
+    private fun memoryJournal(records: HashMap<String, String>) = PageJournal(object : PageJournal.Store {
+        override fun load(key: String) = records[key]
+        override fun save(key: String, value: String) { records[key] = value }
+        override fun remove(key: String) { records.remove(key) }
+    })
+
+    @Test
+    fun secureDeflated() {
+        val bin = UpdateBenchmark.image(40000, 5)
+        val pack = UpdatePackage.LoadFromBuffer(ByteBuffer.wrap(deflatedZip(bin)))
+        assertNotNull(pack)
+        val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries, secure = true)
+        val plan = update(device, pack!!)
+        check(device, plan, bin)
+        // pages are read once and in order, so the entry is never inflated as a whole
+        assertFalse((plan.items[0].content as ZipDirectory.DeflatedContent).isInflated)
+    }
+
+    @Test
+    fun metrics() {
+        val bin = UpdateBenchmark.image(20000, 4)
+        val device = DeviceEmulator(LinkModel.IDEAL.copy(notify = false), devVer, chipSeries)
+        val m = SessionMetrics()
+        val plan = update(device, bin) { session, _ -> session.metrics = m }
+        check(device, plan, bin)
+        assertEquals(device.stats.pages.toLong(), m.getCounter("pages"))
+        assertEquals(device.stats.dataWrites.toLong(), m.getCounter("chunks"))
+        assertEquals(device.stats.pages.toLong(), m.getHistogram("page_begin").count)
+        assertEquals(device.stats.dataWrites.toLong(), m.getHistogram("chunk_write").count)
+        assertTrue(m.getCounter("status_polls") >= device.stats.pages)
+        assertEquals(1, m.getHistogram("metadata").count)
+    }
+
+    @Test
+    fun secureResume() {
+        val bin = UpdateBenchmark.image(20000, 3)
+        val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries, secure = true)
+        val records = HashMap<String, String>()
+        val journal = memoryJournal(records)
+        update(device, bin) { session, plan ->
+            session.journal = journal
+            session.journalKey = PageJournal.keyOf("dev", plan)
+            journal.confirm(session.journalKey, 3, "1.0.0 1.0.0")
+        }
+        // pages confirmed before are not sent again
+        assertEquals(2, device.stats.pages)
+        assertTrue(records.isEmpty())
+        val off = (device.metadata!!.blocks[0].writeAddr - device.flashBase).toInt() + 3 * device.pageSize
+        assertArrayEquals(bin.copyOfRange(3 * device.pageSize, bin.size),
+            device.flash.copyOfRange(off, off + bin.size - 3 * device.pageSize))
+    }
+
+    @Test
+    fun journalDeflated() {
+        val bin = UpdateBenchmark.image(40000, 6)
+        val file = File.createTempFile("pack", ".zip")
+        try {
+            file.writeBytes(deflatedZip(bin))
+            // memory-mapped, as the app loads packages
+            val pack = UpdatePackage.LoadFromFile(file)
+            assertNotNull(pack)
+            val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries, secure = true)
+            val records = HashMap<String, String>()
+            val plan = update(device, pack!!) { session, plan ->
+                session.journal = memoryJournal(records)
+                session.journalKey = PageJournal.keyOf("dev", plan)
+            }
+            check(device, plan, bin)
+            assertTrue(records.isEmpty())
+            // the key is made without reading the entry
+            assertFalse((plan.items[0].content as ZipDirectory.DeflatedContent).isInflated)
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun signaturesReused() {
+        val bin = UpdateBenchmark.image(20000, 7)
+        val pool = SessionKeyPool(1)
+        val cache = SignatureCache(64)
+        for (attempt in 0..1) {
+            val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries, secure = true)
+            val plan = update(device, bin, pool.takeFor("dev")) { session, _ -> session.signatures = cache }
+            check(device, plan, bin)
+        }
+        // the second attempt uses the same key, so no page is signed again
+        assertEquals(5, cache.misses)
+        assertEquals(5, cache.hits)
+
+        pool.complete("dev")
+        val device = DeviceEmulator(LinkModel.IDEAL, devVer, chipSeries, secure = true)
+        update(device, bin, pool.takeFor("dev")) { session, _ -> session.signatures = cache }
+        assertEquals(10, cache.misses)
+    }
+}
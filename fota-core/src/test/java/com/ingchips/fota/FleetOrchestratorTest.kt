@@ -0,0 +1,119 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class FleetOrchestratorTest {
+
+    /**
+     * A device which accepts everything
+     */
+    private class OkTransport(private val active: AtomicInteger, private val maxActive: AtomicInteger) : OtaTransport {
+        init {
+            maxActive.accumulateAndGet(active.incrementAndGet(), Math::max)
+        }
+
+        override val mtu = 244
+        override val hasPubKey = false
+        override suspend fun WriteCtrl(bytes: ByteArray) = true
+        override suspend fun ReadCtrl() = byteArrayOf(FotaSession.OTA_CTRL_STATUS_OK)
+        override suspend fun WriteData(bytes: ByteArray): Boolean {
+            delay(1)
+            return true
+        }
+        override suspend fun ReadVersion() = ByteArray(8)
+        override suspend fun ReadPubKey(): ByteArray? = null
+        override suspend fun WritePubKey(bytes: ByteArray) = false
+        override fun close() {
+            active.decrementAndGet()
+        }
+    }
+
+    private val pack = UpdatePackage.MakeAppOnPackage(0x4000, ByteArray(10000), "app.bin", "")
+
+    private fun planFor(ver: ProductVersion) = PlanBuilder.fromPackage(pack, ver).also {
+        PlanBuilder.makeFlashProcedure(it, PlanBuilder.CHIP_SERIES_ING9168XX,
+            PlanBuilder.getFlashTopAddress(PlanBuilder.CHIP_SERIES_ING9168XX))
+    }
+
+    @Test
+    fun concurrencyLimit() = runBlocking {
+        val active = AtomicInteger()
+        val maxActive = AtomicInteger()
+        val devices = (1..6).map { "dev$it" }
+        val finished = ConcurrentHashMap<String, FleetOrchestrator.State>()
+
+        val fleet = FleetOrchestrator(2,
+            { device, listener ->
+                if (device == "dev3") null
+                else FotaSession(OkTransport(active, maxActive), listener, pacing = FixedPacing(0, 0)).also { it.prepare() }
+            },
+            { _, ver -> planFor(ver) },
+            null,
+            onFinished = { device, state -> finished[device] = state })
+
+        val summary = fleet.run(devices)
+        assertEquals(6, summary.devices)
+        assertEquals(5, summary.done)
+        assertEquals(1, summary.failed)
+        assertEquals(0, summary.active)
+        assertTrue(summary.devicesPerHour > 0)
+        assertEquals(2, maxActive.get())
+        assertEquals(0, active.get())
+        for (p in fleet.devices)
+            if (p.state == FleetOrchestrator.State.DONE) assertEquals(10000, p.current)
+        assertEquals(FleetOrchestrator.State.FAILED, finished["dev3"])
+        assertEquals(5, finished.values.count { it == FleetOrchestrator.State.DONE })
+        // plans are made on copies of package items
+        assertEquals(0L, pack.app.writeAddr)
+    }
+
+    @Test
+    fun conflated() = runBlocking {
+        val devices = (1..4).map { "dev$it" }
+        val chunks = AtomicInteger()
+        val deliveries = AtomicInteger()
+        val last = HashMap<String, FleetOrchestrator.DeviceProgress>()
+        var summary: FleetOrchestrator.Summary? = null
+
+        val fleet = FleetOrchestrator(4,
+            { _, listener ->
+                val counting = object : FotaSession.Listener {
+                    override fun onMessage(msg: String) = listener.onMessage(msg)
+                    override fun onProgress(current: Int, total: Int) {
+                        chunks.incrementAndGet()
+                        listener.onProgress(current, total)
+                    }
+                }
+                FotaSession(OkTransport(AtomicInteger(), AtomicInteger()), counting,
+                    pacing = FixedPacing(0, 0)).also { it.prepare() }
+            },
+            { _, ver -> planFor(ver) },
+            object : FleetOrchestrator.Listener {
+                override fun onDevice(progress: FleetOrchestrator.DeviceProgress) {
+                    last[progress.device] = progress
+                }
+
+                override fun onSummary(s: FleetOrchestrator.Summary) {
+                    deliveries.incrementAndGet()
+                    summary = s
+                }
+            },
+            intervalMillis = 20)
+
+        fleet.run(devices)
+        // one summary per delivery, far fewer than chunks
+        assertTrue("${deliveries.get()} ${chunks.get()}", deliveries.get() * 4 < chunks.get())
+        // the final states are always delivered
+        assertEquals(4, summary!!.done)
+        for (d in devices) {
+            assertEquals(FleetOrchestrator.State.DONE, last[d]!!.state)
+            assertEquals(10000, last[d]!!.current)
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class KeyUtilsTest {
+
+    @Test
+    public void fixedWidth() {
+        for (int i = 0; i < 64; i++) {
+            KeyUtils k = new KeyUtils();
+            assertEquals(32, k.session_sk.length);
+            assertEquals(64, k.session_pk.length);
+            assertEquals(64, k.signData(k.session_sk, new byte[] { (byte)i }).length);
+        }
+    }
+
+    @Test
+    public void signAndVerify() {
+        KeyUtils k = new KeyUtils();
+        byte []data = "page".getBytes();
+        byte []sig = k.signData(k.session_sk, data);
+        // deterministic nonces
+        assertArrayEquals(sig, k.signData(k.session_sk, data));
+        assertTrue(KeyUtils.verifyData(k.session_pk, data, sig));
+        assertFalse(KeyUtils.verifyData(k.session_pk, "Page".getBytes(), sig));
+        assertTrue(KeyUtils.verifyData(k.root_pk, k.session_pk, k.signData(k.root_sk, k.session_pk)));
+    }
+
+    @Test
+    public void sharedSecret() {
+        KeyUtils a = new KeyUtils();
+        KeyUtils b = new KeyUtils();
+        byte []s = KeyUtils.getSharedSecret(a.session_sk, b.session_pk);
+        assertEquals(32, s.length);
+        assertArrayEquals(s, KeyUtils.getSharedSecret(b.session_sk, a.session_pk));
+    }
+}
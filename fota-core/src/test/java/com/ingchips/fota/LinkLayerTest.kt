@@ -0,0 +1,35 @@
+package com.ingchips.fota
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class LinkLayerTest {
+
+    @Test
+    fun alignedChunkSize() {
+        // DLE: 244 bytes fill a PDU of 251; MTU 512 fits 2 PDUs
+        assertEquals(244, LinkLayer.alignedChunkSize(244, 251))
+        assertEquals(495, LinkLayer.alignedChunkSize(509, 251))
+        // no DLE: 9 PDUs of 27 instead of 10
+        assertEquals(236, LinkLayer.alignedChunkSize(244, 27))
+        assertEquals(20, LinkLayer.alignedChunkSize(20, 27))
+        // less than a PDU, or unknown
+        assertEquals(100, LinkLayer.alignedChunkSize(100, 251))
+        assertEquals(244, LinkLayer.alignedChunkSize(244, 0))
+
+        for (max in 20..600)
+            for (dl in intArrayOf(27, 100, 251)) {
+                val n = LinkLayer.alignedChunkSize(max, dl)
+                assertEquals(true, n <= max)
+                if (max + 7 >= dl) assertEquals(0, (n + 7) % dl)
+            }
+    }
+
+    @Test
+    fun pdus() {
+        assertEquals(1, LinkLayer.pdusOf(244, 251))
+        assertEquals(2, LinkLayer.pdusOf(245, 251))
+        assertEquals(10, LinkLayer.pdusOf(244, 27))
+        assertEquals(9, LinkLayer.pdusOf(236, 27))
+    }
+}
@@ -0,0 +1,76 @@
+package com.ingchips.fota
+
+import java.util.Random
+
+/**
+ * Model of a BLE link, used by `DeviceEmulator` to charge time for each GATT operation
+ *
+ * An acknowledged operation (read, write with response) takes a connection event for the
+ * request and one for the response, plus `latencyMillis` of processing on both ends. Writes
+ * without response only take their share of a connection event, as up to `pdusPerEvent`
+ * link layer PDUs are sent in each event. Each PDU is lost with probability `loss`, and
+ * retransmitted in the next connection event.
+ */
+data class LinkModel(
+    val connectionIntervalMillis: Double = 7.5,
+    val latencyMillis: Double = 1.0,
+    val loss: Double = 0.0,
+    val mtu: Int = 247,
+    val pdusPerEvent: Int = 4,
+    val dataLength: Int = 251,          // max link layer payload (Data Length Extension)
+    val notify: Boolean = true,         // ctrl characteristic supports notification
+    val writeWithoutResponse: Boolean = true,
+    val pageWriteMillis: Double = 20.0, // time to erase and program a page
+    val seed: Long = 1
+) {
+    companion object {
+        /**
+         * A link without any delay, for functional tests
+         */
+        @JvmStatic
+        val IDEAL = LinkModel(0.0, 0.0, pageWriteMillis = 0.0)
+    }
+
+    private val random = Random(seed)
+
+    /**
+     * Number of link layer PDUs to carry an ATT packet
+     */
+    fun pdusOf(attPayload: Int): Int {
+        return LinkLayer.pdusOf(attPayload, dataLength)
+    }
+
+    private fun retransmissions(pdus: Int): Int {
+        if (loss <= 0) return 0
+        var r = 0
+        for (i in 0 until pdus)
+            while (random.nextDouble() < loss) r++
+        return r
+    }
+
+    /**
+     * Time of an acknowledged operation carrying `requestBytes` and `responseBytes`
+     */
+    fun roundTripNanos(requestBytes: Int, responseBytes: Int): Long {
+        val pdus = pdusOf(requestBytes) + pdusOf(responseBytes)
+        val events = 2 + (pdus + retransmissions(pdus) - 2) / pdusPerEvent
+        return ((events * connectionIntervalMillis + 2 * latencyMillis) * 1e6).toLong()
+    }
+
+    /**
+     * Time of a write without response carrying `bytes`
+     */
+    fun writeNanos(bytes: Int): Long {
+        val pdus = pdusOf(bytes)
+        return ((pdus + retransmissions(pdus)) * connectionIntervalMillis / pdusPerEvent * 1e6).toLong()
+    }
+
+    /**
+     * Time from the device sending a notification to its delivery
+     */
+    fun notifyNanos(bytes: Int): Long {
+        val pdus = pdusOf(bytes)
+        val events = 1 + (pdus + retransmissions(pdus) - 1) / pdusPerEvent
+        return ((events * connectionIntervalMillis + latencyMillis) * 1e6).toLong()
+    }
+}
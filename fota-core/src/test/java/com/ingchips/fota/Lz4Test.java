@@ -0,0 +1,98 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class Lz4Test {
+
+    private static byte[] roundTrip(byte []data) {
+        byte []c = new byte[Lz4.maxCompressedLength(data.length)];
+        int n = new Lz4().compress(data, 0, data.length, c, 0);
+        byte []r = new byte[data.length];
+        assertEquals(data.length, Lz4.decompress(c, 0, n, r, 0, r.length));
+        assertArrayEquals(data, r);
+        return Arrays.copyOf(c, n);
+    }
+
+    /**
+     * Code-like data: recurring snippets mixed with random bytes, with a padding tail
+     */
+    private static byte[] firmwareLike(int size, long seed) {
+        Random rand = new Random(seed);
+        byte []r = new byte[size];
+        byte []snippets = new byte[512];
+        rand.nextBytes(snippets);
+        int i = 0;
+        while (i < size * 3 / 4) {
+            int len = Math.min(8 + rand.nextInt(24), size - i);
+            System.arraycopy(snippets, rand.nextInt(snippets.length - len), r, i, len);
+            i += len;
+            r[i++] = (byte)rand.nextInt();
+        }
+        Arrays.fill(r, i, size, (byte)0xff);
+        return r;
+    }
+
+    @Test
+    public void smallBlocks() {
+        for (int len = 0; len < 40; len++) {
+            byte []b = new byte[len];
+            new Random(len).nextBytes(b);
+            roundTrip(b);
+            roundTrip(new byte[len]);
+        }
+    }
+
+    @Test
+    public void pages() {
+        Random rand = new Random(1);
+        byte []random = new byte[8192];
+        rand.nextBytes(random);
+        roundTrip(random);
+
+        assertTrue(roundTrip(new byte[8192]).length < 64);
+        assertTrue(roundTrip(firmwareLike(8192, 2)).length < 8192 / 2);
+
+        // long literal runs and long matches
+        byte []mixed = new byte[70000];
+        rand.nextBytes(mixed);
+        System.arraycopy(mixed, 0, mixed, 40000, 20000);
+        roundTrip(mixed);
+    }
+
+    @Test
+    public void frames() {
+        PageCompressor compressor = new PageCompressor();
+        byte []page = firmwareLike(4096, 3);
+        byte []frame = compressor.encode(page);
+        assertNotNull(frame);
+        assertEquals(4096, Utils.readU16LE(frame, 0));
+        assertArrayEquals(page, PageCompressor.decode(frame));
+
+        byte []random = new byte[4096];
+        new Random(4).nextBytes(random);
+        assertNull(compressor.encode(random));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badOffset() {
+        // one literal, then a match 2 bytes back
+        byte []block = { 0x10, 1, 2, 0, 0x00 };
+        Lz4.decompress(block, 0, block.length, new byte[100], 0, 100);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void overflow() {
+        byte []c = new byte[Lz4.maxCompressedLength(1000)];
+        int n = new Lz4().compress(new byte[1000], 0, 1000, c, 0);
+        Lz4.decompress(c, 0, n, new byte[999], 0, 999);
+    }
+}
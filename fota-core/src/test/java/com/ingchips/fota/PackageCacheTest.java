@@ -0,0 +1,216 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PackageCacheTest {
+
+    private HttpServer server;
+    private String base;
+    private File dir;
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final Map<String, Integer> versions = new HashMap<>();
+    private int fullResponses;
+    private int conditionalRequests;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            byte []body = contents.get(path);
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+            // "/etag/*" is validated by ETag, others by Last-Modified
+            String etag = "\"" + versions.get(path) + "\"";
+            String modified = "Mon, 0" + versions.get(path) + " Jan 2024 00:00:00 GMT";
+            String inm = exchange.getRequestHeaders().getFirst("If-None-Match");
+            String ims = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+            if ((inm != null) || (ims != null)) conditionalRequests++;
+            boolean byEtag = path.startsWith("/etag/");
+            if (byEtag) exchange.getResponseHeaders().set("ETag", etag);
+            else exchange.getResponseHeaders().set("Last-Modified", modified);
+            if (byEtag ? etag.equals(inm) : modified.equals(ims)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            fullResponses++;
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = File.createTempFile("cache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (server != null) server.stop(0);
+        deleteAll(dir);
+    }
+
+    private static void deleteAll(File f) {
+        File []children = f.listFiles();
+        if (children != null)
+            for (File c : children) deleteAll(c);
+        f.delete();
+    }
+
+    private void publish(String path, byte []body) {
+        contents.put(path, body);
+        Integer v = versions.get(path);
+        versions.put(path, v != null ? v + 1 : 1);
+    }
+
+    private static byte[] content(int size, int seed) {
+        byte []r = new byte[size];
+        for (int i = 0; i < size; i++) r[i] = (byte)(i * 31 + seed);
+        return r;
+    }
+
+    @Test
+    public void revalidate() throws IOException {
+        for (String path : new String[] {"/etag/pack.zip", "/modified/pack.zip"}) {
+            fullResponses = 0;
+            conditionalRequests = 0;
+            publish(path, content(100000, 1));
+            PackageCache cache = new PackageCache(dir);
+
+            PackageCache.Entry e = cache.fetch(base + path);
+            assertTrue(e.downloaded);
+            assertArrayEquals(content(100000, 1), e.read().toByteArray());
+            for (int i = 0; i < 5; i++) {
+                PackageCache.Entry r = cache.fetch(base + path);
+                assertFalse(r.downloaded);
+                assertEquals(e.digest, r.digest);
+            }
+            assertEquals(path, 1, fullResponses);
+            assertEquals(path, 5, conditionalRequests);
+
+            // a new instance on the same directory
+            cache = new PackageCache(dir);
+            assertFalse(cache.fetch(base + path).downloaded);
+            assertEquals(1, fullResponses);
+
+            publish(path, content(100000, 2));
+            e = cache.fetch(base + path);
+            assertTrue(e.downloaded);
+            assertArrayEquals(content(100000, 2), e.read().toByteArray());
+            assertEquals(2, fullResponses);
+        }
+    }
+
+    @Test
+    public void pinnedAndStale() throws IOException {
+        publish("/etag/a.zip", content(5000, 3));
+        PackageCache cache = new PackageCache(dir);
+        PackageCache.Entry e = cache.fetch(base + "/etag/a.zip");
+
+        // same content under another URL: no request at all
+        PackageCache.Entry p = cache.fetch(base + "/etag/b.zip", e.digest.toUpperCase());
+        assertFalse(p.downloaded);
+        assertEquals(1, fullResponses);
+
+        try {
+            cache.fetch(base + "/etag/a.zip", "00" + e.digest.substring(2));
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("digest mismatch"));
+        }
+
+        server.stop(0);
+        server = null;
+        PackageCache.Entry s = cache.fetch(base + "/etag/a.zip");
+        assertTrue(s.stale);
+        assertEquals(e.digest, s.digest);
+        try {
+            cache.fetch(base + "/etag/c.zip");
+            fail();
+        } catch (IOException ex) {
+            // not cached
+        }
+    }
+
+    @Test
+    public void corrupted() throws IOException {
+        publish("/etag/a.zip", content(5000, 4));
+        PackageCache cache = new PackageCache(dir);
+        PackageCache.Entry e = cache.fetch(base + "/etag/a.zip");
+        try (FileOutputStream out = new FileOutputStream(e.file, true)) {
+            out.write(0);
+        }
+        assertNull(cache.get(base + "/etag/a.zip"));
+        // not revalidated but downloaded again
+        e = cache.fetch(base + "/etag/a.zip");
+        assertTrue(e.downloaded);
+        assertEquals(2, fullResponses);
+        assertNotNull(cache.get(base + "/etag/a.zip"));
+    }
+
+    @Test
+    public void mismatch() throws IOException {
+        publish("/etag/a.zip", content(5000, 5));
+        publish("/etag/b.zip", content(5000, 6));
+        PackageCache cache = new PackageCache(dir);
+        PackageCache.Entry e = cache.fetch(base + "/etag/a.zip");
+        try {
+            cache.fetch(base + "/etag/b.zip", e.digest.substring(0, 62) + "00");
+            fail();
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("digest mismatch"));
+        }
+        // nothing but the first content is kept
+        assertArrayEquals(new String[] { e.digest }, new File(dir, "blobs").list());
+        assertEquals(0, new File(dir, "tmp").list().length);
+        assertNull(cache.get(base + "/etag/b.zip"));
+    }
+
+    @Test
+    public void evict() throws IOException {
+        PackageCache cache = new PackageCache(dir, 25000);
+        PackageCache.Entry []entries = new PackageCache.Entry[3];
+        for (int i = 0; i < entries.length; i++) {
+            publish("/etag/" + i, content(10000, 10 + i));
+            entries[i] = cache.fetch(base + "/etag/" + i);
+            entries[i].file.setLastModified(1000000L * (i + 1));
+        }
+        // the least recently used one is dropped
+        assertNull(cache.get(base + "/etag/0"));
+        assertNotNull(cache.get(base + "/etag/1"));
+        assertNotNull(cache.get(base + "/etag/2"));
+
+        entries[1].file.setLastModified(5000000L);
+        entries[2].file.setLastModified(4000000L);
+        publish("/etag/3", content(10000, 13));
+        cache.fetch(base + "/etag/3");
+        assertNotNull(cache.get(base + "/etag/1"));
+        assertNull(cache.get(base + "/etag/2"));
+        assertNotNull(cache.get(base + "/etag/3"));
+    }
+}
@@ -0,0 +1,208 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that plans are made while a package is downloaded from a throttled server
+ */
+public class PackageStreamTest {
+
+    private static final String MANIFEST = "{"
+            + "\"platform\":{\"name\":\"platform.bin\",\"address\":16384,\"version\":[1,2,3]},"
+            + "\"app\":{\"name\":\"app.bin\",\"address\":147456,\"version\":[2,0,0]},"
+            + "\"entry\":16384,"
+            + "\"bins\":[{\"name\":\"extra.bin\",\"address\":200000}]"
+            + "}";
+
+    private static final int PLATFORM_SIZE = 200 * 1024;
+    private static final int BYTES_PER_SECOND = 1024 * 1024;
+
+    private HttpServer server;
+    private String base;
+    private File dir;
+    private byte []zip;
+
+    private static byte[] image(int size, long seed) {
+        byte []r = new byte[size];
+        new Random(seed).nextBytes(r);
+        return r;
+    }
+
+    private static void put(ZipOutputStream zip, String name, byte []data) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    // the platform binary, usually the largest, is the last
+    private static byte[] makeZip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        put(zip, "pack/manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8));
+        put(zip, "pack/readme", "hello".getBytes(StandardCharsets.UTF_8));
+        put(zip, "pack/app.bin", image(20 * 1024, 2));
+        put(zip, "pack/extra.bin", image(777, 3));
+        put(zip, "pack/platform.bin", image(PLATFORM_SIZE, 1));
+        zip.close();
+        return out.toByteArray();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        zip = makeZip();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/pack.zip", exchange -> {
+            exchange.sendResponseHeaders(200, zip.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                // throttled: 4 KB every 4 ms
+                for (int i = 0; i < zip.length; i += 4096) {
+                    out.write(zip, i, Math.min(4096, zip.length - i));
+                    out.flush();
+                    try {
+                        Thread.sleep(4096 * 1000 / BYTES_PER_SECOND);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+        dir = File.createTempFile("cache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File []children = new File(dir, "blobs").listFiles();
+        if (children != null)
+            for (File c : children) c.delete();
+        children = new File(dir, "urls").listFiles();
+        if (children != null)
+            for (File c : children) c.delete();
+        new File(dir, "blobs").delete();
+        new File(dir, "urls").delete();
+        dir.delete();
+    }
+
+    private static ProductVersion version(int platformMinor, int appMajor) {
+        return new ProductVersion(new Version(1, platformMinor, 3), new Version(appMajor, 0, 0));
+    }
+
+    private static class Download {
+        final List<String> items = new ArrayList<>();   // seen until the plan is made
+        long manifestNanos;
+        long planNanos;
+        long endNanos;
+    }
+
+    /**
+     * Download the package, making a plan on each item
+     */
+    private Download download(ProductVersion devVersion) throws IOException {
+        final Download r = new Download();
+        final PlanBuilder.Plan []plan = {null};
+        final PackageStream []stream = {null};
+        stream[0] = new PackageStream(new PackageStream.Listener() {
+            @Override
+            public void onManifest(ProductVersion version) {
+                assertEquals("2.0.0", version.getApp().toString());
+                assertNotNull(stream[0].getVersion());
+                r.manifestNanos = System.nanoTime();
+            }
+
+            @Override
+            public void onItem(UpdateItem item) {
+                if (plan[0] != null) return;
+                r.items.add(item.getName());
+                plan[0] = stream[0].planFor(devVersion);
+                r.planNanos = System.nanoTime();
+            }
+        });
+
+        PackageCache cache = new PackageCache(dir);
+        PackageCache.Entry e = cache.fetch(base + "/pack.zip", null, in -> stream[0].parse(in));
+        r.endNanos = System.nanoTime();
+        assertTrue(e.downloaded);
+        assertArrayEquals(zip, e.read().toByteArray());
+
+        UpdatePackage pack = stream[0].getPackage();
+        assertNotNull(pack);
+        assertEquals("hello", pack.readme);
+        assertNotNull(plan[0]);
+
+        // the same as the plan of the whole package
+        PlanBuilder.Plan expected = PlanBuilder.fromPackage(pack, devVersion);
+        assertEquals(expected.platform, plan[0].platform);
+        assertEquals(expected.app, plan[0].app);
+        assertEquals(expected.items.size(), plan[0].items.size());
+        for (int i = 0; i < expected.items.size(); i++) {
+            UpdateItem a = expected.items.get(i);
+            UpdateItem b = plan[0].items.get(i);
+            assertEquals(a.getName(), b.getName());
+            assertEquals(a.loadAddr, b.loadAddr);
+            assertArrayEquals(a.getData(), b.getData());
+        }
+        return r;
+    }
+
+    private static String last(List<String> items) {
+        return items.get(items.size() - 1);
+    }
+
+    @Test
+    public void appOnly() throws IOException {
+        Download d = download(version(2, 1));
+        // ready once the App and extra bins are complete, long before the platform binary
+        assertEquals("extra.bin", last(d.items));
+        long plan = d.planNanos - d.manifestNanos;
+        long end = d.endNanos - d.manifestNanos;
+        assertTrue(plan + " " + end, plan < end / 2);
+    }
+
+    @Test
+    public void platform() throws IOException {
+        assertEquals("platform.bin", last(download(version(1, 1)).items));
+    }
+
+    @Test
+    public void upToDate() throws IOException {
+        // no decision until the platform binary is seen
+        assertEquals("platform.bin", last(download(version(2, 2)).items));
+    }
+
+    @Test
+    public void loadFromStream() throws IOException {
+        PackageStream stream = new PackageStream(null);
+        assertNull(stream.planFor(version(2, 1)));
+        assertNull(UpdatePackage.LoadFromStream(new ByteArrayInputStream(new byte[100])));
+        UpdatePackage pack = UpdatePackage.LoadFromStream(new ByteArrayInputStream(zip));
+        assertNotNull(pack);
+        assertEquals(147456, pack.app.loadAddr);
+        assertEquals(PLATFORM_SIZE, pack.platform.size());
+    }
+}
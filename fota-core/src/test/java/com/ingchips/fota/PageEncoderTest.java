@@ -0,0 +1,76 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class PageEncoderTest {
+
+    private static KeyUtils keys() {
+        KeyUtils k = new KeyUtils();
+        k.xor_key = KeyUtils.SHA256(new byte[] { 1, 2, 3 });
+        return k;
+    }
+
+    @Test
+    public void sameAsCopyEncryptCrc() {
+        byte []image = UpdateBenchmark.image(20000, 3);
+        KeyUtils k = keys();
+        PageEncoder encoder = new PageEncoder();
+        // pages of odd size, read from odd offsets of read-only (not array-backed) views
+        for (int size : new int[] { 0, 1, 255, 257, 4096, 8191 }) {
+            ByteBuffer view = ByteBuffer.wrap(image, 1000 + size, size).slice().asReadOnlyBuffer();
+            byte []expected = Arrays.copyOfRange(image, 1000 + size, 1000 + 2 * size);
+            k.encrypt(expected);
+
+            byte []page = new byte[size];
+            int crc = encoder.encode(view, page, k.xor_key);
+            assertArrayEquals(expected, page);
+            assertEquals(Crc16.compute(expected, 0, size), crc);
+            assertEquals(0, view.remaining());
+        }
+    }
+
+    @Test
+    public void plainCopy() {
+        byte []image = UpdateBenchmark.image(4096, 4);
+        byte []page = new byte[4096];
+        int crc = new PageEncoder().encode(ByteBuffer.wrap(image), page, null);
+        assertArrayEquals(image, page);
+        assertEquals(Utils.crc(image), crc);
+    }
+
+    @Test
+    public void sha256OfView() {
+        byte []image = UpdateBenchmark.image(5000, 5);
+        byte []expected = KeyUtils.SHA256(Arrays.copyOfRange(image, 100, 4200));
+        assertArrayEquals(expected, KeyUtils.SHA256(ByteBuffer.wrap(image, 100, 4100).slice()));
+        assertArrayEquals(expected, KeyUtils.SHA256(ByteBuffer.wrap(image, 100, 4100).slice().asReadOnlyBuffer()));
+    }
+
+    @Test
+    public void poolReusesArrays() {
+        BufferPool pool = new BufferPool(2, 1);
+        byte []a = pool.acquire(10);
+        pool.release(a);
+        assertSame(a, pool.acquire(10));
+        assertEquals(10, pool.acquire(10).length);
+        assertEquals(2, pool.getAllocations());
+
+        // at most 1 array per size, and 2 sizes
+        byte []b = pool.acquire(10);
+        pool.release(a);
+        pool.release(b);
+        assertSame(a, pool.acquire(10));
+        pool.release(a);
+        pool.release(pool.acquire(20));
+        pool.release(pool.acquire(30));
+        assertNotSame(a, pool.acquire(10));
+    }
+}
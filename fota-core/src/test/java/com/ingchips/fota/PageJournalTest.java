@@ -0,0 +1,57 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class PageJournalTest {
+
+    private static PlanBuilder.Plan plan(byte []app) {
+        UpdatePackage pack = UpdatePackage.MakeAppOnPackage(0x4000, app, "app.bin", "");
+        PlanBuilder.Plan plan = PlanBuilder.fromPackage(pack,
+                new ProductVersion(new Version(1, 0, 0), new Version(1, 0, 0)));
+        PlanBuilder.makeFlashProcedure(plan, PlanBuilder.CHIP_SERIES_ING9187XX_ING9186XX,
+                PlanBuilder.getFlashTopAddress(PlanBuilder.CHIP_SERIES_ING9187XX_ING9186XX));
+        return plan;
+    }
+
+    @Test
+    public void keys() {
+        byte []app = new byte[20000];
+        String key = PageJournal.keyOf("00:11:22:33:44:55", plan(app));
+        assertEquals(key, PageJournal.keyOf("00:11:22:33:44:55", plan(app.clone())));
+        assertNotEquals(key, PageJournal.keyOf("00:11:22:33:44:56", plan(app)));
+        app[19999] = 1;
+        assertNotEquals(key, PageJournal.keyOf("00:11:22:33:44:55", plan(app)));
+        assertNotEquals(key, PageJournal.keyOf("00:11:22:33:44:55", plan(new byte[20001])));
+    }
+
+    @Test
+    public void fileStore() throws IOException {
+        File dir = File.createTempFile("journal", "");
+        dir.delete();
+        try {
+            PageJournal journal = new PageJournal(new PageJournal.FileStore(dir));
+            assertEquals(0, journal.confirmedPages("k", "1.0.0 1.0.0"));
+            journal.confirm("k", 3, "1.0.0 1.0.0");
+            journal.confirm("k", 4, "1.0.0 1.0.0");
+
+            PageJournal reopened = new PageJournal(new PageJournal.FileStore(dir));
+            assertEquals(4, reopened.confirmedPages("k", "1.0.0 1.0.0"));
+            // device changed meanwhile
+            assertEquals(0, reopened.confirmedPages("k", "1.0.0 2.0.0"));
+
+            reopened.clear("k");
+            assertEquals(0, reopened.confirmedPages("k", "1.0.0 1.0.0"));
+        } finally {
+            File []files = dir.listFiles();
+            if (files != null)
+                for (File f : files) f.delete();
+            dir.delete();
+        }
+    }
+}
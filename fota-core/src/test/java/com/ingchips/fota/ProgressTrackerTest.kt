@@ -0,0 +1,75 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.Executors
+
+class ProgressTrackerTest {
+
+    private var now = 0L
+
+    private fun advance(millis: Long) {
+        now += millis * 1000000
+    }
+
+    @Test
+    fun rateAndEta() {
+        val t = ProgressTracker { now }
+        t.onProgress(0, 100000)
+        assertEquals(-1, t.state.value.etaMillis)
+
+        // 10 KB/s
+        for (i in 1..10) {
+            advance(100)
+            t.onProgress(i * 1000, 100000)
+        }
+        val p = t.state.value
+        assertEquals(10000.0, p.bytesPerSecond, 1.0)
+        assertEquals(9000, p.etaMillis)
+        assertEquals(10, p.percent)
+
+        // a retry gives bytes back without touching the rate, then 20 KB/s is smoothed in
+        advance(100)
+        t.onProgress(8000, 100000)
+        assertEquals(10000.0, t.state.value.bytesPerSecond, 1.0)
+        advance(250)
+        t.onProgress(13000, 100000)
+        assertEquals(13000.0, t.state.value.bytesPerSecond, 1.0)
+    }
+
+    @Test
+    fun phases() {
+        val t = ProgressTracker { now }
+        assertEquals(UpdateProgress.Phase.CONNECTING, t.state.value.phase)
+        t.onPhase(UpdateProgress.Phase.BURNING)
+        t.onMessage("burn app.bin ...")
+        assertEquals(UpdateProgress.Phase.BURNING, t.state.value.phase)
+        assertEquals("burn app.bin ...", t.state.value.message)
+        t.onPhase(UpdateProgress.Phase.DONE)
+        assertEquals(0, t.state.value.etaMillis)
+    }
+
+    @Test
+    fun deliveryConflated() = runBlocking {
+        val t = ProgressTracker()
+        val got = Collections.synchronizedList(ArrayList<UpdateProgress>())
+        val ui = Executors.newSingleThreadExecutor()
+        val job = t.deliver(this, 20, ui) { got.add(it) }
+        for (i in 1..1000) {
+            t.onProgress(i, 1000)
+            if (i % 100 == 0) delay(5)
+        }
+        t.onPhase(UpdateProgress.Phase.DONE)
+        delay(100)
+        job.cancel()
+        ui.shutdown()
+
+        assertTrue("${got.size} deliveries", got.size < 20)
+        assertEquals(UpdateProgress.Phase.DONE, got.last().phase)
+        assertEquals(1000, got.last().currentBytes)
+    }
+}
@@ -0,0 +1,42 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SessionKeyPoolTest {
+
+    @Test
+    public void presignedKeys() throws InterruptedException {
+        SessionKeyPool pool = new SessionKeyPool(2);
+        pool.warmUp();
+        for (int i = 0; (i < 200) && (pool.size() < 2); i++)
+            Thread.sleep(10);
+        assertEquals(2, pool.size());
+
+        KeyUtils a = pool.take();
+        KeyUtils b = pool.take();
+        KeyUtils c = pool.take();
+        assertNotSame(a, b);
+        assertNotSame(b, c);
+        for (KeyUtils k : new KeyUtils[] { a, b, c }) {
+            assertNotNull(k.session_pk_sig);
+            assertTrue(KeyUtils.verifyData(k.root_pk, k.session_pk, k.session_pk_sig));
+        }
+    }
+
+    @Test
+    public void keptForDevice() {
+        SessionKeyPool pool = new SessionKeyPool(1);
+        KeyUtils a = pool.takeFor("a");
+        assertSame(a, pool.takeFor("a"));
+        assertNotSame(a, pool.takeFor("b"));
+
+        pool.complete("a");
+        assertNotSame(a, pool.takeFor("a"));
+    }
+}
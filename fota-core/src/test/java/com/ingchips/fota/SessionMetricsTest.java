@@ -0,0 +1,61 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SessionMetricsTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void histogram() {
+        SessionMetrics m = new SessionMetrics();
+        for (int i = 1; i <= 100; i++)
+            m.observe("page_done", i * MS);
+        SessionMetrics.Histogram h = m.getHistogram("page_done");
+        assertEquals(100, h.getCount());
+        assertEquals(5050.0, h.getSum(), 1e-6);
+        assertEquals(1.0, h.getMin(), 1e-6);
+        assertEquals(100.0, h.getMax(), 1e-6);
+        assertEquals(50.0, h.quantile(0.5), 1e-6);
+        assertEquals(100.0, h.quantile(0.99), 1e-6);
+        assertNull(m.getHistogram("page_begin"));
+    }
+
+    @Test
+    public void export() {
+        SessionMetrics m = new SessionMetrics();
+        m.label("phone", "Pixel \"7\"");
+        m.count("pages", 3);
+        m.count("pages");
+        m.observe("chunk_write", 3 * MS);
+        m.observe("chunk_write", 20000 * MS);
+
+        String json = m.toJson();
+        assertTrue(json, json.startsWith("{\"labels\":{\"phone\":\"Pixel \\\"7\\\"\"},\"counters\":{\"pages\":4},"));
+        assertTrue(json, json.contains("\"chunk_write\":{\"count\":2,"));
+        assertTrue(json, json.endsWith("\"buckets\":[0,0,1,0,0,0,0,0,0,0,0,0,0,1]}}}"));
+
+        String om = m.toOpenMetrics();
+        assertTrue(om, om.contains("# TYPE fota_pages counter\nfota_pages_total{phone=\"Pixel \\\"7\\\"\"} 4\n"));
+        assertTrue(om, om.contains("fota_chunk_write_ms_bucket{phone=\"Pixel \\\"7\\\"\",le=\"5.000\"} 1\n"));
+        assertTrue(om, om.contains("fota_chunk_write_ms_bucket{phone=\"Pixel \\\"7\\\"\",le=\"+Inf\"} 2\n"));
+        assertTrue(om, om.contains("fota_chunk_write_ms_count{phone=\"Pixel \\\"7\\\"\"} 2\n"));
+        assertTrue(om, om.endsWith("# EOF\n"));
+    }
+
+    @Test
+    public void escape() {
+        SessionMetrics m = new SessionMetrics();
+        m.label("phone", "a\\b\nc\td");
+        m.count("pages");
+
+        assertTrue(m.toJson(), m.toJson().contains("\"phone\":\"a\\\\b\\u000ac\\u0009d\""));
+        // the tab is left as is
+        String om = m.toOpenMetrics();
+        assertTrue(om, om.contains("fota_pages_total{phone=\"a\\\\b\\nc\td\"} 1\n"));
+    }
+}
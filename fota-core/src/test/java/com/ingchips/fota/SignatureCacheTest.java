@@ -0,0 +1,44 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class SignatureCacheTest {
+
+    private static byte[] digest(int n) {
+        return KeyUtils.SHA256(new byte[] { (byte)n });
+    }
+
+    @Test
+    public void keyedBySessionAndDigest() {
+        SignatureCache cache = new SignatureCache(8);
+        byte []pk1 = new byte[64];
+        byte []pk2 = new byte[64];
+        pk2[0] = 1;
+        byte []sig = new byte[] { 1, 2, 3 };
+
+        cache.put(pk1, digest(0), sig);
+        assertArrayEquals(sig, cache.get(pk1.clone(), digest(0)));
+        assertNull(cache.get(pk2, digest(0)));
+        assertNull(cache.get(pk1, digest(1)));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedDropped() {
+        SignatureCache cache = new SignatureCache(2);
+        byte []pk = new byte[64];
+        cache.put(pk, digest(0), new byte[] { 0 });
+        cache.put(pk, digest(1), new byte[] { 1 });
+        cache.get(pk, digest(0));
+        cache.put(pk, digest(2), new byte[] { 2 });
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(pk, digest(1)));
+        assertArrayEquals(new byte[] { 0 }, cache.get(pk, digest(0)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.ingchips.fota
+
+import kotlinx.coroutines.runBlocking
+import java.util.Random
+
+/**
+ * End-to-end benchmark of `FotaSession` on `DeviceEmulator`, over several link models
+ *
+ * Each case runs a complete update (key exchange, version query, pages and metadata),
+ * and reports wall time, throughput and round trips per page.
+ *
+ * Usage:
+ *
+ *     ./gradlew :fota-core:updateBenchmark --args="[--size 65536]"
+ */
+object UpdateBenchmark {
+
+    class Case(
+        val name: String,
+        val link: LinkModel,
+        val secure: Boolean = false,
+        val compression: Boolean = false
+    )
+
+    class Report(val name: String, val bytes: Int, val pages: Int, val roundTrips: Int, val millis: Long) {
+        val kbPerSecond: Double
+            get() = if (millis > 0) bytes / 1.024 / millis else 0.0
+
+        override fun toString(): String {
+            return String.format("%-32s %7d ms %8.1f KB/s %6.1f round trips/page",
+                name, millis, kbPerSecond, if (pages > 0) roundTrips.toDouble() / pages else 0.0)
+        }
+    }
+
+    @JvmStatic
+    val CASES = listOf(
+        Case("7.5ms, DLE", LinkModel()),
+        Case("7.5ms, DLE, MTU 512", LinkModel(mtu = 512)),
+        Case("7.5ms, DLE, compressed", LinkModel(), compression = true),
+        Case("7.5ms, DLE, secure", LinkModel(), secure = true),
+        Case("7.5ms, DLE, acknowledged", LinkModel(writeWithoutResponse = false)),
+        Case("7.5ms, DLE, polled", LinkModel(notify = false)),
+        Case("7.5ms, DLE, 5% loss", LinkModel(loss = 0.05)),
+        Case("30ms, no DLE, MTU 23", LinkModel(30.0, mtu = 23, dataLength = 27, pdusPerEvent = 2)),
+        Case("30ms, no DLE, MTU 247", LinkModel(30.0, dataLength = 27, pdusPerEvent = 2))
+    )
+
+    /**
+     * Make a firmware-like image: random bytes mixed with runs of zero padding
+     */
+    @JvmStatic
+    fun image(size: Int, seed: Long): ByteArray {
+        val rand = Random(seed)
+        val r = ByteArray(size)
+        var i = 0
+        while (i < size) {
+            val run = minOf(size - i, 64 + rand.nextInt(2048))
+            if (rand.nextInt(4) != 0) {
+                val t = ByteArray(run)
+                rand.nextBytes(t)
+                System.arraycopy(t, 0, r, i, run)
+            }
+            i += run
+        }
+        return r
+    }
+
+    /**
+     * Run a complete update
+     * @param case          the case
+     * @param bin           the app binary
+     * @return              the report
+     * @throws Exception    if the update fails
+     */
+    @JvmStatic
+    fun run(case: Case, bin: ByteArray): Report = runBlocking {
+        val chipSeries = PlanBuilder.CHIP_SERIES_ING9168XX
+        val pack = UpdatePackage.MakeAppOnPackage(0x02002000, bin, "app.bin", "")
+        val device = DeviceEmulator(case.link, ProductVersion(Version(1, 0, 0), Version(1, 0, 0)),
+            chipSeries, case.secure, case.compression)
+        val start = System.nanoTime()
+        val session = FotaSession(device, null)
+        if (!session.prepare()) throw Exception("prepare failed")
+        val plan = PlanBuilder.fromPackage(pack, session.devVer!!)
+        PlanBuilder.makeFlashProcedure(plan, chipSeries, PlanBuilder.getFlashTopAddress(chipSeries))
+        session.doUpdate(plan)
+        val millis = (System.nanoTime() - start) / 1000000
+        if (device.metadata == null) throw Exception("metadata not accepted")
+        Report(case.name, bin.size, device.stats.pages, device.stats.roundTrips, millis)
+    }
+
+    @JvmStatic
+    fun main(args: Array<String>) {
+        var size = 65536
+        var i = 0
+        while (i < args.size) {
+            if (args[i] == "--size") size = args[++i].toInt()
+            i++
+        }
+        val bin = image(size, 1)
+        // class loading, JIT and crypto initialization are not part of any case
+        run(CASES[0], image(4096, 0))
+        for (c in CASES)
+            println(run(c, bin))
+    }
+}
@@ -0,0 +1,119 @@
+package com.ingchips.fota;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks that lazily loaded packages have the same contents as streamed ones
+ */
+public class UpdatePackageTest {
+
+    private static final String MANIFEST = "{"
+            + "\"platform\":{\"name\":\"platform.bin\",\"address\":16384,\"version\":[1,2,3]},"
+            + "\"app\":{\"name\":\"app.bin\",\"address\":147456,\"version\":[2,0,0]},"
+            + "\"entry\":16384,"
+            + "\"bins\":[{\"name\":\"extra.bin\",\"address\":200000}]"
+            + "}";
+
+    private static byte[] image(int size, long seed) {
+        byte []r = new byte[size];
+        Random rand = new Random(seed);
+        // half random, half zeros
+        for (int i = 0; i < size / 2; i++)
+            r[i] = (byte)rand.nextInt();
+        return r;
+    }
+
+    private static void put(ZipOutputStream zip, String name, byte []data, boolean deflated) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (!deflated) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static byte[] makeZip(boolean deflated) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.putNextEntry(new ZipEntry("pack/"));
+        zip.closeEntry();
+        put(zip, "pack/platform.bin", image(100 * 1024 + 3, 1), deflated);
+        put(zip, "pack/app.bin", image(50 * 1024, 2), deflated);
+        put(zip, "pack/extra.bin", image(777, 3), deflated);
+        put(zip, "pack/unused.bin", image(1024, 4), deflated);
+        put(zip, "pack/readme", "hello".getBytes(StandardCharsets.UTF_8), deflated);
+        put(zip, "pack/manifest.json", MANIFEST.getBytes(StandardCharsets.UTF_8), deflated);
+        zip.close();
+        return out.toByteArray();
+    }
+
+    private static void assertSameItem(UpdateItem expected, UpdateItem actual) throws IOException {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.loadAddr, actual.loadAddr);
+        assertEquals(expected.size(), actual.size());
+        // page by page, then backwards to force restarts
+        for (int i = 0; i < expected.size(); i += 4096) {
+            int len = Math.min(4096, expected.size() - i);
+            assertArrayEquals(expected.copyOfRange(i, len), actual.copyOfRange(i, len));
+        }
+        for (int i = expected.size() - 1000; i >= 0; i -= 3000)
+            assertArrayEquals(expected.copyOfRange(i, 1000), actual.copyOfRange(i, 1000));
+        assertArrayEquals(expected.getData(), actual.getData());
+    }
+
+    private static void check(boolean deflated) throws IOException {
+        byte []zip = makeZip(deflated);
+        UpdatePackage streamed = UpdatePackage.LoadFromStream(new ByteArrayInputStream(zip));
+        assertNotNull(streamed);
+
+        File file = File.createTempFile("package", ".zip");
+        try {
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                out.write(zip);
+            }
+            UpdatePackage lazy = UpdatePackage.LoadFromFile(file);
+            assertNotNull(lazy);
+
+            assertEquals("hello", lazy.readme);
+            assertEquals(16384, lazy.getEntry());
+            assertEquals("2.0.0", lazy.version.getApp().toString());
+            assertSameItem(streamed.platform, lazy.platform);
+            assertSameItem(streamed.app, lazy.app);
+            assertEquals(1, lazy.extraBins.size());
+            assertSameItem(streamed.extraBins.get(0), lazy.extraBins.get(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void stored() throws IOException {
+        check(false);
+    }
+
+    @Test
+    public void deflated() throws IOException {
+        check(true);
+    }
+}